@@ -0,0 +1,61 @@
+package com.qubole.hive.kinesis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of checkpointing, with a lease manager that keeps the checkpoints in
+ * memory. checkpointIfTimeUp is what the reader calls for every record, and
+ * checkpoint is the write made once the checkpoint interval has passed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CheckpointerBenchmark {
+
+    //sequence numbers cycled through by the checkpoints
+    private static final int SEQ_NOS = 1024;
+
+    private KinesisShardCheckpointer checkpointer;
+    private String[] seqNos;
+    private int next = 0;
+
+    @Setup
+    public void createCheckpointer() {
+        checkpointer = new KinesisShardCheckpointer(new FakeLeaseManager(),
+                "benchmark", "shardId-000000000000", "query", 1,
+                60000L, 10L, 10L);
+        seqNos = new String[SEQ_NOS];
+        for (int i = 0; i < SEQ_NOS; i++) {
+            seqNos[i] = "4955984234185066474926808730476117451838061848" + (1000 + i);
+        }
+    }
+
+    private String nextSeqNo() {
+        next = (next + 1) % SEQ_NOS;
+        return seqNos[next];
+    }
+
+    @Benchmark
+    public void checkpointIfTimeUp() {
+        checkpointer.checkpointIfTimeUp(nextSeqNo());
+    }
+
+    @Benchmark
+    public void checkpoint() {
+        checkpointer.checkpoint(nextSeqNo());
+    }
+}
@@ -0,0 +1,190 @@
+package com.qubole.hive.kinesis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Cost of reading records aggregated by the Kinesis Producer Library,
+ * de-aggregated by the record reader with kinesis.kpl.deaggregate set,
+ * against reading them as they are and de-aggregating each row the way a
+ * Hive UDTF does: copying the row out of the Text, de-aggregating it and
+ * returning a new Text for each user record. The UDTF parses the records
+ * the way the reader does, since the protobuf classes of the kinesis client
+ * library do not load next to the protobuf runtime bundled with Hive. Each
+ * operation returns the user records of one aggregated record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DeaggregationBenchmark {
+
+    private static final String STREAM = "benchmark";
+    private static final String SHARD = "shardId-000000000000";
+    private static final int RECORDS = 2000;
+    private static final byte[] MAGIC =
+            {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+
+    //user records in each aggregated record
+    @Param({"10", "100"})
+    private int userRecords;
+
+    @Param({"100", "1024"})
+    private int recordSize;
+
+    private InMemoryShardSource source;
+    private HiveKinesisRecordReader deaggregatingReader;
+    private HiveKinesisRecordReader plainReader;
+    private Text key;
+    private Text value;
+    //kept by the UDTF from row to row
+    private final KinesisRecordDeaggregator udtfDeaggregator = new KinesisRecordDeaggregator();
+
+    @Setup(Level.Trial)
+    public void createShard() throws IOException, NoSuchAlgorithmException {
+        source = new InMemoryShardSource();
+        source.addShard(SHARD);
+        byte[] data = new byte[recordSize];
+        Arrays.fill(data, (byte) 'x');
+        long arrivalTimeMs = System.currentTimeMillis() - RECORDS;
+        for (int i = 0; i < RECORDS; i++) {
+            source.putRecord(SHARD, "key-" + (i % 1000),
+                    ByteBuffer.wrap(aggregate(i, data)), new Date(arrivalTimeMs + i));
+        }
+        source.closeShard(SHARD);
+    }
+
+    /*
+     * Builds a record in the format written by the Kinesis Producer Library.
+     * The protobuf message is encoded by hand, the way the producer library
+     * lays it out: one partition key for each user record.
+     */
+    private byte[] aggregate(int i, byte[] data) throws IOException, NoSuchAlgorithmException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (int j = 0; j < userRecords; j++) {
+            //partition_key_table
+            writeBytes(message, 1, ("key-" + i + "-" + j).getBytes("UTF-8"));
+        }
+        for (int j = 0; j < userRecords; j++) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            //partition_key_index, data
+            writeVarint(record, 1 << 3);
+            writeVarint(record, j);
+            writeBytes(record, 3, data);
+            //records
+            writeBytes(message, 3, record.toByteArray());
+        }
+        byte[] messageBytes = message.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC);
+        out.write(messageBytes);
+        out.write(MessageDigest.getInstance("MD5").digest(messageBytes));
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes)
+            throws IOException {
+        writeVarint(out, (field << 3) | 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private HiveKinesisRecordReader openReader(boolean deaggregate) {
+        JobConf conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, STREAM);
+        conf.setBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, false);
+        conf.setBoolean(Constants.DEAGGREGATION_ENABLED, deaggregate);
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/" + STREAM));
+        return new HiveKinesisRecordReader(source,
+                new HiveKinesisInputSplit(STREAM, SHARD, conf), conf);
+    }
+
+    @Setup(Level.Iteration)
+    public void openReaders() {
+        deaggregatingReader = openReader(true);
+        plainReader = openReader(false);
+        key = deaggregatingReader.createKey();
+        value = deaggregatingReader.createValue();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeReaders() {
+        deaggregatingReader.close();
+        plainReader.close();
+    }
+
+    private Text next(boolean deaggregating) throws IOException {
+        if (!(deaggregating ? deaggregatingReader : plainReader).next(key, value)) {
+            //the shard has been read, so it is read again
+            closeReaders();
+            openReaders();
+            (deaggregating ? deaggregatingReader : plainReader).next(key, value);
+        }
+        return value;
+    }
+
+    @Benchmark
+    public Text reader(Bytes bytes) throws IOException {
+        Text row = null;
+        for (int i = 0; i < userRecords; i++) {
+            row = next(true);
+            bytes.bytes += row.getLength();
+        }
+        return row;
+    }
+
+    @Benchmark
+    public List<Text> udtf(Bytes bytes) throws IOException {
+        Text aggregated = next(false);
+        byte[] copy = Arrays.copyOf(aggregated.getBytes(), aggregated.getLength());
+        List<Text> rows = new ArrayList<Text>();
+        if (udtfDeaggregator.reset(ByteBuffer.wrap(copy))) {
+            for (int i = 0; i < udtfDeaggregator.getRecordCount(); i++) {
+                Text row = new Text();
+                row.set(udtfDeaggregator.getArray(), udtfDeaggregator.getDataOffset(i),
+                        udtfDeaggregator.getDataLength(i));
+                rows.add(row);
+                bytes.bytes += row.getLength();
+            }
+        }
+        return rows;
+    }
+}
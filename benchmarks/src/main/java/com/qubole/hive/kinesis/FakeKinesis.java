@@ -0,0 +1,28 @@
+package com.qubole.hive.kinesis;
+
+import com.amazonaws.services.kinesis.AbstractAmazonKinesis;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+
+/**
+ * Kinesis client that accepts every record without sending it anywhere, so
+ * that only the cost of the writer is measured.
+ */
+class FakeKinesis extends AbstractAmazonKinesis {
+
+    private static final PutRecordResult RESULT = new PutRecordResult()
+            .withShardId("shardId-000000000000")
+            .withSequenceNumber("49559842341850664749268087304761174518380618483010");
+
+    private long records = 0L;
+
+    @Override
+    public PutRecordResult putRecord(PutRecordRequest request) {
+        records++;
+        return RESULT;
+    }
+
+    long getRecords() {
+        return records;
+    }
+}
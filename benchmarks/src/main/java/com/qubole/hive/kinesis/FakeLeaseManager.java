@@ -0,0 +1,50 @@
+package com.qubole.hive.kinesis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.kinesis.leases.impl.KinesisClientLease;
+import com.amazonaws.services.kinesis.leases.impl.KinesisClientLeaseManager;
+
+/**
+ * Lease manager keeping the checkpoints in memory instead of in DynamoDB,
+ * so that only the cost of the checkpointer is measured.
+ */
+class FakeLeaseManager extends KinesisClientLeaseManager {
+
+    private final Map<String, KinesisClientLease> leases =
+            new HashMap<String, KinesisClientLease>();
+
+    FakeLeaseManager() {
+        //the client is never called
+        super("checkpoints", new AbstractAmazonDynamoDB() {
+        });
+    }
+
+    @Override
+    public boolean createLeaseTableIfNotExists(Long readCapacity, Long writeCapacity) {
+        return true;
+    }
+
+    @Override
+    public KinesisClientLease getLease(String leaseKey) {
+        KinesisClientLease lease = leases.get(leaseKey);
+        return lease == null ? null : new KinesisClientLease(lease);
+    }
+
+    @Override
+    public boolean createLeaseIfNotExists(KinesisClientLease lease) {
+        if (leases.containsKey(lease.getLeaseKey())) {
+            return false;
+        }
+        leases.put(lease.getLeaseKey(), new KinesisClientLease(lease));
+        return true;
+    }
+
+    @Override
+    public boolean updateLease(KinesisClientLease lease) {
+        leases.put(lease.getLeaseKey(), new KinesisClientLease(lease));
+        return true;
+    }
+}
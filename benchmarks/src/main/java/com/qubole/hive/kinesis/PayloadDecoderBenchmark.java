@@ -0,0 +1,175 @@
+package com.qubole.hive.kinesis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xerial.snappy.Snappy;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Cost of reading compressed payloads, decoded by the record reader with
+ * kinesis.payload.codec set, against reading them as they are and
+ * decompressing each row the way a Hive UDF does: copying the row out of
+ * the Text, decompressing it through a stream into a new array, and
+ * returning a new Text. Each operation returns one decompressed row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PayloadDecoderBenchmark {
+
+    private static final String STREAM = "benchmark";
+    private static final String SHARD = "shardId-000000000000";
+    private static final int RECORDS = 10000;
+
+    @Param({"gzip", "deflate", "snappy"})
+    private String codec;
+
+    //size of the payloads before they are compressed
+    @Param({"1024", "10240"})
+    private int recordSize;
+
+    private InMemoryShardSource source;
+    private HiveKinesisRecordReader decodingReader;
+    private HiveKinesisRecordReader plainReader;
+    private Text key;
+    private Text value;
+
+    @Setup(Level.Trial)
+    public void createShard() throws IOException {
+        source = new InMemoryShardSource();
+        source.addShard(SHARD);
+        long arrivalTimeMs = System.currentTimeMillis() - RECORDS;
+        for (int i = 0; i < RECORDS; i++) {
+            source.putRecord(SHARD, "key-" + (i % 1000),
+                    ByteBuffer.wrap(compress(payload(i))), new Date(arrivalTimeMs + i));
+        }
+        source.closeShard(SHARD);
+    }
+
+    //JSON rows, which compress about as well as the rows of real streams
+    private byte[] payload(int i) throws IOException {
+        StringBuilder row = new StringBuilder("{\"id\": ").append(i).append(", \"events\": [");
+        for (int j = 0; row.length() < recordSize - 64; j++) {
+            row.append("{\"user\": \"user").append((i * 31 + j) % 997)
+                    .append("\", \"amount\": ").append(j % 100).append("}, ");
+        }
+        row.append("{}]}");
+        return row.toString().getBytes("UTF-8");
+    }
+
+    private byte[] compress(byte[] data) throws IOException {
+        if ("snappy".equals(codec)) {
+            return Snappy.compress(data);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = "gzip".equals(codec)
+                ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private HiveKinesisRecordReader openReader(String payloadCodec) {
+        JobConf conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, STREAM);
+        conf.setBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, false);
+        if (payloadCodec != null) {
+            conf.set(Constants.PAYLOAD_CODEC, payloadCodec);
+        }
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/" + STREAM));
+        return new HiveKinesisRecordReader(source,
+                new HiveKinesisInputSplit(STREAM, SHARD, conf), conf);
+    }
+
+    @Setup(Level.Iteration)
+    public void openReaders() {
+        decodingReader = openReader(codec);
+        plainReader = openReader(null);
+        key = decodingReader.createKey();
+        value = decodingReader.createValue();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeReaders() {
+        decodingReader.close();
+        plainReader.close();
+    }
+
+    private Text next(boolean decoding) throws IOException {
+        if (!(decoding ? decodingReader : plainReader).next(key, value)) {
+            //the shard has been read, so it is read again
+            closeReaders();
+            openReaders();
+            (decoding ? decodingReader : plainReader).next(key, value);
+        }
+        return value;
+    }
+
+    @Benchmark
+    public Text reader(Bytes bytes) throws IOException {
+        Text row = next(true);
+        bytes.bytes += row.getLength();
+        return row;
+    }
+
+    @Benchmark
+    public Text udf(Bytes bytes) throws IOException {
+        Text compressed = next(false);
+        byte[] copy = Arrays.copyOf(compressed.getBytes(), compressed.getLength());
+        byte[] decoded;
+        if ("snappy".equals(codec)) {
+            decoded = Snappy.uncompress(copy);
+        } else {
+            decoded = readAll("gzip".equals(codec)
+                    ? new GZIPInputStream(new ByteArrayInputStream(copy))
+                    : new InflaterInputStream(new ByteArrayInputStream(copy)));
+        }
+        Text row = new Text(decoded);
+        bytes.bytes += row.getLength();
+        return row;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,105 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Cost of HiveKinesisRecordReader.next, reading a closed shard held in
+ * memory. Each operation returns one record, so the throughput is in
+ * records and the sampled time is the latency of a single call, including
+ * the calls that fetch a new batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RecordReaderBenchmark {
+
+    private static final String STREAM = "benchmark";
+    private static final String SHARD = "shardId-000000000000";
+    private static final int RECORDS = 100000;
+
+    @Param({"100", "1024", "10240"})
+    private int recordSize;
+
+    @Param({"100", "1000", "10000"})
+    private int batchSize;
+
+    private JobConf conf;
+    private InMemoryShardSource source;
+    private HiveKinesisRecordReader reader;
+    private Text key;
+    private Text value;
+
+    @Setup(Level.Trial)
+    public void createShard() {
+        conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, STREAM);
+        conf.setInt(Constants.BATCH_SIZE, batchSize);
+        //the stream in memory has no limits to keep to
+        conf.setBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, false);
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/" + STREAM));
+
+        //the records share their data, which the source does not copy
+        byte[] data = new byte[recordSize];
+        Arrays.fill(data, (byte) 'x');
+        source = new InMemoryShardSource();
+        source.addShard(SHARD);
+        long arrivalTimeMs = System.currentTimeMillis() - RECORDS;
+        for (int i = 0; i < RECORDS; i++) {
+            source.putRecord(SHARD, "key-" + (i % 1000), ByteBuffer.wrap(data),
+                    new Date(arrivalTimeMs + i));
+        }
+        source.closeShard(SHARD);
+    }
+
+    @Setup(Level.Iteration)
+    public void openReader() {
+        reader = new HiveKinesisRecordReader(source,
+                new HiveKinesisInputSplit(STREAM, SHARD, conf), conf);
+        key = reader.createKey();
+        value = reader.createValue();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeReader() {
+        reader.close();
+    }
+
+    @Benchmark
+    public Text next(Bytes bytes) throws IOException {
+        if (!reader.next(key, value)) {
+            //the shard has been read, so it is read again
+            closeReader();
+            openReader();
+            reader.next(key, value);
+        }
+        bytes.bytes += value.getLength();
+        return value;
+    }
+}
@@ -0,0 +1,52 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of HiveKinesisRecordWriter.write, with a kinesis client that accepts
+ * every record. The writer puts one record per call, so there is no batch
+ * size to vary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RecordWriterBenchmark {
+
+    @Param({"100", "1024", "10240"})
+    private int recordSize;
+
+    private HiveKinesisRecordWriter writer;
+    private Text value;
+
+    @Setup
+    public void createWriter() {
+        writer = new HiveKinesisRecordWriter(new FakeKinesis(), "benchmark");
+        byte[] data = new byte[recordSize];
+        Arrays.fill(data, (byte) 'x');
+        value = new Text(data);
+    }
+
+    @Benchmark
+    public void write(Bytes bytes) throws IOException {
+        writer.write(null, value);
+        bytes.bytes += value.getLength();
+    }
+}
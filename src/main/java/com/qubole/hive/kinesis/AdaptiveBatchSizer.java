@@ -0,0 +1,73 @@
+package com.qubole.hive.kinesis;
+
+/**
+ * Chooses the number of records to ask for in each GetRecords call of a
+ * shard. The limit grows while the reader is behind the tip of the shard
+ * and full batches are returned, shrinks when the shard is throttled, and
+ * never asks for more than maxBatchBytes given the average size of the
+ * records seen so far.
+ */
+class AdaptiveBatchSizer {
+
+    //weight of the latest batch in the average record size
+    private static final double SMOOTHING = 0.3;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private int batchSize;
+    private double bytesPerRecord = 0.0;
+    private long throttledCalls = 0L;
+
+    AdaptiveBatchSizer(int initialBatchSize, int minBatchSize, int maxBatchSize,
+            long maxBatchBytes) {
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.batchSize = clamp(initialBatchSize);
+    }
+
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    long getThrottledCalls() {
+        return throttledCalls;
+    }
+
+    /**
+     * Records the outcome of a GetRecords call that asked for
+     * requestedBatchSize records and returned numRecords records of the
+     * given total size.
+     */
+    void onResult(int requestedBatchSize, int numRecords, long bytes,
+            Long millisBehindLatest) {
+        if (numRecords == 0) {
+            return;
+        }
+        double batchBytesPerRecord = (double) bytes / numRecords;
+        bytesPerRecord = bytesPerRecord == 0.0 ? batchBytesPerRecord
+                : SMOOTHING * batchBytesPerRecord + (1 - SMOOTHING) * bytesPerRecord;
+
+        boolean behind = millisBehindLatest == null || millisBehindLatest > 0;
+        if (behind && numRecords >= requestedBatchSize) {
+            //more records are waiting, ask for more at a time
+            batchSize = clamp(batchSize * 2);
+        } else {
+            batchSize = clamp(batchSize);
+        }
+    }
+
+    void onThrottled() {
+        throttledCalls++;
+        batchSize = clamp(batchSize / 2);
+    }
+
+    private int clamp(int size) {
+        int max = maxBatchSize;
+        if (bytesPerRecord > 0.0) {
+            max = (int) Math.min(max, Math.max(1L, (long) (maxBatchBytes / bytesPerRecord)));
+        }
+        return Math.max(minBatchSize, Math.min(max, size));
+    }
+}
@@ -1,15 +1,22 @@
 package com.qubole.hive.kinesis;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedInputFormatInterface;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.InputFormat;
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
@@ -18,94 +25,247 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.JobContext;
 
-import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.kinesis.clientlibrary.proxies.KinesisProxy;
 import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.model.Shard;
 
 import com.qubole.hive.kinesis.util.Constants;
 import com.qubole.hive.kinesis.util.HiveKinesisUtils;
 
-public class HiveKinesisInputFormat implements InputFormat<Text, Text> {
+public class HiveKinesisInputFormat
+        implements InputFormat<Text, Text>, VectorizedInputFormatInterface {
    
     private static final Log LOG = LogFactory.getLog(HiveKinesisInputFormat.class);
 
     public HiveKinesisInputFormat() {
     }
 
-    //kinesis proxy for each stream name
-    private Map<String, KinesisProxy> proxies
-            = new HashMap<String, KinesisProxy>();
+    //shard source for each stream name. The kinesis clients of the sources,
+    //and the DynamoDB client, are in use for as long as the input format,
+    //which Hive keeps for the life of the JVM, so they are not released.
+    private Map<String, KinesisShardSource> sources
+            = new HashMap<String, KinesisShardSource>();
+    //identifies where the shards of each stream are listed from: the
+    //region, credentials and client configuration of kinesis, or the class
+    //of another shard source
+    private Map<String, String> sourceKeys = new HashMap<String, String>();
 
     private AmazonDynamoDBClient dynamoDBClient = null;
 
-    private void initializeKinesisProxy(JobConf conf) {
+    //streams are read from kinesis, unless another shard source is configured
+    private void initializeShardSource(JobConf conf) throws IOException {
         String streamName = conf.get(Constants.STREAM_NAME);
-        if (!proxies.containsKey(streamName)) {
-            String endPointRegion = conf.get(Constants.ENDPOINT_REGION);
-            if (endPointRegion == null) {
-                endPointRegion = Constants.DEFAULT_ENDPOINT_REGION;
-            }
-            String endPoint = "kinesis." + endPointRegion + ".amazonaws.com";
-            AWSCredentialsProvider credentialsProvider =
-                    HiveKinesisUtils.getCredentialsProvider(conf);
-            KinesisProxy proxy = new KinesisProxy(streamName,
-                    credentialsProvider, endPoint);
-            proxies.put(streamName, proxy);
+        if (sources.containsKey(streamName)) {
+            return;
+        }
+        Class<? extends KinesisShardSource> sourceClass =
+                conf.getClass(Constants.SHARD_SOURCE_CLASS, null, KinesisShardSource.class);
+        if (sourceClass == null) {
+            sources.put(streamName, new KinesisProxyShardSource(
+                    KinesisClientRegistry.getKinesisProxy(conf)));
+            sourceKeys.put(streamName,
+                    conf.get(Constants.ENDPOINT_REGION, Constants.DEFAULT_ENDPOINT_REGION)
+                            + "/" + KinesisClientRegistry.getClientKey(conf));
+            return;
+        }
+        sourceKeys.put(streamName, sourceClass.getName());
+        try {
+            sources.put(streamName,
+                    sourceClass.getConstructor(JobConf.class).newInstance(conf));
+        } catch (InvocationTargetException e) {
+            throw new IOException("Cannot create shard source " + sourceClass.getName(),
+                    e.getCause());
+        } catch (Exception e) {
+            throw new IOException("Shard source " + sourceClass.getName()
+                    + " needs a public constructor taking a JobConf", e);
         }
     }
         
     @Override
     public org.apache.hadoop.mapred.RecordReader<Text, Text>
             getRecordReader(org.apache.hadoop.mapred.InputSplit split,
-                    JobConf job, Reporter reporter) {
+                    JobConf job, Reporter reporter) throws IOException {
 
-        initializeKinesisProxy(job);
-        KinesisProxy proxy = proxies.get(job.get(Constants.STREAM_NAME));
-        HiveKinesisRecordReader recordReader;
+        initializeShardSource(job);
+        KinesisShardSource source = sources.get(job.get(Constants.STREAM_NAME));
+        RecordReader<Text, Text> recordReader;
         
-        if (job.getBoolean(Constants.CHECKPOINTING_ENABLED, false)) {
-            
-            //if dynamoDBClient is null, initialize it
-            if (dynamoDBClient == null) {
-                dynamoDBClient = new AmazonDynamoDBClient(
-                        HiveKinesisUtils.getCredentialsProvider(job));
-            }
+        if (split instanceof HiveKinesisMultiShardSplit) {
+            recordReader = new KinesisMultiShardRecordReader(source,
+                    (HiveKinesisMultiShardSplit) split, job, dynamoDBClient, reporter);
+        } else if (job.getBoolean(Constants.CHECKPOINTING_ENABLED, false)) {
+            initializeDynamoDBClient(job);
             recordReader =
-                new HiveKinesisRecordReader(proxy, (HiveKinesisInputSplit) split,
-                        job, dynamoDBClient);
+                new HiveKinesisRecordReader(source, (HiveKinesisInputSplit) split,
+                        job, dynamoDBClient, reporter);
         } else {
             recordReader =
-                new HiveKinesisRecordReader(proxy, (HiveKinesisInputSplit) split, job);
+                new HiveKinesisRecordReader(source, (HiveKinesisInputSplit) split,
+                        job, null, reporter);
+        }
+        if (Utilities.isVectorMode(job)) {
+            //rows are returned in batches, as the vectorized operators expect
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            RecordReader<Text, Text> vectorizedReader = (RecordReader)
+                    new HiveKinesisVectorizedRecordReader(recordReader, job, (FileSplit) split);
+            return vectorizedReader;
         }
         return recordReader;
     }
 
+    private void initializeDynamoDBClient(JobConf conf) {
+        //if dynamoDBClient is null, initialize it
+        if (dynamoDBClient == null) {
+            dynamoDBClient = KinesisClientRegistry.getDynamoDBClient(conf);
+        }
+    }
+
     @Override
     public InputSplit[] getSplits(JobConf job, int numSplits) 
             throws IOException {
 
-        //numSplits is ignored. Each shard is a split.
         HiveKinesisUtils.validateConf(job);
-        initializeKinesisProxy(job);
+        initializeShardSource(job);
         String streamName = job.get(Constants.STREAM_NAME);
-        KinesisProxy kinesisProxy = proxies.get(streamName);
-        Set<String> shards = kinesisProxy.getAllShardIds();
+        List<Shard> shards = listShards(job, streamName);
+
+        //shards are divided into several splits only if allowed, and not
+        //when checkpointing, since checkpoints are maintained per shard
+        int maxSplitsPerShard = job.getInt(Constants.MAX_SPLITS_PER_SHARD,
+                Constants.DEFAULT_MAX_SPLITS_PER_SHARD);
+        List<String> finishedShardIds = Collections.emptyList();
+        if (job.getBoolean(Constants.CHECKPOINTING_ENABLED, false)) {
+            maxSplitsPerShard = 1;
+            Set<String> finished = getFinishedShards(job, streamName, getShardIds(shards));
+            String reshardedShardId = findOpenShard(shards, finished);
+            if (reshardedShardId != null) {
+                //the previous iteration read the shard to its end, so the
+                //listing is older than the resharding that closed it
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Shard " + reshardedShardId + " is listed as open, but has been"
+                            + " read to its end. Listing stream " + streamName + " again.");
+                }
+                KinesisStreamMetadataCache.getInstance().invalidate(streamName);
+                shards = listShards(job, streamName);
+                finished = getFinishedShards(job, streamName, getShardIds(shards));
+            }
+            finishedShardIds = new ArrayList<String>();
+            shards = skipFinishedShards(shards, finished, finishedShardIds);
+        }
+        if (job.getBoolean(Constants.SHARED_CACHE_ENABLED, false)) {
+            KinesisSharedSegmentCache.evict(job,
+                    KinesisClientRegistry.getStreamOwner(job, sources.get(streamName)),
+                    streamName);
+        }
+        //bounds derived from the predicate pushed down by the storage handler
+        KinesisScanBounds bounds =
+                KinesisPredicateAnalyzer.fromConf(job).getScanBounds(job);
+        KinesisSplitPlanner planner =
+                new KinesisSplitPlanner(streamName, maxSplitsPerShard, bounds, job);
+        List<HiveKinesisInputSplit> splits = planner.planSplits(shards, numSplits);
+        if (!finishedShardIds.isEmpty() && !splits.isEmpty()) {
+            splits.get(0).setFinishedShardIds(finishedShardIds);
+        }
+
+        //small shards are read together, unless checkpointing. Records
+        //handed over to the task but not yet returned could otherwise be
+        //checkpointed when the task stops early.
+        if (job.getBoolean(Constants.COMBINE_SPLITS, false)
+                && !job.getBoolean(Constants.CHECKPOINTING_ENABLED, false)) {
+            long maxBytes = job.getLong(Constants.COMBINE_MAX_BYTES,
+                    Constants.DEFAULT_COMBINE_MAX_BYTES);
+            long shardBytes = job.getLong(Constants.SHARD_ESTIMATED_BYTES,
+                    Constants.DEFAULT_SHARD_ESTIMATED_BYTES);
+            List<FileSplit> combined = planner.combineSplits(splits, maxBytes, shardBytes);
+            return combined.toArray(new InputSplit[combined.size()]);
+        }
+        return splits.toArray(new InputSplit[splits.size()]);
+    }
+
+    //shards listed for earlier queries in this JVM with the same source are
+    //reused for a while
+    private List<Shard> listShards(JobConf job, String streamName) throws IOException {
+        List<Shard> shards = KinesisStreamMetadataCache.getInstance().getShardList(
+                sourceKeys.get(streamName),
+                streamName,
+                sources.get(streamName),
+                job.getLong(Constants.METADATA_CACHE_TTL_MS,
+                        Constants.DEFAULT_METADATA_CACHE_TTL_MS));
         if (shards == null) {
             throw new IOException("Stream not in ACTIVE or UPDATING state");
         }
-        InputSplit[] result = 
-                new HiveKinesisInputSplit[shards.size()];
-        int i = 0;
-        for (String shard : shards) {
-            result[i++] = new HiveKinesisInputSplit(streamName,
-                    shard, job);
+        return shards;
+    }
+
+    private static List<String> getShardIds(List<Shard> shards) {
+        List<String> shardIds = new ArrayList<String>(shards.size());
+        for (Shard shard : shards) {
+            shardIds.add(shard.getShardId());
+        }
+        return shardIds;
+    }
+
+    //returns a shard listed as open among the finished ones, null if none is
+    private static String findOpenShard(List<Shard> shards, Set<String> finished) {
+        for (Shard shard : shards) {
+            if (!KinesisShardLineage.isClosed(shard) && finished.contains(shard.getShardId())) {
+                return shard.getShardId();
+            }
         }
-        return result;
+        return null;
+    }
+
+    //shards read to the end by the previous iteration are not read again,
+    //and are added to finishedShardIds. Planning writes nothing: the reader
+    //of the first split carries their checkpoints over to this iteration.
+    //If all shards are finished, one of them is kept for that.
+    private List<Shard> skipFinishedShards(List<Shard> shards, Set<String> finished,
+            List<String> finishedShardIds) {
+        List<Shard> unfinished = new ArrayList<Shard>(shards.size());
+        Shard firstFinished = null;
+        for (Shard shard : shards) {
+            if (!finished.contains(shard.getShardId())) {
+                unfinished.add(shard);
+            } else if (firstFinished == null) {
+                firstFinished = shard;
+            } else {
+                finishedShardIds.add(shard.getShardId());
+            }
+        }
+        if (firstFinished != null) {
+            if (unfinished.isEmpty()) {
+                unfinished.add(firstFinished);
+            } else {
+                finishedShardIds.add(0, firstFinished.getShardId());
+            }
+        }
+        if (LOG.isInfoEnabled() && !finishedShardIds.isEmpty()) {
+            LOG.info("Skipping shards " + finishedShardIds
+                    + ", which have been read to the end");
+        }
+        return unfinished;
+    }
+
+    //package access for testing
+    Set<String> getFinishedShards(JobConf job, String streamName, List<String> shardIds) {
+        if (shardIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        initializeDynamoDBClient(job);
+        return KinesisShardCheckpointer.getFinishedShards(dynamoDBClient, job, streamName,
+                shardIds);
     }
 
     //package access for testing
     void setKinesisProxy(String streamName, KinesisProxy proxy) {
-        proxies.put(streamName, proxy);
+        setShardSource(streamName, new KinesisProxyShardSource(proxy));
+    }
+
+    //package access for testing
+    void setShardSource(String streamName, KinesisShardSource source) {
+        sources.put(streamName, source);
+        sourceKeys.put(streamName, source.getClass().getName()
+                + "@" + System.identityHashCode(source));
     }
 }
@@ -3,6 +3,9 @@ package com.qubole.hive.kinesis;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.FileInputFormat;
@@ -13,6 +16,23 @@ public class HiveKinesisInputSplit extends FileSplit {
 
     private String streamName;
     private String shardId;
+    //sequence number range of the shard covered by this split.
+    //null start means start of shard, null end means end of shard.
+    private String startSeqNo;
+    private String endSeqNo;
+    //sequence number range of the whole shard, if known
+    private String shardStartSeqNo;
+    private String shardEndSeqNo;
+    //range of approximate arrival times of the records to be read (inclusive)
+    private long minArrivalTimeMs = Long.MIN_VALUE;
+    private long maxArrivalTimeMs = Long.MAX_VALUE;
+    //partition key of the records to be read, null for all records
+    private String partitionKey;
+    //records arriving after the splits were planned are not read
+    private long snapshotTimeMs = Long.MAX_VALUE;
+    //closed shards read to the end by the previous iteration, whose
+    //checkpoints the reader of this split carries over
+    private List<String> finishedShardIds = Collections.emptyList();
     private Path path;
 
     public HiveKinesisInputSplit() {
@@ -20,10 +40,17 @@ public class HiveKinesisInputSplit extends FileSplit {
     }
 
     public HiveKinesisInputSplit(String streamName, String shardId, JobConf conf) {
+        this(streamName, shardId, null, null, conf);
+    }
+
+    public HiveKinesisInputSplit(String streamName, String shardId,
+            String startSeqNo, String endSeqNo, JobConf conf) {
         super((Path) null, 0, 0, new String[0]);
         path = FileInputFormat.getInputPaths(conf)[0];
         this.streamName = streamName;
         this.shardId = shardId;
+        this.startSeqNo = startSeqNo;
+        this.endSeqNo = endSeqNo;
     }
 
     public String getStreamName() {
@@ -34,6 +61,64 @@ public class HiveKinesisInputSplit extends FileSplit {
         return shardId;
     }
 
+    public String getStartSeqNo() {
+        return startSeqNo;
+    }
+
+    public String getEndSeqNo() {
+        return endSeqNo;
+    }
+
+    public String getShardStartSeqNo() {
+        return shardStartSeqNo;
+    }
+
+    public String getShardEndSeqNo() {
+        return shardEndSeqNo;
+    }
+
+    public void setShardSequenceNumberRange(String shardStartSeqNo, String shardEndSeqNo) {
+        this.shardStartSeqNo = shardStartSeqNo;
+        this.shardEndSeqNo = shardEndSeqNo;
+    }
+
+    public long getMinArrivalTimeMs() {
+        return minArrivalTimeMs;
+    }
+
+    public long getMaxArrivalTimeMs() {
+        return maxArrivalTimeMs;
+    }
+
+    public void setArrivalTimeRange(long minArrivalTimeMs, long maxArrivalTimeMs) {
+        this.minArrivalTimeMs = minArrivalTimeMs;
+        this.maxArrivalTimeMs = maxArrivalTimeMs;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    public long getSnapshotTimeMs() {
+        return snapshotTimeMs;
+    }
+
+    public void setSnapshotTimeMs(long snapshotTimeMs) {
+        this.snapshotTimeMs = snapshotTimeMs;
+    }
+
+    public List<String> getFinishedShardIds() {
+        return finishedShardIds;
+    }
+
+    public void setFinishedShardIds(List<String> finishedShardIds) {
+        this.finishedShardIds = finishedShardIds;
+    }
+
     @Override
     public Path getPath() {
         return path;
@@ -54,6 +139,18 @@ public class HiveKinesisInputSplit extends FileSplit {
         out.writeUTF(streamName);
         out.writeUTF(shardId);
         out.writeUTF(path.toString());
+        writeOptionalString(out, startSeqNo);
+        writeOptionalString(out, endSeqNo);
+        out.writeLong(minArrivalTimeMs);
+        out.writeLong(maxArrivalTimeMs);
+        writeOptionalString(out, partitionKey);
+        writeOptionalString(out, shardStartSeqNo);
+        writeOptionalString(out, shardEndSeqNo);
+        out.writeLong(snapshotTimeMs);
+        out.writeInt(finishedShardIds.size());
+        for (String finishedShardId : finishedShardIds) {
+            out.writeUTF(finishedShardId);
+        }
     }
 
     @Override
@@ -61,5 +158,30 @@ public class HiveKinesisInputSplit extends FileSplit {
         streamName = in.readUTF();
         shardId = in.readUTF();
         path = new Path(in.readUTF());
+        startSeqNo = readOptionalString(in);
+        endSeqNo = readOptionalString(in);
+        minArrivalTimeMs = in.readLong();
+        maxArrivalTimeMs = in.readLong();
+        partitionKey = readOptionalString(in);
+        shardStartSeqNo = readOptionalString(in);
+        shardEndSeqNo = readOptionalString(in);
+        snapshotTimeMs = in.readLong();
+        int finishedShards = in.readInt();
+        finishedShardIds = new ArrayList<String>(finishedShards);
+        for (int i = 0; i < finishedShards; i++) {
+            finishedShardIds.add(in.readUTF());
+        }
+    }
+
+    private static void writeOptionalString(DataOutput out, String str)
+            throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static String readOptionalString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
     }
 }
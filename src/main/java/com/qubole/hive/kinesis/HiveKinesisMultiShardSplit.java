@@ -0,0 +1,74 @@
+package com.qubole.hive.kinesis;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Split made of the splits of several shards, which are read by a single
+ * task.
+ */
+public class HiveKinesisMultiShardSplit extends FileSplit {
+
+    private List<HiveKinesisInputSplit> splits;
+    private Path path;
+
+    public HiveKinesisMultiShardSplit() {
+        super((Path) null, 0, 0, new String[0]);
+        splits = new ArrayList<HiveKinesisInputSplit>();
+    }
+
+    public HiveKinesisMultiShardSplit(List<HiveKinesisInputSplit> splits, JobConf conf) {
+        super((Path) null, 0, 0, new String[0]);
+        path = FileInputFormat.getInputPaths(conf)[0];
+        this.splits = new ArrayList<HiveKinesisInputSplit>(splits);
+    }
+
+    public List<HiveKinesisInputSplit> getSplits() {
+        return Collections.unmodifiableList(splits);
+    }
+
+    @Override
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public long getLength() {
+        return 0L;
+    }
+
+    @Override
+    public String[] getLocations() throws IOException {
+        return new String[0];
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(path.toString());
+        out.writeInt(splits.size());
+        for (HiveKinesisInputSplit split : splits) {
+            split.write(out);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        path = new Path(in.readUTF());
+        int count = in.readInt();
+        splits = new ArrayList<HiveKinesisInputSplit>(count);
+        for (int i = 0; i < count; i++) {
+            HiveKinesisInputSplit split = new HiveKinesisInputSplit();
+            split.readFields(in);
+            splits.add(split);
+        }
+    }
+}
@@ -15,10 +15,7 @@ import org.apache.hadoop.mapred.OutputFormat;
 import org.apache.hadoop.mapred.RecordWriter;
 import org.apache.hadoop.util.Progressable;
 
-import com.amazonaws.ClientConfiguration;
-import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.kinesis.AmazonKinesis;
-import com.amazonaws.services.kinesis.AmazonKinesisClient;
 
 import com.qubole.hive.kinesis.util.Constants;
 import com.qubole.hive.kinesis.util.HiveKinesisUtils;
@@ -40,15 +37,11 @@ public class HiveKinesisOutputFormat implements
 
         String streamName = job.get(Constants.STREAM_NAME);
         
-        AWSCredentialsProvider credentialsProvider =
-                HiveKinesisUtils.getCredentialsProvider(job);
-        
-        ClientConfiguration clientConfig = new ClientConfiguration();
-        clientConfig.setUserAgent(ClientConfiguration.DEFAULT_USER_AGENT + name);
-        AmazonKinesis kinesis =
-            new AmazonKinesisClient(credentialsProvider, clientConfig);
+        //the client and its connections are shared by the writers in the JVM.
+        //The writer releases the client when it is closed.
+        AmazonKinesis kinesis = KinesisClientRegistry.getKinesisClient(job);
 
-        return new HiveKinesisRecordWriter(kinesis, streamName);
+        return new HiveKinesisRecordWriter(kinesis, streamName, job, progress);
     }
 
     @Override
@@ -1,18 +1,17 @@
 package com.qubole.hive.kinesis;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordReader;
-
-import org.joda.time.DateTime;
-import org.joda.time.Duration;
+import org.apache.hadoop.mapred.Reporter;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.kinesis.clientlibrary.proxies.KinesisProxy;
@@ -20,34 +19,93 @@ import com.amazonaws.services.kinesis.model.GetRecordsResult;
 import com.amazonaws.services.kinesis.model.Record;
 
 import com.qubole.hive.kinesis.util.Constants;
+import com.qubole.hive.kinesis.util.HiveKinesisUtils;
 
 public class HiveKinesisRecordReader implements RecordReader<Text, Text> {
 
     private int batchSize;
     private String streamName;
     private String shardId;
-    private KinesisProxy kinesisProxy;
-    private String shardIterator;
+    private KinesisShardSource shardSource;
+    private ShardIteratorManager shardIterators;
+    private String startSeqNo = null;
     private String endSeqNo = null;
+    //last sequence number of the shard if it was closed when planned
+    private String shardEndSeqNo = null;
+    private long minArrivalTimeMs = Long.MIN_VALUE;
+    private long maxArrivalTimeMs = Long.MAX_VALUE;
+    //if not null, records with other partition keys are skipped
+    private String partitionKey = null;
+    //reading stops once a record arrives after this time
+    private long arrivalTimeoutMs = Long.MAX_VALUE;
+    //if set, reading stops once the tip of the shard has been fetched,
+    //without waiting for more records
+    private boolean stopAtTip = false;
+    //true if the shard was open when the query was planned
+    private boolean openWhenPlanned;
     private String lastReadSeqNo = null;
+    //changed only by the thread fetching records once it has started, and
+    //handed to the thread reading them with each batch
+    private String lastFetchedSeqNo = null;
+    private long lastFetchedArrivalTimeMs = Long.MIN_VALUE;
+    private boolean reachedTip = false;
+    //whether the last batch taken found the shard closed
+    private boolean shardClosed = false;
     private List<Record> fetchedRecords = Collections.emptyList();
     private int positionToReadInFetchedRecords = 0;
+    //whether the records of the current batch may fall before the start or
+    //after the end of the split, so that each must be compared to it
+    private boolean batchCrossesStart = false;
+    private boolean batchCrossesEnd = false;
+    //whether the current batch may repeat records read already
+    private boolean batchRepeatsRead = false;
+    //whether the current batch ends with the last record of the shard
+    private boolean batchEndsShard = false;
+    //buffer the partition keys are encoded into
+    private final byte[] keyBytes = new byte[MAX_ASCII_KEY_LENGTH];
     private boolean hasFinished = false;
-    private boolean shardClosed = false;
-    private Text currentKey = null;
-    private Text currentValue = null;
-    private DateTime iterationTimeout;
+    //System.nanoTime at which the iteration times out
+    private long iterationDeadlineNanos;
     private int retryMaxAttempts;
     private int retryInterval;
-    private long nextCheckpointTimeMs = 0L;
+    private KinesisRetryPolicy retryPolicy;
     private boolean checkpointingEnabled;
     private KinesisShardCheckpointer checkpointer = null;
+    //whether the checkpointer was created by the reader, which closes it
+    private boolean ownsCheckpointer = false;
+    //shards whose SHARD_END checkpoints are carried over on close
+    private List<String> finishedShardIds;
+    private KinesisRecordPrefetcher prefetcher = null;
+    private KinesisReadProgress progress;
+    //adjusts the batch size of each fetch, null if the batch size is fixed
+    private AdaptiveBatchSizer batchSizer = null;
+    //shared by the readers of the shard in this JVM, null if disabled
+    private ShardRateLimiter rateLimiter = null;
+    private long rateLimitWaitNanos = 0L;
+    //used to read the user records of KPL aggregated records, null if disabled
+    private KinesisRecordDeaggregator deaggregator = null;
+    //aggregated record whose user records are being read
+    private Record aggregatedRecord = null;
+    private long aggregatedArrivalTimeMs;
+    private int nextSubRecord;
+    //decompresses payloads, null if they are not compressed
+    private KinesisPayloadDecoder decoder = null;
+    //fetched batches kept on the local disk, null if disabled
+    private KinesisSegmentCache segmentCache = null;
+    //fetched batches shared by all queries on the stream, null if disabled
+    private KinesisSharedSegmentCache sharedCache = null;
+    //counters and latencies of the kinesis calls
+    private KinesisMetrics metrics;
+
+    //partition keys are at most 256 characters
+    private static final int MAX_ASCII_KEY_LENGTH = 256;
 
     private static final Log LOG = LogFactory.getLog(HiveKinesisRecordReader.class);
 
     public HiveKinesisRecordReader(KinesisProxy kinesisProxy,
             HiveKinesisInputSplit split, JobConf conf) {
-        this(kinesisProxy, split, conf, (AmazonDynamoDBClient) null);
+        this(new KinesisProxyShardSource(kinesisProxy), split, conf,
+                (AmazonDynamoDBClient) null);
     }
 
     public HiveKinesisRecordReader(
@@ -55,13 +113,44 @@ public class HiveKinesisRecordReader implements RecordReader<Text, Text> {
             HiveKinesisInputSplit split,
             JobConf conf,
             AmazonDynamoDBClient dynamoDBClient) {
-        this(kinesisProxy,
+        this(new KinesisProxyShardSource(kinesisProxy), split, conf, dynamoDBClient);
+    }
+
+    public HiveKinesisRecordReader(KinesisShardSource shardSource,
+            HiveKinesisInputSplit split, JobConf conf) {
+        this(shardSource, split, conf, (AmazonDynamoDBClient) null);
+    }
+
+    public HiveKinesisRecordReader(
+            KinesisShardSource shardSource,
+            HiveKinesisInputSplit split,
+            JobConf conf,
+            AmazonDynamoDBClient dynamoDBClient) {
+        this(shardSource,
                 split,
                 conf,
                 dynamoDBClient,
                 (KinesisShardCheckpointer) null);
     }
 
+    /**
+     * The reporter of the task keeps the counters of the reader, and is
+     * told that the task is alive while the reader waits for kinesis.
+     */
+    public HiveKinesisRecordReader(
+            KinesisShardSource shardSource,
+            HiveKinesisInputSplit split,
+            JobConf conf,
+            AmazonDynamoDBClient dynamoDBClient,
+            Reporter reporter) {
+        this(shardSource,
+                split,
+                conf,
+                dynamoDBClient,
+                (KinesisShardCheckpointer) null,
+                reporter);
+    }
+
     //package access for testing
     HiveKinesisRecordReader(
             KinesisProxy kinesisProxy,
@@ -69,144 +158,568 @@ public class HiveKinesisRecordReader implements RecordReader<Text, Text> {
             JobConf conf,
             AmazonDynamoDBClient dynamoDBClient,
             KinesisShardCheckpointer checkpointer) {
-        this.kinesisProxy = kinesisProxy;
+        this(new KinesisProxyShardSource(kinesisProxy), split, conf, dynamoDBClient,
+                checkpointer);
+    }
+
+    HiveKinesisRecordReader(
+            KinesisShardSource shardSource,
+            HiveKinesisInputSplit split,
+            JobConf conf,
+            AmazonDynamoDBClient dynamoDBClient,
+            KinesisShardCheckpointer checkpointer) {
+        this(shardSource, split, conf, dynamoDBClient, checkpointer, (Reporter) null);
+    }
+
+    HiveKinesisRecordReader(
+            KinesisShardSource shardSource,
+            HiveKinesisInputSplit split,
+            JobConf conf,
+            AmazonDynamoDBClient dynamoDBClient,
+            KinesisShardCheckpointer checkpointer,
+            Reporter reporter) {
+        this.shardSource = shardSource;
         this.checkpointer = checkpointer;
-        initialize(split, conf, dynamoDBClient);
+        //the kinesis client is in use until the reader is closed, even if
+        //the registry drops it meanwhile
+        if (shardSource instanceof KinesisProxyShardSource) {
+            KinesisClientRegistry.retain(
+                    ((KinesisProxyShardSource) shardSource).getKinesisProxy());
+        }
+        initialize(split, conf, dynamoDBClient, reporter);
     }
 
     private void initialize(HiveKinesisInputSplit split, JobConf conf,
-            AmazonDynamoDBClient dynamoDBClient) {
+            AmazonDynamoDBClient dynamoDBClient, Reporter reporter) {
 
         shardId = split.getShardId();
         streamName = split.getStreamName();
+        startSeqNo = split.getStartSeqNo();
+        endSeqNo = split.getEndSeqNo();
+        minArrivalTimeMs = split.getMinArrivalTimeMs();
+        maxArrivalTimeMs = split.getMaxArrivalTimeMs();
+        partitionKey = split.getPartitionKey();
+        metrics = new KinesisMetrics(reporter, streamName, shardId);
+        //the part of the shard covered by the split, for reporting progress
+        String shardStartSeqNo = split.getShardStartSeqNo();
+        shardEndSeqNo = split.getShardEndSeqNo();
+        finishedShardIds = split.getFinishedShardIds();
+        progress = new KinesisReadProgress(
+                startSeqNo != null ? startSeqNo : shardStartSeqNo,
+                endSeqNo != null ? endSeqNo : shardEndSeqNo);
+        openWhenPlanned = shardEndSeqNo == null;
+        //a closed shard ends with its last sequence number
+        if (endSeqNo == null) {
+            endSeqNo = shardEndSeqNo;
+        }
+        shardIterators = new ShardIteratorManager(shardSource, shardId,
+                startSeqNo, minArrivalTimeMs);
 
         //number of records to get at a time from the kinesis stream
         batchSize = conf.getInt(Constants.BATCH_SIZE, Constants.DEFAULT_BATCH_SIZE);
+        if (conf.getBoolean(Constants.BATCH_ADAPTIVE, false)) {
+            long maxBatchBytes = conf.getLong(Constants.BATCH_MAX_BYTES,
+                    Constants.DEFAULT_BATCH_MAX_BYTES);
+            batchSizer = new AdaptiveBatchSizer(batchSize, 1,
+                    Constants.MAX_PERMITTED_BATCH_SIZE, maxBatchBytes);
+        }
         
         //get iteration timeout (min) from conf
         //and set the timestamp at which timeout will occur
         int timeoutMin = conf.getInt(Constants.ITERATION_TIMEOUT_MIN,
                 Constants.DEFAULT_ITERATION_TIMEOUT_MIN);
-        DateTime cur = new DateTime();
-        iterationTimeout = cur.plus(Duration.standardMinutes(timeoutMin));
+        iterationDeadlineNanos = System.nanoTime() + TimeUnit.MINUTES.toNanos(timeoutMin);
         
+        if (conf.getBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, true)) {
+            int readsPerSecond = conf.getInt(Constants.SHARD_READS_PER_SECOND,
+                    Constants.DEFAULT_SHARD_READS_PER_SECOND);
+            long bytesPerSecond = conf.getLong(Constants.SHARD_BYTES_PER_SECOND,
+                    Constants.DEFAULT_SHARD_BYTES_PER_SECOND);
+            rateLimiter = ShardRateLimiter.forShard(streamName, shardId,
+                    readsPerSecond, bytesPerSecond);
+        }
+
         retryMaxAttempts = conf.getInt(Constants.RETRY_MAXATTEMPTS,
                 Constants.DEFAULT_RETRY_MAXATTEMPTS);
         retryInterval = conf.getInt(Constants.RETRY_INTERVAL,
                 Constants.DEFAULT_RETRY_INTERVAL);
+        retryPolicy = KinesisRetryPolicy.fromConf(conf, metrics);
+
+        //arrival times are approximate, so reading continues for a while
+        //after the first record past the upper bound
+        if (maxArrivalTimeMs != Long.MAX_VALUE) {
+            long slackMs = conf.getLong(Constants.ARRIVAL_TIME_SLACK_MS,
+                    Constants.DEFAULT_ARRIVAL_TIME_SLACK_MS);
+            arrivalTimeoutMs = maxArrivalTimeMs + slackMs;
+        }
+        //records that arrived after the splits were planned are not read
+        long snapshotTimeMs = split.getSnapshotTimeMs();
+        if (snapshotTimeMs != Long.MAX_VALUE) {
+            arrivalTimeoutMs = Math.min(arrivalTimeoutMs, snapshotTimeMs);
+            stopAtTip = true;
+        }
+        //records arriving from now on are past the split, e.g. one reading
+        //an earlier part of the shard, so there is no waiting for them
+        if (arrivalTimeoutMs < System.currentTimeMillis()) {
+            stopAtTip = true;
+        }
 
         //get checkpointing info. from conf, and initialize checkpointer
         //if checkpointing is enabled
         checkpointingEnabled = conf.getBoolean(Constants.CHECKPOINTING_ENABLED, false);
         if (checkpointingEnabled) {
             if (checkpointer == null) {
-                long checkpointIntervalMs = conf.getLong(Constants.CHECKPOINT_INTERVAL_MS,
-                        Constants.DEFAULT_CHECKPOINT_INTERVAL_MS);
-                int iterationNumber = conf.getInt(Constants.ITERATION_NUMBER, 0);
-                String dynamoDBTable = conf.get(Constants.DYNAMO_TABLE_NAME);
-                String logicalProcessName = conf.get(Constants.CHECKPOINT_LOGICAL_NAME);
-                long readCapacity = conf.getLong(Constants.DYNAMO_READ_CAPACITY,
-                        Constants.DEFAULT_DYNAMO_READ_CAPACITY);
-                long writeCapacity = conf.getLong(Constants.DYNAMO_WRITE_CAPACITY,
-                        Constants.DEFAULT_DYNAMO_WRITE_CAPACITY);
-                checkpointer = new KinesisShardCheckpointer(
-                        dynamoDBClient,
-                        dynamoDBTable,
-                        streamName,
-                        shardId,
-                        logicalProcessName,
-                        iterationNumber,
-                        checkpointIntervalMs,
-                        readCapacity,
-                        writeCapacity);
+                checkpointer = KinesisShardCheckpointer.fromConf(dynamoDBClient,
+                        conf, streamName, shardId);
+                ownsCheckpointer = true;
+                checkpointer.setMetrics(metrics);
+                checkpointer.setRetryPolicy(retryPolicy);
             }
             lastReadSeqNo = checkpointer.getLastReadSeqNo();
+            if (KinesisShardCheckpointer.SHARD_END.equals(lastReadSeqNo)) {
+                //the closed shard was read to the end by the previous iteration.
+                //The checkpoint is written again for this iteration on close.
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Shard " + shardId + " has been read already.");
+                }
+                hasFinished = true;
+            }
         }
-    }
+        lastFetchedSeqNo = lastReadSeqNo;
 
-    private void getRecordsFromKinesis() throws IOException {
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Trying to get next set of records from kinesis.");
+        if (conf.getBoolean(Constants.SEGMENT_CACHE_ENABLED, false)) {
+            segmentCache = KinesisSegmentCache.fromConf(conf,
+                    KinesisClientRegistry.getStreamOwner(conf, shardSource),
+                    streamName, shardId);
         }
-        try {
-            if (lastReadSeqNo == null) {
-                if (LOG.isInfoEnabled()) {
-                    LOG.info("This is the first set of records.");
-                }
-                shardIterator = kinesisProxy.getIterator(shardId, "TRIM_HORIZON", null);
-            } else {
-                shardIterator = kinesisProxy.getIterator(shardId,
-                        "AFTER_SEQUENCE_NUMBER", lastReadSeqNo);
+        if (conf.getBoolean(Constants.SHARED_CACHE_ENABLED, false)) {
+            try {
+                sharedCache = KinesisSharedSegmentCache.fromConf(conf,
+                        KinesisClientRegistry.getStreamOwner(conf, shardSource),
+                        streamName, shardId);
+            } catch (IOException e) {
+                LOG.warn("Reading shard " + shardId + " without the shared cache: "
+                        + e.getMessage());
             }
-        } catch (Exception e) {
-            throw new IOException(e.getMessage());
         }
-        GetRecordsResult result;
-        result = kinesisProxy.get(shardIterator, batchSize);
-        fetchedRecords = result.getRecords();
 
-        //If no records obtained, sleep and retry until we run out of attempts
+        if (conf.getBoolean(Constants.DEAGGREGATION_ENABLED,
+                Constants.DEFAULT_DEAGGREGATION_ENABLED)) {
+            deaggregator = new KinesisRecordDeaggregator();
+        }
+        decoder = KinesisPayloadDecoder.forName(conf.get(Constants.PAYLOAD_CODEC),
+                conf.getInt(Constants.PAYLOAD_MAX_DECODED_BYTES,
+                        Constants.DEFAULT_PAYLOAD_MAX_DECODED_BYTES));
+
+        //fetch batches in the background while the current batch is consumed
+        int prefetchDepth = conf.getInt(Constants.PREFETCH_DEPTH,
+                Constants.DEFAULT_PREFETCH_DEPTH);
+        long prefetchMaxBytes = conf.getLong(Constants.PREFETCH_MAX_BYTES,
+                Constants.DEFAULT_PREFETCH_MAX_BYTES);
+        if (prefetchDepth > 0 && !hasFinished) {
+            prefetcher = new KinesisRecordPrefetcher(shardId,
+                    new KinesisRecordPrefetcher.BatchSupplier() {
+                        @Override
+                        public KinesisRecordBatch nextBatch() throws IOException {
+                            return getRecordsFromKinesis();
+                        }
+                    },
+                    prefetchDepth,
+                    prefetchMaxBytes);
+            prefetcher.start();
+        }
+    }
+
+    //returns an empty batch once the shard is closed, the iteration has
+    //timed out, the tip of the shard has been fetched when stopping there,
+    //or no records were found after all retries
+    private KinesisRecordBatch getRecordsFromKinesis() throws IOException {
+        if (shardIterators.isShardClosed() || reachedTip) {
+            return endOfRecords();
+        }
+        if (endSeqNo != null && lastFetchedSeqNo != null
+                && HiveKinesisUtils.compareSequenceNumbers(lastFetchedSeqNo, endSeqNo) >= 0) {
+            //end of split has been fetched already
+            return endOfRecords();
+        }
+        if (lastFetchedArrivalTimeMs > arrivalTimeoutMs) {
+            //records past the arrival time bound have been fetched already
+            return endOfRecords();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Trying to get next set of records from kinesis.");
+        }
+        GetRecordsResult result = fetchOrReplay();
+        List<Record> records = result.getRecords();
+
+        //If no records obtained, sleep and retry until we run out of attempts.
+        //The waits grow from the retry interval, with jitter.
         int retriesLeft = retryMaxAttempts;
-        while (fetchedRecords.size() == 0 && retriesLeft > 0) {
+        KinesisRetryPolicy.Backoff backoff = retryPolicy.newBackoff(retryInterval);
+        while (records.size() == 0 && retriesLeft > 0 && !isAtTip(result)
+                && !shardIterators.isShardClosed()) {
             retriesLeft--;
             try {
-                Thread.sleep(retryInterval);
+                Thread.sleep(backoff.nextDelayMs());
             } catch (InterruptedException e) {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Interrupted state.");
                 }
             }
-            if (iterationTimeout.isBeforeNow()) {
+            metrics.progress();
+            if (isTimedOut()) {
                 if (LOG.isInfoEnabled()) {
                     LOG.info("Timed out while retrying fetch");
                 }
-                return;
+                return endOfRecords();
+            }
+            if (shardIterators.isShardClosed()) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Found closed shard. Terminating iteration.");
+                }
+                return endOfRecords();
             }
             if (LOG.isInfoEnabled()) {
                 LOG.info("No records found in shard. Trying again.");
             }
-            shardIterator = result.getNextShardIterator();
-            if (shardIterator == null) {
-                if (LOG.isInfoEnabled()) {
-                    LOG.info("Found closed shard. Terminating iteration.");
+            result = fetchOrReplay();
+            records = result.getRecords();
+        }
+        if (records.size() > 0) {
+            Record lastRecord = records.get(records.size() - 1);
+            lastFetchedSeqNo = lastRecord.getSequenceNumber();
+            if (lastRecord.getApproximateArrivalTimestamp() != null) {
+                lastFetchedArrivalTimeMs =
+                        lastRecord.getApproximateArrivalTimestamp().getTime();
+            }
+        }
+        if (isAtTip(result)) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Reached the tip of the shard.");
+            }
+            reachedTip = true;
+        }
+        return new KinesisRecordBatch(records, shardIterators.isShardClosed(),
+                result.getMillisBehindLatest(), lastFetchedArrivalTimeMs);
+    }
+
+    private KinesisRecordBatch endOfRecords() {
+        return new KinesisRecordBatch(Collections.<Record>emptyList(),
+                shardIterators.isShardClosed(), null, lastFetchedArrivalTimeMs);
+    }
+
+    private boolean isTimedOut() {
+        return System.nanoTime() - iterationDeadlineNanos >= 0;
+    }
+
+    private boolean isAtTip(GetRecordsResult result) {
+        return stopAtTip && result.getMillisBehindLatest() != null
+                && result.getMillisBehindLatest() == 0L;
+    }
+
+    //replays the next batch from the local or the shared segment cache if
+    //it is there, and otherwise fetches it and adds it to the caches
+    private GetRecordsResult fetchOrReplay() throws IOException {
+        String key = null;
+        if (segmentCache != null) {
+            key = lastFetchedSeqNo == null
+                    ? KinesisSegmentCache.startKey(startSeqNo, minArrivalTimeMs)
+                    : KinesisSegmentCache.afterKey(lastFetchedSeqNo);
+            List<Record> cached = segmentCache.read(key);
+            if (cached != null) {
+                return replayed(cached);
+            }
+            if (segmentCache.isShardEnd(key)) {
+                shardIterators.setShardClosed();
+                return new GetRecordsResult();
+            }
+        }
+        //the shared cache is looked up by the sequence number the records
+        //follow, which is not known when starting from a time or the trim
+        //horizon
+        String afterSeqNo = lastFetchedSeqNo;
+        if (afterSeqNo == null && startSeqNo != null) {
+            afterSeqNo = KinesisSharedSegmentCache.precedingSeqNo(startSeqNo);
+        }
+        if (sharedCache != null && afterSeqNo != null) {
+            List<Record> cached = sharedCache.read(afterSeqNo);
+            if (cached != null) {
+                return replayed(cached);
+            }
+        }
+        GetRecordsResult result = fetch();
+        if (segmentCache != null) {
+            List<Record> records = result.getRecords();
+            segmentCache.write(key, records);
+            if (shardIterators.isShardClosed()) {
+                segmentCache.writeShardEnd(records.isEmpty() ? key
+                        : KinesisSegmentCache.afterKey(
+                                records.get(records.size() - 1).getSequenceNumber()));
+            }
+        }
+        if (sharedCache != null) {
+            sharedCache.write(afterSeqNo, result.getRecords());
+        }
+        return result;
+    }
+
+    //the chained iterator does not follow records read from a cache, so
+    //the next call to kinesis starts after the last of them
+    private GetRecordsResult replayed(List<Record> records) {
+        shardIterators.reset();
+        return new GetRecordsResult().withRecords(records);
+    }
+
+    //makes a GetRecords call, waiting and trying again while the shard is
+    //throttled or the call fails for a transient reason
+    private GetRecordsResult fetch() throws IOException {
+        KinesisRetryPolicy.Backoff backoff = retryPolicy.newBackoff();
+        while (true) {
+            int size = batchSizer == null ? batchSize : batchSizer.getBatchSize();
+            RuntimeException failure;
+            try {
+                if (rateLimiter != null) {
+                    long waitNanos = rateLimiter.acquire();
+                    rateLimitWaitNanos += waitNanos;
+                    metrics.onRateLimitWait(waitNanos);
                 }
-                shardClosed = true;
-                return;
+                long startNanos = System.nanoTime();
+                GetRecordsResult result = shardIterators.getRecords(lastFetchedSeqNo, size);
+                long latencyNanos = System.nanoTime() - startNanos;
+                long bytes = 0L;
+                for (Record rec : result.getRecords()) {
+                    bytes += rec.getData().remaining();
+                }
+                metrics.onGetRecords(latencyNanos, result.getRecords().size(), bytes);
+                if (rateLimiter != null) {
+                    rateLimiter.onBytesRead(bytes);
+                }
+                if (batchSizer != null) {
+                    batchSizer.onResult(size, result.getRecords().size(), bytes,
+                            result.getMillisBehindLatest());
+                }
+                return result;
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting to read the shard", e);
+            }
+            if (KinesisRetryPolicy.classify(failure) == KinesisRetryPolicy.ErrorKind.THROTTLED) {
+                metrics.onGetRecordsThrottled();
+                if (rateLimiter != null) {
+                    rateLimiter.onThrottled();
+                }
+                if (batchSizer != null) {
+                    batchSizer.onThrottled();
+                }
+            }
+            if (isTimedOut()) {
+                throw new IOException("Timed out while reading shard " + shardId, failure);
+            }
+            try {
+                if (!retryPolicy.retry(failure, backoff)) {
+                    throw new IOException("Cannot read shard " + shardId, failure);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while retrying shard " + shardId, e);
             }
-            result = kinesisProxy.get(shardIterator, batchSize);
-            fetchedRecords = result.getRecords();
         }
     }
 
     @Override
     public boolean next(Text key, Text value) throws IOException {
+        if (readNext(key, value)) {
+            return true;
+        }
+        progress.finish();
+        return false;
+    }
+
+    //the clock, the checkpoint and the bounds of the split are checked once
+    //per batch, so that records are read without allocating any objects
+    private boolean readNext(Text key, Text value) throws IOException {
         if (hasFinished) {
             return false;
         }
-        if (fetchedRecords.size() == 0 ||
-                positionToReadInFetchedRecords >= fetchedRecords.size()) {
-            //records haven't been fetched yet, or fetched records have been exhausted
-            //next batch of records is now fetched from the stream
-            getRecordsFromKinesis();
-            positionToReadInFetchedRecords = 0;
+        while (true) {
+            if (aggregatedRecord != null) {
+                if (nextUserRecord(key, value)) {
+                    return true;
+                }
+                //the aggregated record is done once all its user records are read
+                lastReadSeqNo = aggregatedRecord.getSequenceNumber();
+                aggregatedRecord = null;
+            }
+            if (positionToReadInFetchedRecords >= fetchedRecords.size()) {
+                //records haven't been fetched yet, or fetched records have been exhausted
+                //next batch of records is now fetched from the stream
+                if (checkpointingEnabled && !fetchedRecords.isEmpty()
+                        && lastReadSeqNo != null) {
+                    checkpointer.checkpointIfTimeUp(lastReadSeqNo);
+                }
+                KinesisRecordBatch batch = prefetcher != null
+                        ? prefetcher.take() : getRecordsFromKinesis();
+                fetchedRecords = batch.getRecords();
+                shardClosed = batch.isShardClosed();
+                progress.onFetch(batch.getMillisBehindLatest(),
+                        batch.getLastFetchedArrivalTimeMs());
+                positionToReadInFetchedRecords = 0;
+                if (isTimedOut()) {
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info("Closing iteration due to timeout");
+                    }
+                    return false;
+                }
+                if (fetchedRecords.size() == 0) {
+                    if (checkpointingEnabled
+                            && (batchEndsShard || shardClosed)) {
+                        //the closed shard has been read to the end, so the next
+                        //iteration need not read it again
+                        lastReadSeqNo = KinesisShardCheckpointer.SHARD_END;
+                    }
+                    return false;
+                }
+                //sequence numbers increase within a batch
+                batchCrossesStart = startSeqNo != null
+                        && HiveKinesisUtils.compareSequenceNumbers(
+                                fetchedRecords.get(0).getSequenceNumber(), startSeqNo) < 0;
+                batchCrossesEnd = endSeqNo != null
+                        && HiveKinesisUtils.compareSequenceNumbers(fetchedRecords.get(
+                                fetchedRecords.size() - 1).getSequenceNumber(), endSeqNo) > 0;
+                //reading stops at the end of the split, which is the end of
+                //a shard closed when planned, before kinesis is asked again
+                batchEndsShard = shardEndSeqNo != null
+                        && HiveKinesisUtils.compareSequenceNumbers(fetchedRecords.get(
+                                fetchedRecords.size() - 1).getSequenceNumber(),
+                                shardEndSeqNo) >= 0;
+                batchRepeatsRead = isSequenceNumber(lastReadSeqNo)
+                        && HiveKinesisUtils.compareSequenceNumbers(
+                                fetchedRecords.get(0).getSequenceNumber(), lastReadSeqNo) <= 0;
+            }
+            Record rec = fetchedRecords.get(positionToReadInFetchedRecords++);
+            String seqNo = rec.getSequenceNumber();
+            if (batchRepeatsRead
+                    && HiveKinesisUtils.compareSequenceNumbers(seqNo, lastReadSeqNo) <= 0) {
+                //read already
+                continue;
+            }
+            if (batchCrossesStart
+                    && HiveKinesisUtils.compareSequenceNumbers(seqNo, startSeqNo) < 0) {
+                //before the start of the split
+                continue;
+            }
+            if (batchCrossesEnd
+                    && HiveKinesisUtils.compareSequenceNumbers(seqNo, endSeqNo) > 0) {
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Reached end of split at " + endSeqNo);
+                }
+                hasFinished = true;
+                return false;
+            }
+            long arrivalTimeMs = KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME;
+            if (rec.getApproximateArrivalTimestamp() != null) {
+                arrivalTimeMs = rec.getApproximateArrivalTimestamp().getTime();
+                if (arrivalTimeMs > arrivalTimeoutMs) {
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info("Reached records arriving after " + arrivalTimeoutMs);
+                    }
+                    hasFinished = true;
+                    return false;
+                }
+            }
+            ByteBuffer data = rec.getData();
+            progress.onRecordRead(seqNo, arrivalTimeMs, data.remaining());
+            if (arrivalTimeMs != KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME
+                    && (arrivalTimeMs < minArrivalTimeMs || arrivalTimeMs > maxArrivalTimeMs)) {
+                continue;
+            }
+            if (deaggregator != null && deaggregator.reset(data)) {
+                aggregatedRecord = rec;
+                aggregatedArrivalTimeMs = arrivalTimeMs;
+                nextSubRecord = 0;
+                continue;
+            }
+            if (partitionKey != null && !partitionKey.equals(rec.getPartitionKey())) {
+                continue;
+            }
+            setKey(key, rec.getPartitionKey());
+            setPayload(value, data);
+            if (value instanceof KinesisRecordWritable) {
+                KinesisRecordWritable recordValue = (KinesisRecordWritable) value;
+                recordValue.setArrivalTimeMs(arrivalTimeMs);
+                recordValue.setShardId(shardId);
+                recordValue.setSequenceNumber(seqNo);
+                recordValue.setPartitionKey(rec.getPartitionKey());
+                recordValue.setSubSequenceNumber(0L);
+            }
+            lastReadSeqNo = seqNo;
+            return true;
         }
-        if (iterationTimeout.isBeforeNow()) {
-            if (LOG.isInfoEnabled()) {
-                LOG.info("Closing iteration due to timeout");
+    }
+
+    //false for null and for the markers a checkpoint may hold instead of
+    //a sequence number
+    private static boolean isSequenceNumber(String seqNo) {
+        return seqNo != null && !seqNo.isEmpty() && Character.isDigit(seqNo.charAt(0));
+    }
+
+    //sets the key to the partition key. Text.set(String) allocates a buffer
+    //to encode the string, so keys of ASCII characters, as partition keys
+    //usually are, are copied into the key instead.
+    private void setKey(Text key, String partitionKey) {
+        int length = partitionKey.length();
+        if (length > keyBytes.length) {
+            key.set(partitionKey);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = partitionKey.charAt(i);
+            if (c >= 0x80) {
+                key.set(partitionKey);
+                return;
             }
-            return false;
+            keyBytes[i] = (byte) c;
         }
-        if (shardClosed || fetchedRecords.size() == 0) {
-            return false;
+        key.set(keyBytes, 0, length);
+    }
+
+    //reads the next user record of the current aggregated record
+    private boolean nextUserRecord(Text key, Text value) throws IOException {
+        while (nextSubRecord < deaggregator.getRecordCount()) {
+            int subRecord = nextSubRecord++;
+            String userPartitionKey = deaggregator.getPartitionKey(subRecord);
+            if (partitionKey != null && !partitionKey.equals(userPartitionKey)) {
+                continue;
+            }
+            setKey(key, userPartitionKey);
+            setPayload(value, deaggregator.getData(subRecord));
+            if (value instanceof KinesisRecordWritable) {
+                KinesisRecordWritable recordValue = (KinesisRecordWritable) value;
+                recordValue.setArrivalTimeMs(aggregatedArrivalTimeMs);
+                recordValue.setShardId(shardId);
+                recordValue.setSequenceNumber(aggregatedRecord.getSequenceNumber());
+                recordValue.setPartitionKey(userPartitionKey);
+                recordValue.setSubSequenceNumber(subRecord);
+            }
+            return true;
         }
-        Record rec = (Record) fetchedRecords.get(positionToReadInFetchedRecords++);
-        key.set(rec.getPartitionKey());
-        value.set(rec.getData().array());
-        lastReadSeqNo = rec.getSequenceNumber();
-        if (checkpointingEnabled) {
-            checkpointer.checkpointIfTimeUp(lastReadSeqNo);
+        return false;
+    }
+
+    //sets the value to the payload, decompressed if a codec is set. The data
+    //is not copied if the value is a KinesisRecordWritable and the payload
+    //starts at the beginning of its array, which the user records of an
+    //aggregated record do not.
+    private void setPayload(Text value, ByteBuffer data) throws IOException {
+        ByteBuffer payload = decoder == null ? data : decoder.decode(data);
+        if (value instanceof KinesisRecordWritable) {
+            ((KinesisRecordWritable) value).setData(payload);
+        } else {
+            value.set(payload.array(), payload.arrayOffset() + payload.position(),
+                    payload.remaining());
         }
-        return true;
     }
 
     @Override
@@ -216,26 +729,72 @@ public class HiveKinesisRecordReader implements RecordReader<Text, Text> {
 
     @Override
     public Text createValue() {
-        return new Text();
+        return new KinesisRecordWritable();
     }
 
     @Override
     public void close() {
+        if (prefetcher != null) {
+            //waits for a fetch in flight, so that the counts logged below
+            //are not changing
+            prefetcher.close();
+        }
+        if (openWhenPlanned && shardClosed) {
+            //the stream has been resharded since its shards were listed
+            KinesisStreamMetadataCache.getInstance().invalidate(streamName);
+        }
         if (LOG.isInfoEnabled()) {
             LOG.info("Iteration completed.");
+            LOG.info("GetShardIterator calls made: "
+                    + shardIterators.getIteratorRequests()
+                    + ", saved by reusing iterators: "
+                    + shardIterators.getIteratorRequestsSaved());
+            if (batchSizer != null) {
+                LOG.info("Final batch size: " + batchSizer.getBatchSize()
+                        + ", throttled calls: " + batchSizer.getThrottledCalls());
+            }
+            if (segmentCache != null) {
+                LOG.info("Segments read from the local cache: "
+                        + segmentCache.getSegmentsRead() + ", written: "
+                        + segmentCache.getSegmentsWritten());
+            }
+            if (sharedCache != null) {
+                LOG.info("Segments read from the shared cache: "
+                        + sharedCache.getSegmentsRead() + ", written: "
+                        + sharedCache.getSegmentsWritten());
+            }
+            if (rateLimiter != null) {
+                LOG.info("Time spent waiting for the shard rate limit: "
+                        + rateLimitWaitNanos / 1000000L + " ms (all readers of the shard: "
+                        + rateLimiter.getWaitTimeMs() + " ms over "
+                        + rateLimiter.getCalls() + " calls)");
+            }
         }
         if (checkpointingEnabled && lastReadSeqNo != null) {
             checkpointer.checkpoint(lastReadSeqNo);
         }
+        if (checkpointingEnabled) {
+            for (String finishedShardId : finishedShardIds) {
+                checkpointer.checkpointShardEnd(finishedShardId);
+            }
+        }
+        if (ownsCheckpointer) {
+            checkpointer.close();
+        }
+        if (shardSource instanceof KinesisProxyShardSource) {
+            KinesisClientRegistry.release(
+                    ((KinesisProxyShardSource) shardSource).getKinesisProxy());
+        }
+        metrics.close();
     }
 
     @Override
     public float getProgress() {
-        return 0.0f;
+        return progress.getProgress();
     }
 
     @Override
     public long getPos() {
-        return 0L;
+        return progress.getPos();
     }
 }
@@ -2,6 +2,7 @@ package com.qubole.hive.kinesis;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Random;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -11,10 +12,14 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.Progressable;
 
 import com.amazonaws.services.kinesis.AmazonKinesis;
-import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+
+import com.qubole.hive.kinesis.util.Constants;
 
 class HiveKinesisRecordWriter implements
         RecordWriter<Text, Text>,
@@ -24,8 +29,21 @@ class HiveKinesisRecordWriter implements
 
     private AmazonKinesis kinesis;
     private String streamName;
+    private KinesisMetrics metrics;
+    private KinesisRetryPolicy retryPolicy;
+    private boolean closed = false;
 
     public HiveKinesisRecordWriter(AmazonKinesis kinesis, String streamName) {
+        this(kinesis, streamName, null, null);
+    }
+
+    /**
+     * conf sets the retries of failed writes, which are the defaults if it
+     * is null. progress is told that the task is alive while the stream is
+     * throttled, and keeps the counters of the writer if it is a Reporter.
+     */
+    public HiveKinesisRecordWriter(AmazonKinesis kinesis, String streamName,
+            JobConf conf, Progressable progress) {
         if (kinesis == null) {
             throw new IllegalArgumentException("kinesis must not be null.");
         }
@@ -34,11 +52,18 @@ class HiveKinesisRecordWriter implements
         }
         this.kinesis = kinesis;
         this.streamName = streamName;
+        this.metrics = new KinesisMetrics(progress, streamName, null);
+        this.retryPolicy = conf == null
+                ? new KinesisRetryPolicy(Constants.DEFAULT_RETRY_BACKOFF_BASE_MS,
+                        Constants.DEFAULT_RETRY_BACKOFF_MAX_MS,
+                        Constants.DEFAULT_RETRY_BUDGET, metrics, new Random())
+                : KinesisRetryPolicy.fromConf(conf, metrics);
     }
 
-    private void sendKinesisRecord(ByteBuffer data) {
-        boolean done = false;
-        while (!done) {
+    //throttled and transient failures are retried, as the retry policy allows
+    private void sendKinesisRecord(ByteBuffer data) throws IOException {
+        KinesisRetryPolicy.Backoff backoff = retryPolicy.newBackoff();
+        while (true) {
             PutRecordRequest putReq = new PutRecordRequest();
             putReq.setStreamName(streamName);
             //random number is used as partition key
@@ -46,17 +71,26 @@ class HiveKinesisRecordWriter implements
             putReq.setPartitionKey(String.valueOf(Math.random())); 
             putReq.setSequenceNumberForOrdering(null);
             putReq.setData(data);
+            long startNanos = System.nanoTime();
+            RuntimeException failure;
             try {
-                kinesis.putRecord(putReq);
-            } catch(ProvisionedThroughputExceededException ex) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Throughput exceeded. Sleeping for 10 ms and retrying");
-                }
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                PutRecordResult result = kinesis.putRecord(putReq);
+                metrics.onPutRecord(result.getShardId(), System.nanoTime() - startNanos,
+                        data.remaining());
+                return;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            if (KinesisRetryPolicy.classify(failure) == KinesisRetryPolicy.ErrorKind.THROTTLED) {
+                metrics.onPutRecordThrottled();
+            }
+            try {
+                if (!retryPolicy.retry(failure, backoff)) {
+                    throw new IOException("Cannot write to stream " + streamName, failure);
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing to stream " + streamName, e);
             }
         }
     }
@@ -68,15 +102,28 @@ class HiveKinesisRecordWriter implements
 
     @Override
     public void write(Text key, Text value) throws IOException {
-        ByteBuffer buffer = ByteBuffer.wrap(value.getBytes());
+        //the array of a reused Text holds earlier, longer rows past its length
+        ByteBuffer buffer = ByteBuffer.wrap(value.getBytes(), 0, value.getLength());
         sendKinesisRecord(buffer);
     }
 
     @Override
     public void close(Reporter reporter) {
+        close();
     }
 
     @Override
     public void close(boolean abort) {
+        close();
+    }
+
+    //ends the use of the client, which the writer was handed when it was
+    //created by HiveKinesisOutputFormat
+    private void close() {
+        if (!closed) {
+            closed = true;
+            metrics.close();
+            KinesisClientRegistry.release(kinesis);
+        }
     }
 }
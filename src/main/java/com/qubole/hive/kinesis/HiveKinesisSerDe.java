@@ -0,0 +1,351 @@
+package com.qubole.hive.kinesis;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.common.JavaUtils;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.AbstractSerDe;
+import org.apache.hadoop.hive.serde2.SerDe;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.SerDeStats;
+import org.apache.hadoop.hive.serde2.io.TimestampWritable;
+import org.apache.hadoop.hive.serde2.lazy.LazySimpleSerDe;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * SerDe for kinesis tables. The record data is handled by the payload SerDe
+ * (kinesis.payload.serde, LazySimpleSerDe by default), and the columns named
+ * in the table properties are populated from the attributes of the kinesis
+ * record, without parsing the data.
+ */
+public class HiveKinesisSerDe extends AbstractSerDe {
+
+    private static final Log LOG = LogFactory.getLog(HiveKinesisSerDe.class);
+    //partition keys are at most 256 characters long, sequence numbers less
+    private static final int MAX_ASCII_ATTRIBUTE_LENGTH = 256;
+
+    private SerDe payloadSerDe;
+
+    //the following are used only if record attributes are mapped to columns
+    private boolean hasRecordColumns = false;
+    private int numColumns;
+    //record attribute of each column, null for payload columns
+    private KinesisRecordAttribute[] columnAttribute;
+    private boolean arrivalTimeAsTimestamp;
+    //index of the payload field for each column, -1 for record attribute columns
+    private int[] payloadFieldIndex;
+    private StructObjectInspector payloadInspector;
+    private List<? extends StructField> payloadFields;
+    private ObjectInspector rowInspector;
+    private List<Object> row;
+    private Text[] attributeText;
+    //value the text of each attribute column was last set to
+    private String[] attributeValue;
+    //buffer the attributes are encoded into
+    private final byte[] attributeBytes = new byte[MAX_ASCII_ATTRIBUTE_LENGTH];
+    private final Timestamp arrivalTimestamp = new Timestamp(0L);
+    private final TimestampWritable arrivalTimestampWritable = new TimestampWritable();
+    private final LongWritable arrivalTimeWritable = new LongWritable();
+    private final LongWritable subSequenceNumberWritable = new LongWritable();
+    private ObjectInspector payloadWriteInspector;
+    private List<Object> payloadRow;
+
+    @Override
+    public void initialize(Configuration conf, Properties tbl)
+            throws SerDeException {
+        String payloadSerDeName = tbl.getProperty(Constants.PAYLOAD_SERDE);
+        if (payloadSerDeName == null && conf != null) {
+            payloadSerDeName = conf.get(Constants.PAYLOAD_SERDE);
+        }
+        payloadSerDe = createPayloadSerDe(payloadSerDeName, conf);
+
+        String columnNameProperty = tbl.getProperty(serdeConstants.LIST_COLUMNS);
+        String columnTypeProperty = tbl.getProperty(serdeConstants.LIST_COLUMN_TYPES);
+        if (!hasAttributeColumn(tbl) || columnNameProperty == null
+                || columnTypeProperty == null) {
+            payloadSerDe.initialize(conf, tbl);
+            return;
+        }
+
+        List<String> columnNames = Arrays.asList(columnNameProperty.split(","));
+        List<TypeInfo> columnTypes =
+                TypeInfoUtils.getTypeInfosFromTypeString(columnTypeProperty);
+        numColumns = columnNames.size();
+        columnAttribute = new KinesisRecordAttribute[numColumns];
+        attributeText = new Text[numColumns];
+        attributeValue = new String[numColumns];
+        for (KinesisRecordAttribute attribute : KinesisRecordAttribute.values()) {
+            String column = tbl.getProperty(attribute.getColumnProperty());
+            if (column == null) {
+                continue;
+            }
+            int index = indexOfColumn(columnNames, column);
+            if (index < 0) {
+                throw new SerDeException("Column " + column + " given by "
+                        + attribute.getColumnProperty() + " does not exist");
+            }
+            if (columnAttribute[index] != null) {
+                throw new SerDeException("Column " + column
+                        + " is mapped to more than one record attribute");
+            }
+            TypeInfo type = columnTypes.get(index);
+            if (attribute == KinesisRecordAttribute.ARRIVAL_TIME) {
+                if (type.equals(TypeInfoFactory.timestampTypeInfo)) {
+                    arrivalTimeAsTimestamp = true;
+                } else if (type.equals(TypeInfoFactory.longTypeInfo)) {
+                    arrivalTimeAsTimestamp = false;
+                } else {
+                    throw new SerDeException("Column " + column
+                            + " must be of type timestamp or bigint");
+                }
+            } else if (attribute == KinesisRecordAttribute.SUB_SEQUENCE_NUMBER) {
+                if (!type.equals(TypeInfoFactory.longTypeInfo)) {
+                    throw new SerDeException("Column " + column
+                            + " must be of type bigint");
+                }
+            } else {
+                if (!type.equals(TypeInfoFactory.stringTypeInfo)) {
+                    throw new SerDeException("Column " + column
+                            + " must be of type string");
+                }
+                attributeText[index] = new Text();
+            }
+            columnAttribute[index] = attribute;
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Column " + column + " is mapped to " + attribute);
+            }
+        }
+        hasRecordColumns = true;
+
+        //the payload SerDe sees only the columns that are not record attributes
+        StringBuilder payloadColumnNames = new StringBuilder();
+        StringBuilder payloadColumnTypes = new StringBuilder();
+        payloadFieldIndex = new int[numColumns];
+        int numPayloadColumns = 0;
+        for (int i = 0; i < numColumns; i++) {
+            if (columnAttribute[i] != null) {
+                payloadFieldIndex[i] = -1;
+                continue;
+            }
+            if (numPayloadColumns > 0) {
+                payloadColumnNames.append(",");
+                payloadColumnTypes.append(":");
+            }
+            payloadColumnNames.append(columnNames.get(i));
+            payloadColumnTypes.append(columnTypes.get(i).getTypeName());
+            payloadFieldIndex[i] = numPayloadColumns++;
+        }
+        Properties payloadTbl = new Properties();
+        payloadTbl.putAll(tbl);
+        payloadTbl.setProperty(serdeConstants.LIST_COLUMNS, payloadColumnNames.toString());
+        payloadTbl.setProperty(serdeConstants.LIST_COLUMN_TYPES, payloadColumnTypes.toString());
+        payloadSerDe.initialize(conf, payloadTbl);
+
+        payloadInspector = (StructObjectInspector) payloadSerDe.getObjectInspector();
+        payloadFields = payloadInspector.getAllStructFieldRefs();
+        List<ObjectInspector> columnInspectors = new ArrayList<ObjectInspector>(numColumns);
+        for (int i = 0; i < numColumns; i++) {
+            if (columnAttribute[i] == KinesisRecordAttribute.ARRIVAL_TIME) {
+                columnInspectors.add(arrivalTimeAsTimestamp ?
+                        PrimitiveObjectInspectorFactory.writableTimestampObjectInspector :
+                        PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+            } else if (columnAttribute[i] == KinesisRecordAttribute.SUB_SEQUENCE_NUMBER) {
+                columnInspectors.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+            } else if (columnAttribute[i] != null) {
+                columnInspectors.add(
+                        PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+            } else {
+                columnInspectors.add(payloadFields.get(payloadFieldIndex[i])
+                        .getFieldObjectInspector());
+            }
+        }
+        rowInspector = ObjectInspectorFactory.getStandardStructObjectInspector(
+                columnNames, columnInspectors);
+        row = new ArrayList<Object>(numColumns);
+        for (int i = 0; i < numColumns; i++) {
+            row.add(null);
+        }
+    }
+
+    private static boolean hasAttributeColumn(Properties tbl) {
+        for (KinesisRecordAttribute attribute : KinesisRecordAttribute.values()) {
+            if (tbl.getProperty(attribute.getColumnProperty()) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOfColumn(List<String> columnNames, String column) {
+        for (int i = 0; i < columnNames.size(); i++) {
+            if (columnNames.get(i).equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static SerDe createPayloadSerDe(String className, Configuration conf)
+            throws SerDeException {
+        if (className == null) {
+            return new LazySimpleSerDe();
+        }
+        try {
+            Class<?> serDeClass = Class.forName(className, true,
+                    JavaUtils.getClassLoader());
+            return (SerDe) ReflectionUtils.newInstance(serDeClass, conf);
+        } catch (ClassNotFoundException e) {
+            throw new SerDeException("Payload SerDe " + className + " not found", e);
+        }
+    }
+
+    @Override
+    public Object deserialize(Writable blob) throws SerDeException {
+        Object payload = payloadSerDe.deserialize(blob);
+        if (!hasRecordColumns) {
+            return payload;
+        }
+        for (int i = 0; i < numColumns; i++) {
+            if (payloadFieldIndex[i] >= 0) {
+                row.set(i, payloadInspector.getStructFieldData(payload,
+                        payloadFields.get(payloadFieldIndex[i])));
+            } else if (blob instanceof KinesisRecordWritable) {
+                row.set(i, getAttribute(i, (KinesisRecordWritable) blob));
+            } else {
+                row.set(i, null);
+            }
+        }
+        return row;
+    }
+
+    private Object getAttribute(int column, KinesisRecordWritable record) {
+        switch (columnAttribute[column]) {
+        case ARRIVAL_TIME:
+            return getArrivalTime(record);
+        case SHARD_ID:
+            return toText(column, record.getShardId());
+        case SEQUENCE_NUMBER:
+            return toText(column, record.getSequenceNumber());
+        case PARTITION_KEY:
+            return toText(column, record.getPartitionKey());
+        case SUB_SEQUENCE_NUMBER:
+            subSequenceNumberWritable.set(record.getSubSequenceNumber());
+            return subSequenceNumberWritable;
+        default:
+            return null;
+        }
+    }
+
+    //sets the text of an attribute column. Text.set(String) allocates a
+    //buffer to encode the string, so the text is left as it is while the
+    //value does not change, as the shard id does not within a split, and
+    //ASCII values, as the attributes usually are, are copied into it.
+    private Text toText(int column, String value) {
+        if (value == null) {
+            return null;
+        }
+        Text text = attributeText[column];
+        if (value.equals(attributeValue[column])) {
+            return text;
+        }
+        attributeValue[column] = value;
+        int length = value.length();
+        if (length > attributeBytes.length) {
+            text.set(value);
+            return text;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                text.set(value);
+                return text;
+            }
+            attributeBytes[i] = (byte) c;
+        }
+        text.set(attributeBytes, 0, length);
+        return text;
+    }
+
+    private Object getArrivalTime(KinesisRecordWritable record) {
+        long arrivalTimeMs = record.getArrivalTimeMs();
+        if (arrivalTimeMs == KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME) {
+            return null;
+        }
+        if (arrivalTimeAsTimestamp) {
+            arrivalTimestamp.setTime(arrivalTimeMs);
+            arrivalTimestampWritable.set(arrivalTimestamp);
+            return arrivalTimestampWritable;
+        }
+        arrivalTimeWritable.set(arrivalTimeMs);
+        return arrivalTimeWritable;
+    }
+
+    @Override
+    public ObjectInspector getObjectInspector() throws SerDeException {
+        if (!hasRecordColumns) {
+            return payloadSerDe.getObjectInspector();
+        }
+        return rowInspector;
+    }
+
+    @Override
+    public Class<? extends Writable> getSerializedClass() {
+        return payloadSerDe.getSerializedClass();
+    }
+
+    @Override
+    public Writable serialize(Object obj, ObjectInspector objInspector)
+            throws SerDeException {
+        if (!hasRecordColumns) {
+            return payloadSerDe.serialize(obj, objInspector);
+        }
+        //record attribute columns are set by kinesis, and are not written
+        StructObjectInspector structInspector = (StructObjectInspector) objInspector;
+        List<? extends StructField> fields = structInspector.getAllStructFieldRefs();
+        if (payloadWriteInspector == null) {
+            List<String> names = new ArrayList<String>();
+            List<ObjectInspector> inspectors = new ArrayList<ObjectInspector>();
+            for (int i = 0; i < numColumns; i++) {
+                if (payloadFieldIndex[i] >= 0) {
+                    names.add(payloadFields.get(payloadFieldIndex[i]).getFieldName());
+                    inspectors.add(fields.get(i).getFieldObjectInspector());
+                }
+            }
+            payloadWriteInspector =
+                    ObjectInspectorFactory.getStandardStructObjectInspector(names, inspectors);
+            payloadRow = new ArrayList<Object>(names.size());
+        }
+        payloadRow.clear();
+        for (int i = 0; i < numColumns; i++) {
+            if (payloadFieldIndex[i] >= 0) {
+                payloadRow.add(structInspector.getStructFieldData(obj, fields.get(i)));
+            }
+        }
+        return payloadSerDe.serialize(payloadRow, payloadWriteInspector);
+    }
+
+    @Override
+    public SerDeStats getSerDeStats() {
+        return payloadSerDe.getSerDeStats();
+    }
+}
@@ -7,15 +7,19 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.metastore.HiveMetaHook;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
 import org.apache.hadoop.hive.ql.plan.TableDesc;
 import org.apache.hadoop.hive.ql.metadata.DefaultStorageHandler;
+import org.apache.hadoop.hive.ql.metadata.HiveStoragePredicateHandler;
 import org.apache.hadoop.hive.ql.security.authorization.HiveAuthorizationProvider;
+import org.apache.hadoop.hive.serde2.Deserializer;
 import org.apache.hadoop.hive.serde2.SerDe;
-import org.apache.hadoop.hive.serde2.lazy.LazySimpleSerDe;
 import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputFormat;
 
-public class HiveKinesisStorageHandler extends DefaultStorageHandler {
+public class HiveKinesisStorageHandler extends DefaultStorageHandler
+        implements HiveStoragePredicateHandler {
     
     private static final Log LOG = LogFactory.getLog(HiveKinesisRecordReader.class);
 
@@ -33,7 +37,7 @@ public class HiveKinesisStorageHandler extends DefaultStorageHandler {
 
     @Override
     public Class<? extends SerDe> getSerDeClass() {
-        return LazySimpleSerDe.class;
+        return HiveKinesisSerDe.class;
     }
 
     @Override
@@ -70,6 +74,14 @@ public class HiveKinesisStorageHandler extends DefaultStorageHandler {
         configureTableJobProperties(tableDesc, jobProperties);
     }
 
+    @Override
+    public DecomposedPredicate decomposePredicate(JobConf jobConf,
+            Deserializer deserializer, ExprNodeDesc predicate) {
+        //conditions on columns mapped to kinesis record attributes
+        //are used to narrow down the records read from each shard
+        return KinesisPredicateAnalyzer.fromConf(jobConf).decompose(predicate);
+    }
+
     @Override
     public void setConf(Configuration conf) {
         this.config = conf;
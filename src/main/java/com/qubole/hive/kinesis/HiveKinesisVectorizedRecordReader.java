@@ -0,0 +1,110 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedBatchUtil;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatchCtx;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+
+/**
+ * Reads records in batches of rows for vectorized execution. The records
+ * are read by the row reader of the split, and each record is deserialized
+ * by the SerDe of the table straight into the column vectors of the batch.
+ * This covers the record attribute columns and any payload SerDe, such as
+ * delimited text or JSON.
+ */
+public class HiveKinesisVectorizedRecordReader
+        implements RecordReader<NullWritable, VectorizedRowBatch> {
+
+    private final RecordReader<Text, Text> reader;
+    private final VectorizedRowBatchCtx rbCtx;
+    private final Text key;
+    private final Text value;
+    //holds the bytes of the string columns of the current batch
+    private final DataOutputBuffer buffer = new DataOutputBuffer();
+
+    public HiveKinesisVectorizedRecordReader(RecordReader<Text, Text> reader,
+            JobConf conf, FileSplit split) throws IOException {
+        this(reader, createContext(conf, split));
+    }
+
+    //package access for testing
+    HiveKinesisVectorizedRecordReader(RecordReader<Text, Text> reader,
+            VectorizedRowBatchCtx rbCtx) {
+        this.reader = reader;
+        this.rbCtx = rbCtx;
+        this.key = reader.createKey();
+        this.value = reader.createValue();
+    }
+
+    private static VectorizedRowBatchCtx createContext(JobConf conf, FileSplit split)
+            throws IOException {
+        VectorizedRowBatchCtx rbCtx = new VectorizedRowBatchCtx();
+        try {
+            rbCtx.init(conf, split);
+        } catch (Exception e) {
+            throw new IOException("Cannot read the split in vectorized mode", e);
+        }
+        return rbCtx;
+    }
+
+    @Override
+    public boolean next(NullWritable nullKey, VectorizedRowBatch batch) throws IOException {
+        VectorizedBatchUtil.setNoNullFields(batch);
+        buffer.reset();
+        batch.selectedInUse = false;
+        for (int i = 0; i < batch.numCols; i++) {
+            batch.cols[i].isRepeating = false;
+        }
+        int rows = 0;
+        try {
+            while (rows < VectorizedRowBatch.DEFAULT_SIZE && reader.next(key, value)) {
+                rbCtx.addRowToBatch(rows, value, batch, buffer);
+                rows++;
+            }
+        } catch (HiveException e) {
+            throw new IOException("Cannot add the record to the batch", e);
+        } catch (SerDeException e) {
+            throw new IOException("Cannot deserialize the record", e);
+        }
+        batch.size = rows;
+        return rows > 0;
+    }
+
+    @Override
+    public NullWritable createKey() {
+        return NullWritable.get();
+    }
+
+    @Override
+    public VectorizedRowBatch createValue() {
+        try {
+            return rbCtx.createVectorizedRowBatch();
+        } catch (HiveException e) {
+            throw new RuntimeException("Cannot create the row batch", e);
+        }
+    }
+
+    @Override
+    public long getPos() throws IOException {
+        return reader.getPos();
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+        return reader.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
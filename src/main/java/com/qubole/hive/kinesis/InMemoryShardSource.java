@@ -0,0 +1,207 @@
+package com.qubole.hive.kinesis;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.InvalidArgumentException;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+
+import com.qubole.hive.kinesis.util.HiveKinesisUtils;
+
+/**
+ * Stream held in memory, which stands in for kinesis to measure the readers
+ * in isolation. Records are added to the shards with increasing sequence
+ * numbers, and are returned without any limit on the rate of calls or
+ * bytes. Shards cover all hash keys. An iterator is the shard id and the
+ * position of the next record in the shard, so iterators do not expire.
+ */
+public class InMemoryShardSource implements KinesisShardSource {
+
+    private static final String MAX_HASH_KEY = "340282366920938463463374607431768211455";
+
+    private static class ShardRecords {
+        private final Shard shard;
+        //records are only appended, so positions stay valid
+        private final List<Record> records = new ArrayList<Record>();
+
+        ShardRecords(Shard shard) {
+            this.shard = shard;
+        }
+    }
+
+    //guarded by this
+    private final Map<String, ShardRecords> shards = new LinkedHashMap<String, ShardRecords>();
+    //follows the sequence numbers of all records
+    private BigInteger nextSeqNo = BigInteger.ONE;
+
+    public synchronized void addShard(String shardId) {
+        if (shards.containsKey(shardId)) {
+            throw new IllegalArgumentException("Shard " + shardId + " exists already");
+        }
+        shards.put(shardId, new ShardRecords(new Shard()
+                .withShardId(shardId)
+                .withHashKeyRange(new HashKeyRange()
+                        .withStartingHashKey("0")
+                        .withEndingHashKey(MAX_HASH_KEY))
+                .withSequenceNumberRange(new SequenceNumberRange()
+                        .withStartingSequenceNumber(nextSeqNo.toString()))));
+    }
+
+    private ShardRecords getShard(String shardId) {
+        ShardRecords shard = shards.get(shardId);
+        if (shard == null) {
+            throw new ResourceNotFoundException("Shard " + shardId + " does not exist");
+        }
+        return shard;
+    }
+
+    /**
+     * Adds a record at the end of the shard, and returns its sequence
+     * number.
+     */
+    public synchronized String putRecord(String shardId, String partitionKey,
+            ByteBuffer data, Date arrivalTime) {
+        String seqNo = nextSeqNo.toString();
+        addRecord(shardId, new Record()
+                .withSequenceNumber(seqNo)
+                .withPartitionKey(partitionKey)
+                .withData(data)
+                .withApproximateArrivalTimestamp(arrivalTime));
+        return seqNo;
+    }
+
+    /**
+     * Adds a record, which keeps its sequence number, at the end of the
+     * shard. Its sequence number must follow that of the last record of
+     * the shard.
+     */
+    protected synchronized void addRecord(String shardId, Record rec) {
+        ShardRecords shard = getShard(shardId);
+        if (shard.shard.getSequenceNumberRange().getEndingSequenceNumber() != null) {
+            throw new IllegalStateException("Shard " + shardId + " is closed");
+        }
+        if (!shard.records.isEmpty() && HiveKinesisUtils.compareSequenceNumbers(
+                rec.getSequenceNumber(),
+                shard.records.get(shard.records.size() - 1).getSequenceNumber()) <= 0) {
+            throw new IllegalArgumentException("Sequence number " + rec.getSequenceNumber()
+                    + " does not follow the records of shard " + shardId);
+        }
+        nextSeqNo = nextSeqNo.max(new BigInteger(rec.getSequenceNumber()).add(BigInteger.ONE));
+        shard.records.add(rec);
+    }
+
+    //no records are added to a closed shard, which ends with its last record
+    public synchronized void closeShard(String shardId) {
+        ShardRecords shard = getShard(shardId);
+        SequenceNumberRange range = shard.shard.getSequenceNumberRange();
+        range.setEndingSequenceNumber(shard.records.isEmpty()
+                ? range.getStartingSequenceNumber()
+                : shard.records.get(shard.records.size() - 1).getSequenceNumber());
+    }
+
+    @Override
+    public synchronized List<Shard> getShardList() {
+        List<Shard> shardList = new ArrayList<Shard>(shards.size());
+        for (ShardRecords shard : shards.values()) {
+            shardList.add(shard.shard.clone());
+        }
+        return shardList;
+    }
+
+    @Override
+    public synchronized String getIterator(String shardId, String iteratorType,
+            String sequenceNumber) {
+        List<Record> records = getShard(shardId).records;
+        int position;
+        if ("TRIM_HORIZON".equals(iteratorType)) {
+            position = 0;
+        } else if ("LATEST".equals(iteratorType)) {
+            position = records.size();
+        } else if ("AT_SEQUENCE_NUMBER".equals(iteratorType)) {
+            position = firstAfter(records, sequenceNumber, false);
+        } else if ("AFTER_SEQUENCE_NUMBER".equals(iteratorType)) {
+            position = firstAfter(records, sequenceNumber, true);
+        } else {
+            throw new InvalidArgumentException("Unknown iterator type " + iteratorType);
+        }
+        return shardId + ":" + position;
+    }
+
+    //position of the first record after the sequence number, or at it
+    private static int firstAfter(List<Record> records, String seqNo, boolean after) {
+        int low = 0;
+        int high = records.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = HiveKinesisUtils.compareSequenceNumbers(
+                    records.get(mid).getSequenceNumber(), seqNo);
+            if (cmp < 0 || (after && cmp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public synchronized String getIterator(String shardId, Date timestamp) {
+        List<Record> records = getShard(shardId).records;
+        int position = 0;
+        while (position < records.size()
+                && records.get(position).getApproximateArrivalTimestamp() != null
+                && records.get(position).getApproximateArrivalTimestamp().before(timestamp)) {
+            position++;
+        }
+        return shardId + ":" + position;
+    }
+
+    @Override
+    public synchronized GetRecordsResult get(String shardIterator, int maxRecords) {
+        int separator = shardIterator.lastIndexOf(':');
+        if (separator < 0) {
+            throw new InvalidArgumentException("Invalid shard iterator " + shardIterator);
+        }
+        String shardId = shardIterator.substring(0, separator);
+        int position = Integer.parseInt(shardIterator.substring(separator + 1));
+        ShardRecords shard = getShard(shardId);
+        int end = Math.min(shard.records.size(), position + maxRecords);
+        List<Record> batch = new ArrayList<Record>(end - position);
+        for (Record rec : shard.records.subList(position, end)) {
+            //the reader may move the position of the data
+            batch.add(rec.clone().withData(rec.getData().duplicate()));
+        }
+        boolean closed = shard.shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+        return new GetRecordsResult()
+                .withRecords(batch)
+                .withNextShardIterator(closed && end == shard.records.size()
+                        ? null : shardId + ":" + end)
+                .withMillisBehindLatest(millisBehind(shard.records, end));
+    }
+
+    //time from the arrival of the last record returned to that of the newest record
+    private static long millisBehind(List<Record> records, int end) {
+        if (end == records.size()) {
+            return 0L;
+        }
+        if (end == 0) {
+            return 1L;
+        }
+        Date last = records.get(end - 1).getApproximateArrivalTimestamp();
+        Date newest = records.get(records.size() - 1).getApproximateArrivalTimestamp();
+        if (last == null || newest == null) {
+            return 1L;
+        }
+        return Math.max(1L, newest.getTime() - last.getTime());
+    }
+}
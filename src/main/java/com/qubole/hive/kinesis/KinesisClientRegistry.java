@@ -0,0 +1,374 @@
+package com.qubole.hive.kinesis;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.AmazonKinesisClient;
+import com.amazonaws.services.kinesis.clientlibrary.proxies.KinesisProxy;
+
+import com.qubole.hive.kinesis.util.Constants;
+import com.qubole.hive.kinesis.util.HiveKinesisUtils;
+
+/**
+ * Kinesis and DynamoDB clients shared by all readers, writers and
+ * checkpointers in the JVM. Clients are created once for each region,
+ * credentials and client configuration, so that short tasks reuse the
+ * pooled connections of earlier tasks instead of opening their own. Only
+ * the clients of the credentials used most recently are kept, so that
+ * rotating credentials does not leave clients and their connection pools
+ * behind. Each client handed out is in use until it is released, and a
+ * client dropped from the registry is only shut down once it is no longer
+ * used.
+ */
+class KinesisClientRegistry {
+
+    private static final String USER_AGENT =
+            ClientConfiguration.DEFAULT_USER_AGENT + " qubole-hive-kinesis";
+    //as used by the KCL when it creates the client of a proxy
+    private static final long DESCRIBE_STREAM_BACKOFF_MS = 1000L;
+    private static final int DESCRIBE_STREAM_RETRY_TIMES = 50;
+
+    //clients are kept for the MAX_CLIENTS credentials and configurations
+    //used most recently
+    static final int MAX_CLIENTS = 8;
+
+    /**
+     * Clients by key, in the order they were last looked up. Once there are
+     * more than maxSize, the client looked up least recently is removed and
+     * handed to evicted. The uses of the clients are counted with retain and
+     * release, and a removed client is handed to shutdown once it is not
+     * used, which may be when it is removed.
+     */
+    abstract static class ClientCache<T> extends LinkedHashMap<String, T> {
+
+        private static class Uses {
+            private int count = 0;
+            private boolean evicted = false;
+        }
+
+        private final int maxSize;
+        //clients in use, which may have been removed already
+        private final Map<T, Uses> uses = new IdentityHashMap<T, Uses>();
+
+        ClientCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+            if (size() <= maxSize) {
+                return false;
+            }
+            T client = eldest.getValue();
+            evicted(eldest.getKey(), client);
+            Uses clientUses = uses.get(client);
+            if (clientUses == null) {
+                shutdown(client);
+            } else {
+                clientUses.evicted = true;
+            }
+            return true;
+        }
+
+        //counts a use of the client. Clients not in the cache are ignored.
+        void retain(T client) {
+            Uses clientUses = uses.get(client);
+            if (clientUses == null) {
+                if (!containsValue(client)) {
+                    return;
+                }
+                clientUses = new Uses();
+                uses.put(client, clientUses);
+            }
+            clientUses.count++;
+        }
+
+        //ends a use of the client, which is shut down if it has been
+        //removed and is no longer used
+        void release(T client) {
+            Uses clientUses = uses.get(client);
+            if (clientUses == null || --clientUses.count > 0) {
+                return;
+            }
+            uses.remove(client);
+            if (clientUses.evicted) {
+                shutdown(client);
+            }
+        }
+
+        abstract void evicted(String key, T client);
+
+        abstract void shutdown(T client);
+    }
+
+    //guarded by itself, as are PROXIES, PROXY_CLIENT_KEYS and PROXY_CLIENTS
+    private static final ClientCache<AmazonKinesis> KINESIS_CLIENTS =
+            new ClientCache<AmazonKinesis>(MAX_CLIENTS) {
+                @Override
+                void evicted(String key, AmazonKinesis client) {
+                    //the proxies of the client are no longer handed out
+                    Iterator<Map.Entry<String, String>> proxies =
+                            PROXY_CLIENT_KEYS.entrySet().iterator();
+                    while (proxies.hasNext()) {
+                        Map.Entry<String, String> proxy = proxies.next();
+                        if (proxy.getValue().equals(key)) {
+                            PROXIES.remove(proxy.getKey());
+                            proxies.remove();
+                        }
+                    }
+                    logEviction("kinesis");
+                }
+
+                @Override
+                void shutdown(AmazonKinesis client) {
+                    PROXY_CLIENTS.values().removeAll(Collections.singleton(client));
+                    logShutdown("kinesis");
+                    client.shutdown();
+                }
+            };
+    private static final Map<String, KinesisProxy> PROXIES =
+            new HashMap<String, KinesisProxy>();
+    //the key of the kinesis client of each proxy
+    private static final Map<String, String> PROXY_CLIENT_KEYS =
+            new HashMap<String, String>();
+    //the kinesis client of each proxy handed out
+    private static final Map<KinesisProxy, AmazonKinesis> PROXY_CLIENTS =
+            new IdentityHashMap<KinesisProxy, AmazonKinesis>();
+    //guarded by itself
+    private static final ClientCache<AmazonDynamoDBClient> DYNAMODB_CLIENTS =
+            new ClientCache<AmazonDynamoDBClient>(MAX_CLIENTS) {
+                @Override
+                void evicted(String key, AmazonDynamoDBClient client) {
+                    logEviction("DynamoDB");
+                }
+
+                @Override
+                void shutdown(AmazonDynamoDBClient client) {
+                    logShutdown("DynamoDB");
+                    client.shutdown();
+                }
+            };
+
+    private static final Log LOG = LogFactory.getLog(KinesisClientRegistry.class);
+
+    private KinesisClientRegistry() {
+    }
+
+    private static void logEviction(String service) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Dropping the " + service + " client of credentials not used"
+                    + " since " + MAX_CLIENTS + " others were");
+        }
+    }
+
+    private static void logShutdown(String service) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Shutting down a dropped " + service + " client, which is no longer used");
+        }
+    }
+
+    static ClientConfiguration getClientConfiguration(JobConf conf) {
+        ClientConfiguration clientConfig = new ClientConfiguration();
+        clientConfig.setUserAgent(USER_AGENT);
+        clientConfig.setMaxConnections(conf.getInt(Constants.CLIENT_MAX_CONNECTIONS,
+                Constants.DEFAULT_CLIENT_MAX_CONNECTIONS));
+        clientConfig.setSocketTimeout(conf.getInt(Constants.CLIENT_SOCKET_TIMEOUT_MS,
+                Constants.DEFAULT_CLIENT_SOCKET_TIMEOUT_MS));
+        clientConfig.setConnectionTimeout(conf.getInt(Constants.CLIENT_CONNECTION_TIMEOUT_MS,
+                Constants.DEFAULT_CLIENT_CONNECTION_TIMEOUT_MS));
+        clientConfig.setConnectionMaxIdleMillis(conf.getLong(
+                Constants.CLIENT_CONNECTION_MAX_IDLE_MS,
+                Constants.DEFAULT_CLIENT_CONNECTION_MAX_IDLE_MS));
+        clientConfig.setUseTcpKeepAlive(conf.getBoolean(Constants.CLIENT_TCP_KEEP_ALIVE,
+                Constants.DEFAULT_CLIENT_TCP_KEEP_ALIVE));
+        return clientConfig;
+    }
+
+    private static String getRegion(JobConf conf) {
+        return conf.get(Constants.ENDPOINT_REGION, Constants.DEFAULT_ENDPOINT_REGION);
+    }
+
+    //identifies the credentials and client configuration of the conf,
+    //without keeping the secret key
+    static String getClientKey(JobConf conf) {
+        AWSCredentials credentials =
+                HiveKinesisUtils.getCredentialsProvider(conf).getCredentials();
+        ClientConfiguration clientConfig = getClientConfiguration(conf);
+        return credentials.getAWSAccessKeyId()
+                + "/" + digest(credentials.getAWSSecretKey())
+                + "/" + clientConfig.getMaxConnections()
+                + "/" + clientConfig.getSocketTimeout()
+                + "/" + clientConfig.getConnectionTimeout()
+                + "/" + clientConfig.getConnectionMaxIdleMillis()
+                + "/" + clientConfig.useTcpKeepAlive();
+    }
+
+    /**
+     * Names the owner of the streams read from the shard source, as a
+     * digest to be used in paths, so that caches keep the records of
+     * same-named streams of different regions or accounts apart. Streams read
+     * from kinesis are owned by the region and the account set by
+     * kinesis.account.id, or else by the region and the access key, and
+     * streams read from other sources by the class of the source.
+     */
+    static String getStreamOwner(JobConf conf, KinesisShardSource source) {
+        String owner;
+        if (source instanceof KinesisProxyShardSource) {
+            String account = conf.get(Constants.ACCOUNT_ID);
+            if (account == null) {
+                account = HiveKinesisUtils.getCredentialsProvider(conf).getCredentials()
+                        .getAWSAccessKeyId();
+            }
+            owner = getRegion(conf) + "/" + account;
+        } else {
+            owner = source.getClass().getName();
+        }
+        return digest(owner);
+    }
+
+    private static String digest(String secret) {
+        if (secret == null) {
+            return "";
+        }
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            return new BigInteger(1,
+                    sha256.digest(secret.getBytes(Charset.forName("UTF-8")))).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Returns the kinesis client for the region and credentials of the
+     * conf, which is in use until it is passed to release.
+     */
+    static AmazonKinesis getKinesisClient(JobConf conf) {
+        String key = getRegion(conf) + "/" + getClientKey(conf);
+        synchronized (KINESIS_CLIENTS) {
+            AmazonKinesis client = KINESIS_CLIENTS.get(key);
+            if (client == null) {
+                AmazonKinesisClient newClient = new AmazonKinesisClient(
+                        HiveKinesisUtils.getCredentialsProvider(conf),
+                        getClientConfiguration(conf));
+                newClient.setEndpoint("kinesis." + getRegion(conf) + ".amazonaws.com");
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Created kinesis client for region " + getRegion(conf));
+                }
+                KINESIS_CLIENTS.put(key, newClient);
+                client = newClient;
+            }
+            KINESIS_CLIENTS.retain(client);
+            return client;
+        }
+    }
+
+    /**
+     * Returns the proxy of the stream of the conf, which uses the shared
+     * kinesis client. The client is in use until the proxy is passed to
+     * release.
+     */
+    static KinesisProxy getKinesisProxy(JobConf conf) {
+        String streamName = conf.get(Constants.STREAM_NAME);
+        String clientKey = getRegion(conf) + "/" + getClientKey(conf);
+        String key = streamName + "/" + clientKey;
+        synchronized (KINESIS_CLIENTS) {
+            //looked up first, so that the client is the most recently used
+            AmazonKinesis client = getKinesisClient(conf);
+            KinesisProxy proxy = PROXIES.get(key);
+            if (proxy == null) {
+                proxy = new KinesisProxy(streamName,
+                        HiveKinesisUtils.getCredentialsProvider(conf), client,
+                        DESCRIBE_STREAM_BACKOFF_MS, DESCRIBE_STREAM_RETRY_TIMES);
+                PROXIES.put(key, proxy);
+                PROXY_CLIENT_KEYS.put(key, clientKey);
+                PROXY_CLIENTS.put(proxy, client);
+            }
+            return proxy;
+        }
+    }
+
+    /**
+     * Returns the DynamoDB client for the credentials of the conf, which is
+     * in use until it is passed to release. The client uses the default
+     * endpoint, where the checkpoint tables are.
+     */
+    static AmazonDynamoDBClient getDynamoDBClient(JobConf conf) {
+        String key = getClientKey(conf);
+        synchronized (DYNAMODB_CLIENTS) {
+            AmazonDynamoDBClient client = DYNAMODB_CLIENTS.get(key);
+            if (client == null) {
+                client = new AmazonDynamoDBClient(
+                        HiveKinesisUtils.getCredentialsProvider(conf),
+                        getClientConfiguration(conf));
+                DYNAMODB_CLIENTS.put(key, client);
+            }
+            DYNAMODB_CLIENTS.retain(client);
+            return client;
+        }
+    }
+
+    /**
+     * Counts another use of a client returned by the registry, such as by a
+     * reader the client is passed to. Clients not created by the registry
+     * are ignored, by this and by release.
+     */
+    static void retain(AmazonKinesis client) {
+        synchronized (KINESIS_CLIENTS) {
+            KINESIS_CLIENTS.retain(client);
+        }
+    }
+
+    static void release(AmazonKinesis client) {
+        synchronized (KINESIS_CLIENTS) {
+            KINESIS_CLIENTS.release(client);
+        }
+    }
+
+    static void retain(KinesisProxy proxy) {
+        synchronized (KINESIS_CLIENTS) {
+            AmazonKinesis client = PROXY_CLIENTS.get(proxy);
+            if (client != null) {
+                KINESIS_CLIENTS.retain(client);
+            }
+        }
+    }
+
+    static void release(KinesisProxy proxy) {
+        synchronized (KINESIS_CLIENTS) {
+            AmazonKinesis client = PROXY_CLIENTS.get(proxy);
+            if (client != null) {
+                KINESIS_CLIENTS.release(client);
+            }
+        }
+    }
+
+    static void retain(AmazonDynamoDBClient client) {
+        synchronized (DYNAMODB_CLIENTS) {
+            DYNAMODB_CLIENTS.retain(client);
+        }
+    }
+
+    static void release(AmazonDynamoDBClient client) {
+        synchronized (DYNAMODB_CLIENTS) {
+            DYNAMODB_CLIENTS.release(client);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.qubole.hive.kinesis;
+
+/**
+ * Hadoop counters of the kinesis calls made by the readers, writers and
+ * checkpointers of a task. Times are in milliseconds.
+ */
+public enum KinesisCounter {
+    GET_RECORDS_CALLS,
+    GET_RECORDS_MILLIS,
+    //calls that returned no records
+    GET_RECORDS_EMPTY,
+    GET_RECORDS_THROTTLED,
+    RECORDS_FETCHED,
+    BYTES_FETCHED,
+    //time spent waiting for the shard rate limit
+    RATE_LIMIT_WAIT_MILLIS,
+    CHECKPOINTS,
+    CHECKPOINT_MILLIS,
+    PUT_RECORD_CALLS,
+    PUT_RECORD_MILLIS,
+    //calls made again because the stream was throttled
+    PUT_RECORD_RETRIES,
+    BYTES_WRITTEN,
+    //failed calls made again, and the time waited before them
+    RETRIES_THROTTLED,
+    RETRIES_TRANSIENT,
+    RETRY_WAIT_MILLIS
+}
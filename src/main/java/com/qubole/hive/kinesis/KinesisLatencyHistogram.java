@@ -0,0 +1,224 @@
+package com.qubole.hive.kinesis;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Histogram of the latencies of one kind of call to a shard, such as
+ * GetRecords, shared by all the readers or writers of the shard in the JVM
+ * and registered as an MXBean named
+ * com.qubole.hive.kinesis:type=Latency,stream=...,shard=...,operation=...
+ * The histogram is dropped, and unregistered, once the last reader or
+ * writer using it is closed, so that a JVM reused by many tasks does not
+ * keep the histograms of every shard it has read.
+ * Latencies are counted in buckets of microseconds, eight buckets for
+ * each power of two, so that recording a latency takes no lock.
+ */
+class KinesisLatencyHistogram implements KinesisLatencyHistogramMXBean {
+
+    static final String DOMAIN = "com.qubole.hive.kinesis";
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //latencies of 2^37 microseconds (38 hours) or more share the last bucket
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    //histograms in use, by stream, shard and operation
+    private static final Map<String, KinesisLatencyHistogram> HISTOGRAMS =
+            new HashMap<String, KinesisLatencyHistogram>();
+
+    private final String key;
+    //null if not registered
+    private ObjectName name = null;
+    //readers and writers using the histogram, guarded by HISTOGRAMS
+    private int users = 0;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    private static final Log LOG = LogFactory.getLog(KinesisLatencyHistogram.class);
+
+    //a histogram that is not shared or registered
+    KinesisLatencyHistogram() {
+        this(null);
+    }
+
+    private KinesisLatencyHistogram(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the histogram of an operation on a shard, which is registered
+     * over JMX when it is created. Each histogram returned must be passed to
+     * release once it is no longer used.
+     */
+    static KinesisLatencyHistogram forShard(String streamName, String shardId,
+            String operation) {
+        String key = streamName + "/" + shardId + "/" + operation;
+        synchronized (HISTOGRAMS) {
+            KinesisLatencyHistogram histogram = HISTOGRAMS.get(key);
+            if (histogram == null) {
+                histogram = new KinesisLatencyHistogram(key);
+                HISTOGRAMS.put(key, histogram);
+                histogram.name = register(histogram, streamName, shardId, operation);
+            }
+            histogram.users++;
+            return histogram;
+        }
+    }
+
+    /**
+     * Releases a histogram returned by forShard, which is dropped and
+     * unregistered when no reader or writer uses it any more.
+     */
+    static void release(KinesisLatencyHistogram histogram) {
+        synchronized (HISTOGRAMS) {
+            if (--histogram.users > 0) {
+                return;
+            }
+            HISTOGRAMS.remove(histogram.key);
+            if (histogram.name != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(histogram.name);
+                } catch (JMException e) {
+                    LOG.warn("Cannot unregister " + histogram.name + ": " + e.getMessage());
+                }
+                histogram.name = null;
+            }
+        }
+    }
+
+    static ObjectName objectName(String streamName, String shardId, String operation)
+            throws JMException {
+        return new ObjectName(DOMAIN + ":type=Latency"
+                + ",stream=" + ObjectName.quote(streamName)
+                + ",shard=" + ObjectName.quote(shardId)
+                + ",operation=" + operation);
+    }
+
+    //returns the name the histogram is registered under, or null
+    private static ObjectName register(KinesisLatencyHistogram histogram, String streamName,
+            String shardId, String operation) {
+        try {
+            ObjectName name = objectName(streamName, shardId, operation);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(histogram, name);
+            return name;
+        } catch (JMException e) {
+            LOG.warn("Cannot register the " + operation + " latencies of shard "
+                    + shardId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(0L, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    //smallest latency, in microseconds, counted in the bucket
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    void record(long nanos) {
+        long micros = nanos / 1000L;
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0L ? 0.0 : sumMicros.get() / 1000.0 / n;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    @Override
+    public double getMedianMillis() {
+        return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double get90thPercentileMillis() {
+        return getPercentileMillis(0.9);
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return getPercentileMillis(0.99);
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the calls
+     * completed, as the upper bound of its bucket.
+     */
+    double getPercentileMillis(double fraction) {
+        long n = 0L;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0L) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long upperMicros = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upperMicros, maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        sumMicros.set(0L);
+        maxMicros.set(0L);
+    }
+}
@@ -0,0 +1,22 @@
+package com.qubole.hive.kinesis;
+
+/**
+ * Latencies of one kind of call to a shard, as exported over JMX.
+ * Percentiles are within an eighth of the actual latency.
+ */
+public interface KinesisLatencyHistogramMXBean {
+
+    long getCount();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getMedianMillis();
+
+    double get90thPercentileMillis();
+
+    double get99thPercentileMillis();
+
+    void reset();
+}
@@ -0,0 +1,152 @@
+package com.qubole.hive.kinesis;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Reports the kinesis calls of a reader or writer as Hadoop counters and
+ * per-shard latency histograms, and tells the task it is alive while it
+ * waits for kinesis. Counters are only kept when the progress passed by
+ * the task is a Reporter, which it is for the map and reduce tasks of Hive.
+ * May be called from the thread prefetching records. The metrics are
+ * closed with the reader or writer, which releases their histograms.
+ */
+class KinesisMetrics {
+
+    static final String GET_RECORDS = "GetRecords";
+    static final String PUT_RECORD = "PutRecord";
+    static final String CHECKPOINT = "Checkpoint";
+
+    private final Progressable progress;
+    private final Reporter reporter;
+    private final String streamName;
+    //histograms of the shard read, null for writers
+    private final KinesisLatencyHistogram getRecordsLatency;
+    private final KinesisLatencyHistogram checkpointLatency;
+    //histograms of the shards written to, by shard id, and that of the
+    //shard last written to, which is looked up again only when a record
+    //goes to another shard
+    private final Map<String, KinesisLatencyHistogram> putRecordLatencies =
+            new HashMap<String, KinesisLatencyHistogram>();
+    private String putShardId = null;
+    private KinesisLatencyHistogram putRecordLatency = null;
+    private boolean closed = false;
+    //nanoseconds counted by the time counters, which are reported in
+    //whole milliseconds
+    private final long[] counterNanos = new long[KinesisCounter.values().length];
+
+    /**
+     * Metrics of a reader of a shard, or of a writer if the shard id is
+     * null. progress may be null.
+     */
+    KinesisMetrics(Progressable progress, String streamName, String shardId) {
+        this.progress = progress == null ? Reporter.NULL : progress;
+        this.reporter = progress instanceof Reporter ? (Reporter) progress : null;
+        this.streamName = streamName;
+        if (shardId == null) {
+            getRecordsLatency = null;
+            checkpointLatency = null;
+        } else {
+            getRecordsLatency = KinesisLatencyHistogram.forShard(streamName, shardId,
+                    GET_RECORDS);
+            checkpointLatency = KinesisLatencyHistogram.forShard(streamName, shardId,
+                    CHECKPOINT);
+        }
+    }
+
+    //reports that the task is alive, while it waits
+    void progress() {
+        progress.progress();
+    }
+
+    private void incrCounter(KinesisCounter counter, long amount) {
+        if (reporter != null) {
+            reporter.incrCounter(counter, amount);
+        }
+    }
+
+    private synchronized void incrMillisCounter(KinesisCounter counter, long nanos) {
+        long before = counterNanos[counter.ordinal()] / 1000000L;
+        counterNanos[counter.ordinal()] += nanos;
+        incrCounter(counter, counterNanos[counter.ordinal()] / 1000000L - before);
+    }
+
+    void onGetRecords(long nanos, int records, long bytes) {
+        getRecordsLatency.record(nanos);
+        incrCounter(KinesisCounter.GET_RECORDS_CALLS, 1L);
+        incrMillisCounter(KinesisCounter.GET_RECORDS_MILLIS, nanos);
+        if (records == 0) {
+            incrCounter(KinesisCounter.GET_RECORDS_EMPTY, 1L);
+        }
+        incrCounter(KinesisCounter.RECORDS_FETCHED, records);
+        incrCounter(KinesisCounter.BYTES_FETCHED, bytes);
+        progress();
+    }
+
+    void onGetRecordsThrottled() {
+        incrCounter(KinesisCounter.GET_RECORDS_THROTTLED, 1L);
+        progress();
+    }
+
+    void onRateLimitWait(long nanos) {
+        incrMillisCounter(KinesisCounter.RATE_LIMIT_WAIT_MILLIS, nanos);
+        progress();
+    }
+
+    void onCheckpoint(long nanos) {
+        checkpointLatency.record(nanos);
+        incrCounter(KinesisCounter.CHECKPOINTS, 1L);
+        incrMillisCounter(KinesisCounter.CHECKPOINT_MILLIS, nanos);
+    }
+
+    void onPutRecord(String shardId, long nanos, long bytes) {
+        if (shardId != null) {
+            if (!shardId.equals(putShardId)) {
+                putShardId = shardId;
+                putRecordLatency = putRecordLatencies.get(shardId);
+                if (putRecordLatency == null) {
+                    putRecordLatency = KinesisLatencyHistogram.forShard(streamName,
+                            shardId, PUT_RECORD);
+                    putRecordLatencies.put(shardId, putRecordLatency);
+                }
+            }
+            putRecordLatency.record(nanos);
+        }
+        incrCounter(KinesisCounter.PUT_RECORD_CALLS, 1L);
+        incrMillisCounter(KinesisCounter.PUT_RECORD_MILLIS, nanos);
+        incrCounter(KinesisCounter.BYTES_WRITTEN, bytes);
+    }
+
+    void onRetry(KinesisRetryPolicy.ErrorKind kind, long delayMs) {
+        incrCounter(kind == KinesisRetryPolicy.ErrorKind.THROTTLED
+                ? KinesisCounter.RETRIES_THROTTLED : KinesisCounter.RETRIES_TRANSIENT, 1L);
+        incrCounter(KinesisCounter.RETRY_WAIT_MILLIS, delayMs);
+        progress();
+    }
+
+    void onPutRecordThrottled() {
+        incrCounter(KinesisCounter.PUT_RECORD_RETRIES, 1L);
+        progress();
+    }
+
+    //releases the histograms, which are no longer updated
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (getRecordsLatency != null) {
+            KinesisLatencyHistogram.release(getRecordsLatency);
+            KinesisLatencyHistogram.release(checkpointLatency);
+        }
+        for (KinesisLatencyHistogram histogram : putRecordLatencies.values()) {
+            KinesisLatencyHistogram.release(histogram);
+        }
+        putRecordLatencies.clear();
+        putShardId = null;
+        putRecordLatency = null;
+    }
+}
@@ -0,0 +1,252 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Reads the splits of several shards in a single task. The shards are read
+ * on a small pool of threads. A thread reads a number of records from a
+ * shard and then moves on, so that every shard gets its turn. Records are
+ * handed over to the task through a fixed set of reusable slots, in the
+ * order in which they were read, so the records of each shard keep their
+ * order.
+ */
+public class KinesisMultiShardRecordReader implements RecordReader<Text, Text> {
+
+    //records read from a shard before its thread moves on to another shard
+    private static final int RECORDS_PER_TURN = 128;
+    private static final int SLOTS_PER_THREAD = 2 * RECORDS_PER_TURN;
+    private static final long CLOSE_TIMEOUT_MS = 30000L;
+
+    private static class Slot {
+        private final Text key;
+        private final Text value;
+
+        Slot(Text key, Text value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    //marks the end of the records, once all shards are read or one failed
+    private static final Slot END = new Slot(null, null);
+
+    private final List<RecordReader<Text, Text>> readers;
+    private final ExecutorService pool;
+    private final BlockingQueue<Slot> filledSlots = new LinkedBlockingQueue<Slot>();
+    private final BlockingQueue<Slot> freeSlots = new LinkedBlockingQueue<Slot>();
+    private final AtomicInteger activeReaders;
+    private volatile IOException failure = null;
+    private boolean hasFinished = false;
+
+    private static final Log LOG = LogFactory.getLog(KinesisMultiShardRecordReader.class);
+
+    public KinesisMultiShardRecordReader(KinesisShardSource shardSource,
+            HiveKinesisMultiShardSplit split, JobConf conf,
+            AmazonDynamoDBClient dynamoDBClient) {
+        this(shardSource, split, conf, dynamoDBClient, null);
+    }
+
+    public KinesisMultiShardRecordReader(KinesisShardSource shardSource,
+            HiveKinesisMultiShardSplit split, JobConf conf,
+            AmazonDynamoDBClient dynamoDBClient, Reporter reporter) {
+        this(createReaders(shardSource, split, conf, dynamoDBClient, reporter),
+                conf.getInt(Constants.COMBINE_THREADS, Constants.DEFAULT_COMBINE_THREADS));
+    }
+
+    //package access for testing
+    KinesisMultiShardRecordReader(List<RecordReader<Text, Text>> readers, int threads) {
+        this.readers = readers;
+        this.activeReaders = new AtomicInteger(readers.size());
+        threads = Math.max(1, Math.min(threads, readers.size()));
+        if (!readers.isEmpty()) {
+            for (int i = 0; i < threads * SLOTS_PER_THREAD; i++) {
+                freeSlots.add(new Slot(readers.get(0).createKey(),
+                        readers.get(0).createValue()));
+            }
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "kinesis-shard-reader-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (readers.isEmpty()) {
+            filledSlots.add(END);
+        }
+        for (RecordReader<Text, Text> reader : readers) {
+            pool.execute(new ShardTask(reader));
+        }
+    }
+
+    private static List<RecordReader<Text, Text>> createReaders(KinesisShardSource shardSource,
+            HiveKinesisMultiShardSplit split, JobConf conf,
+            AmazonDynamoDBClient dynamoDBClient, Reporter reporter) {
+        //the threads of this reader fetch the records, so the shards are
+        //not prefetched
+        JobConf shardConf = new JobConf(conf);
+        shardConf.setInt(Constants.PREFETCH_DEPTH, 0);
+        List<RecordReader<Text, Text>> readers = new ArrayList<RecordReader<Text, Text>>();
+        for (HiveKinesisInputSplit shardSplit : split.getSplits()) {
+            readers.add(new HiveKinesisRecordReader(shardSource, shardSplit,
+                    shardConf, dynamoDBClient, reporter));
+        }
+        return readers;
+    }
+
+    //reads a turn of records from a shard, then queues itself again
+    private class ShardTask implements Runnable {
+
+        private final RecordReader<Text, Text> reader;
+
+        ShardTask(RecordReader<Text, Text> reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < RECORDS_PER_TURN; i++) {
+                    Slot slot = freeSlots.take();
+                    if (!reader.next(slot.key, slot.value)) {
+                        freeSlots.add(slot);
+                        if (activeReaders.decrementAndGet() == 0) {
+                            filledSlots.add(END);
+                        }
+                        return;
+                    }
+                    //the reader may reuse the buffer the value refers to
+                    if (slot.value instanceof KinesisRecordWritable) {
+                        ((KinesisRecordWritable) slot.value).materialize();
+                    }
+                    filledSlots.add(slot);
+                }
+                pool.execute(this);
+            } catch (InterruptedException e) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Shard reader interrupted.");
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new IOException(e));
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+        filledSlots.add(END);
+    }
+
+    @Override
+    public boolean next(Text key, Text value) throws IOException {
+        if (hasFinished) {
+            return false;
+        }
+        Slot slot;
+        try {
+            slot = filledSlots.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for records", e);
+        }
+        if (slot == END) {
+            hasFinished = true;
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+        key.set(slot.key);
+        if (value instanceof KinesisRecordWritable
+                && slot.value instanceof KinesisRecordWritable) {
+            ((KinesisRecordWritable) value).set((KinesisRecordWritable) slot.value);
+        } else {
+            value.set(slot.value);
+        }
+        freeSlots.add(slot);
+        return true;
+    }
+
+    @Override
+    public Text createKey() {
+        return new Text();
+    }
+
+    @Override
+    public Text createValue() {
+        return new KinesisRecordWritable();
+    }
+
+    @Override
+    public long getPos() throws IOException {
+        long pos = 0L;
+        for (RecordReader<Text, Text> reader : readers) {
+            pos += reader.getPos();
+        }
+        return pos;
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+        if (readers.isEmpty()) {
+            return 1.0f;
+        }
+        float progress = 0.0f;
+        for (RecordReader<Text, Text> reader : readers) {
+            progress += reader.getProgress();
+        }
+        return progress / readers.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        try {
+            if (!pool.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Timed out waiting for the shard readers to stop.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        IOException closeFailure = null;
+        for (RecordReader<Text, Text> reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                if (closeFailure == null) {
+                    closeFailure = e;
+                }
+            }
+        }
+        if (closeFailure != null) {
+            throw closeFailure;
+        }
+    }
+}
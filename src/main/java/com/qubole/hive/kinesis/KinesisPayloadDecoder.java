@@ -0,0 +1,292 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.xerial.snappy.Snappy;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Decompresses record payloads before they are handed to the SerDe. The
+ * decompressed payload is written to an output buffer that is reused for
+ * every record, and the inflaters are reused as well, so decoding does not
+ * allocate once the buffer has grown to the size of the largest payload.
+ * The returned buffer is only valid until the next call to decode, and
+ * never grows past the configured maximum payload size, which guards
+ * against payloads claiming or expanding to huge sizes.
+ */
+class KinesisPayloadDecoder {
+
+    enum Codec {
+        NONE,
+        GZIP,
+        DEFLATE,
+        SNAPPY,
+        //detects gzip and zlib payloads by their header, and reads other
+        //payloads, and payloads that turn out not to inflate, as they are
+        AUTO
+    }
+
+    private static final int GZIP_MAGIC1 = 0x1f;
+    private static final int GZIP_MAGIC2 = 0x8b;
+    private static final int GZIP_HEADER_LENGTH = 10;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+    private static final int GZIP_RESERVED_FLAGS = 0xe0;
+    private static final int CM_DEFLATE = 8;
+    private static final int ZLIB_CMF = 0x78;
+    private static final int ZLIB_FDICT = 0x20;
+    private static final int DEFLATE_BTYPE = 0x06;
+    //header, one byte of deflate data and the adler32 trailer
+    private static final int ZLIB_MIN_LENGTH = 7;
+    //returned when a detected codec turns out not to have been used
+    private static final int NOT_DECODED = -1;
+    private static final byte[] ZSTD_MAGIC =
+            {(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD};
+
+    private final Codec codec;
+    private final int maxDecodedBytes;
+    private Inflater gzipInflater = null;
+    private Inflater zlibInflater = null;
+    private final CRC32 crc = new CRC32();
+    private byte[] out = new byte[64 * 1024];
+    private ByteBuffer outView = ByteBuffer.wrap(out);
+    private boolean zstdWarned = false;
+
+    private static final Log LOG = LogFactory.getLog(KinesisPayloadDecoder.class);
+
+    KinesisPayloadDecoder(Codec codec, int maxDecodedBytes) {
+        this.codec = codec;
+        this.maxDecodedBytes = maxDecodedBytes;
+    }
+
+    static KinesisPayloadDecoder forName(String name) {
+        return forName(name, Constants.DEFAULT_PAYLOAD_MAX_DECODED_BYTES);
+    }
+
+    /**
+     * Returns the decoder for the codec named by kinesis.payload.codec, or
+     * null if payloads are not compressed. Payloads decoding to more than
+     * maxDecodedBytes are rejected.
+     */
+    static KinesisPayloadDecoder forName(String name, int maxDecodedBytes) {
+        if (name == null || name.trim().isEmpty()) {
+            return null;
+        }
+        Codec codec;
+        try {
+            codec = Codec.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported payload codec " + name
+                    + ". Supported codecs are " + Arrays.toString(Codec.values()));
+        }
+        return codec == Codec.NONE ? null : new KinesisPayloadDecoder(codec, maxDecodedBytes);
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Decompresses the remaining bytes of the buffer. Returns the buffer
+     * itself if it is not compressed.
+     */
+    ByteBuffer decode(ByteBuffer data) throws IOException {
+        if (!data.hasArray()) {
+            return data;
+        }
+        byte[] bytes = data.array();
+        int offset = data.arrayOffset() + data.position();
+        int length = data.remaining();
+        Codec actual = codec == Codec.AUTO ? detect(bytes, offset, length) : codec;
+        int decodedLength;
+        switch (actual) {
+        case GZIP:
+            decodedLength = gunzip(bytes, offset, length);
+            break;
+        case DEFLATE:
+            if (zlibInflater == null) {
+                zlibInflater = new Inflater();
+            }
+            decodedLength = inflate(zlibInflater, bytes, offset, length, length * 4);
+            break;
+        case SNAPPY:
+            decodedLength = Snappy.uncompressedLength(bytes, offset, length);
+            if (decodedLength < 0 || decodedLength > maxDecodedBytes) {
+                throw tooLarge();
+            }
+            ensureCapacity(decodedLength);
+            Snappy.uncompress(bytes, offset, length, out, 0);
+            break;
+        default:
+            return data;
+        }
+        if (decodedLength == NOT_DECODED) {
+            return data;
+        }
+        if (outView.array() != out) {
+            outView = ByteBuffer.wrap(out);
+        }
+        outView.clear();
+        outView.limit(decodedLength);
+        return outView;
+    }
+
+    //a payload that turns out not to be valid for the codec is an error,
+    //unless the codec was only detected, in which case it is read as it is
+    private int notDecoded(String reason) throws IOException {
+        if (codec != Codec.AUTO) {
+            throw new IOException(reason);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Reading payload as it is: " + reason);
+        }
+        return NOT_DECODED;
+    }
+
+    private IOException tooLarge() {
+        return new IOException("Decoded payload is larger than " + maxDecodedBytes
+                + " bytes, the maximum set by " + Constants.PAYLOAD_MAX_DECODED_BYTES);
+    }
+
+    private Codec detect(byte[] bytes, int offset, int length) {
+        if (length >= GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH
+                && (bytes[offset] & 0xff) == GZIP_MAGIC1
+                && (bytes[offset + 1] & 0xff) == GZIP_MAGIC2
+                && bytes[offset + 2] == CM_DEFLATE
+                && (bytes[offset + 3] & GZIP_RESERVED_FLAGS) == 0) {
+            return Codec.GZIP;
+        }
+        //zlib header: deflate with the 32K window every zlib writer uses, no
+        //preset dictionary, and the check on the first two bytes, followed
+        //by a valid deflate block type. Of printable text, only payloads
+        //starting with "x^" pass, and they are then found not to inflate.
+        if (length >= ZLIB_MIN_LENGTH
+                && (bytes[offset] & 0xff) == ZLIB_CMF
+                && (bytes[offset + 1] & ZLIB_FDICT) == 0
+                && ((ZLIB_CMF << 8) | (bytes[offset + 1] & 0xff)) % 31 == 0
+                && (bytes[offset + 2] & DEFLATE_BTYPE) != DEFLATE_BTYPE) {
+            return Codec.DEFLATE;
+        }
+        if (!zstdWarned && length >= ZSTD_MAGIC.length) {
+            boolean zstd = true;
+            for (int i = 0; i < ZSTD_MAGIC.length; i++) {
+                zstd &= bytes[offset + i] == ZSTD_MAGIC[i];
+            }
+            if (zstd) {
+                LOG.warn("Found zstd compressed payloads, which are not supported."
+                        + " They are read as they are.");
+                zstdWarned = true;
+            }
+        }
+        return Codec.NONE;
+    }
+
+    private int gunzip(byte[] bytes, int offset, int length) throws IOException {
+        int end = offset + length;
+        if (length < GZIP_HEADER_LENGTH + GZIP_TRAILER_LENGTH
+                || (bytes[offset] & 0xff) != GZIP_MAGIC1
+                || (bytes[offset + 1] & 0xff) != GZIP_MAGIC2
+                || bytes[offset + 2] != CM_DEFLATE) {
+            return notDecoded("Not a gzip payload");
+        }
+        int flags = bytes[offset + 3] & 0xff;
+        int pos = offset + GZIP_HEADER_LENGTH;
+        int dataEnd = end - GZIP_TRAILER_LENGTH;
+        if ((flags & GZIP_FEXTRA) != 0) {
+            if (pos + 2 > dataEnd) {
+                return notDecoded("Truncated gzip header");
+            }
+            pos += 2 + ((bytes[pos] & 0xff) | (bytes[pos + 1] & 0xff) << 8);
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            pos = skipZeroTerminated(bytes, pos, dataEnd);
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            pos = skipZeroTerminated(bytes, pos, dataEnd);
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            pos += 2;
+        }
+        if (pos > dataEnd) {
+            return notDecoded("Truncated gzip header");
+        }
+        int expectedSize = readIntLE(bytes, end - 4);
+        if (gzipInflater == null) {
+            gzipInflater = new Inflater(true);
+        }
+        int decodedLength = inflate(gzipInflater, bytes, pos, dataEnd - pos,
+                expectedSize > 0 ? expectedSize : length * 4);
+        if (decodedLength == NOT_DECODED) {
+            return NOT_DECODED;
+        }
+        crc.reset();
+        crc.update(out, 0, decodedLength);
+        if ((int) crc.getValue() != readIntLE(bytes, dataEnd)) {
+            return notDecoded("Corrupt gzip payload");
+        }
+        return decodedLength;
+    }
+
+    //returns the position after the terminating zero, past dataEnd if
+    //there is none
+    private static int skipZeroTerminated(byte[] bytes, int pos, int dataEnd) {
+        while (pos < dataEnd && bytes[pos] != 0) {
+            pos++;
+        }
+        return pos < dataEnd ? pos + 1 : dataEnd + 1;
+    }
+
+    private static int readIntLE(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xff) | (bytes[pos + 1] & 0xff) << 8
+                | (bytes[pos + 2] & 0xff) << 16 | (bytes[pos + 3] & 0xff) << 24;
+    }
+
+    private int inflate(Inflater inflater, byte[] bytes, int offset, int length,
+            int sizeHint) throws IOException {
+        inflater.reset();
+        inflater.setInput(bytes, offset, length);
+        //deflate cannot expand data by more than about 1032 times, which
+        //bounds the size given by a corrupt gzip trailer
+        ensureCapacity(Math.min(Math.min(sizeHint, length * 1032 + 1024), maxDecodedBytes));
+        int decodedLength = 0;
+        try {
+            while (!inflater.finished()) {
+                if (decodedLength == out.length) {
+                    if (out.length >= maxDecodedBytes) {
+                        throw tooLarge();
+                    }
+                    ensureCapacity((int) Math.min(out.length * 2L, maxDecodedBytes));
+                }
+                int n = inflater.inflate(out, decodedLength, out.length - decodedLength);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return notDecoded("Truncated compressed payload");
+                }
+                decodedLength += n;
+            }
+        } catch (DataFormatException e) {
+            return notDecoded("Corrupt compressed payload: " + e.getMessage());
+        }
+        if (inflater.getRemaining() > 0) {
+            return notDecoded("Payload continues after the compressed data");
+        }
+        return decodedLength;
+    }
+
+    //grows the output buffer, keeping its contents
+    private void ensureCapacity(int capacity) {
+        if (capacity > out.length) {
+            out = Arrays.copyOf(out, capacity);
+        }
+    }
+}
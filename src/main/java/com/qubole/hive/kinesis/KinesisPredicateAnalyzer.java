@@ -0,0 +1,210 @@
+package com.qubole.hive.kinesis;
+
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.index.IndexPredicateAnalyzer;
+import org.apache.hadoop.hive.ql.index.IndexSearchCondition;
+import org.apache.hadoop.hive.ql.metadata.HiveStoragePredicateHandler.DecomposedPredicate;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
+import org.apache.hadoop.hive.ql.plan.TableScanDesc;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqual;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqualOrGreaterThan;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqualOrLessThan;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPGreaterThan;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPLessThan;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Finds the conditions in a query predicate that restrict the kinesis record
+ * attributes mapped to columns, and converts them to scan bounds.
+ */
+class KinesisPredicateAnalyzer {
+
+    private static final String OP_EQUAL = GenericUDFOPEqual.class.getName();
+    private static final String OP_GREATER_THAN_OR_EQUAL =
+            GenericUDFOPEqualOrGreaterThan.class.getName();
+    private static final String OP_LESS_THAN_OR_EQUAL =
+            GenericUDFOPEqualOrLessThan.class.getName();
+    private static final String OP_GREATER_THAN = GenericUDFOPGreaterThan.class.getName();
+    private static final String OP_LESS_THAN = GenericUDFOPLessThan.class.getName();
+
+    private final String arrivalTimeColumn;
+    private final String seqNoColumn;
+    private final String partitionKeyColumn;
+
+    private static final Log LOG = LogFactory.getLog(KinesisPredicateAnalyzer.class);
+
+    KinesisPredicateAnalyzer(String arrivalTimeColumn, String seqNoColumn,
+            String partitionKeyColumn) {
+        this.arrivalTimeColumn = toLowerCase(arrivalTimeColumn);
+        this.seqNoColumn = toLowerCase(seqNoColumn);
+        this.partitionKeyColumn = toLowerCase(partitionKeyColumn);
+    }
+
+    static KinesisPredicateAnalyzer fromConf(Configuration conf) {
+        return new KinesisPredicateAnalyzer(conf.get(Constants.ARRIVAL_TIME_COLUMN),
+                conf.get(Constants.SEQUENCE_NUMBER_COLUMN),
+                conf.get(Constants.PARTITION_KEY_COLUMN));
+    }
+
+    private static String toLowerCase(String column) {
+        return column == null ? null : column.toLowerCase();
+    }
+
+    private boolean hasColumns() {
+        return arrivalTimeColumn != null || seqNoColumn != null
+                || partitionKeyColumn != null;
+    }
+
+    private IndexPredicateAnalyzer newAnalyzer() {
+        IndexPredicateAnalyzer analyzer = new IndexPredicateAnalyzer();
+        analyzer.addComparisonOp(OP_EQUAL);
+        analyzer.addComparisonOp(OP_GREATER_THAN_OR_EQUAL);
+        analyzer.addComparisonOp(OP_LESS_THAN_OR_EQUAL);
+        analyzer.addComparisonOp(OP_GREATER_THAN);
+        analyzer.addComparisonOp(OP_LESS_THAN);
+        if (arrivalTimeColumn != null) {
+            analyzer.allowColumnName(arrivalTimeColumn);
+        }
+        if (seqNoColumn != null) {
+            analyzer.allowColumnName(seqNoColumn);
+        }
+        if (partitionKeyColumn != null) {
+            analyzer.allowColumnName(partitionKeyColumn);
+        }
+        return analyzer;
+    }
+
+    /**
+     * Decomposes the predicate for the storage handler. The conditions that
+     * can be used by the reader are pushed, and the whole predicate is left
+     * as residual, since the reader only uses them to narrow the scan.
+     * Returns null if nothing can be pushed.
+     */
+    DecomposedPredicate decompose(ExprNodeDesc predicate) {
+        if (!hasColumns() || !(predicate instanceof ExprNodeGenericFuncDesc)) {
+            return null;
+        }
+        List<IndexSearchCondition> conditions = new ArrayList<IndexSearchCondition>();
+        IndexPredicateAnalyzer analyzer = newAnalyzer();
+        analyzer.analyzePredicate(predicate, conditions);
+        if (conditions.isEmpty()) {
+            return null;
+        }
+        DecomposedPredicate decomposed = new DecomposedPredicate();
+        decomposed.pushedPredicate = analyzer.translateSearchConditions(conditions);
+        decomposed.residualPredicate = (ExprNodeGenericFuncDesc) predicate;
+        return decomposed;
+    }
+
+    /**
+     * Returns the scan bounds for the filter pushed to the table scan
+     * in the job conf.
+     */
+    KinesisScanBounds getScanBounds(Configuration conf) {
+        KinesisScanBounds bounds = new KinesisScanBounds();
+        String filterExprSerialized = conf.get(TableScanDesc.FILTER_EXPR_CONF_STR);
+        if (filterExprSerialized == null || !hasColumns()) {
+            return bounds;
+        }
+        ExprNodeGenericFuncDesc filterExpr =
+                Utilities.deserializeExpression(filterExprSerialized);
+        List<IndexSearchCondition> conditions = new ArrayList<IndexSearchCondition>();
+        newAnalyzer().analyzePredicate(filterExpr, conditions);
+        for (IndexSearchCondition condition : conditions) {
+            String column = condition.getColumnDesc().getColumn().toLowerCase();
+            Object value = condition.getConstantDesc().getValue();
+            if (column.equals(arrivalTimeColumn)) {
+                restrictArrivalTime(bounds, condition.getComparisonOp(), value);
+            } else if (column.equals(seqNoColumn)) {
+                restrictSeqNo(bounds, condition.getComparisonOp(), value);
+            } else if (column.equals(partitionKeyColumn)) {
+                //only equality identifies the shards holding the key
+                if (condition.getComparisonOp().equals(OP_EQUAL) && value != null) {
+                    bounds.restrictPartitionKey(value.toString());
+                }
+            }
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Arrival time bounds: [" + bounds.getMinArrivalTimeMs()
+                    + ", " + bounds.getMaxArrivalTimeMs() + "], sequence number bounds: ["
+                    + bounds.getMinSeqNo() + ", " + bounds.getMaxSeqNo() + "], partition key: "
+                    + bounds.getPartitionKey());
+        }
+        return bounds;
+    }
+
+    private void restrictArrivalTime(KinesisScanBounds bounds, String op,
+            Object value) {
+        if (value == null) {
+            return;
+        }
+        long floorMs;
+        long ceilMs;
+        if (value instanceof Timestamp) {
+            Timestamp ts = (Timestamp) value;
+            floorMs = ts.getTime();
+            ceilMs = ts.getNanos() % 1000000 == 0 ? floorMs : floorMs + 1;
+        } else if (value instanceof Number) {
+            floorMs = ((Number) value).longValue();
+            ceilMs = floorMs;
+        } else {
+            try {
+                Timestamp ts = Timestamp.valueOf(value.toString());
+                floorMs = ts.getTime();
+                ceilMs = ts.getNanos() % 1000000 == 0 ? floorMs : floorMs + 1;
+            } catch (IllegalArgumentException e) {
+                //not a timestamp, the bound is not used
+                return;
+            }
+        }
+        //bounds are widened to whole milliseconds
+        if (op.equals(OP_EQUAL)) {
+            bounds.restrictMinArrivalTimeMs(floorMs);
+            bounds.restrictMaxArrivalTimeMs(ceilMs);
+        } else if (op.equals(OP_GREATER_THAN_OR_EQUAL) || op.equals(OP_GREATER_THAN)) {
+            bounds.restrictMinArrivalTimeMs(floorMs);
+        } else if (op.equals(OP_LESS_THAN_OR_EQUAL) || op.equals(OP_LESS_THAN)) {
+            bounds.restrictMaxArrivalTimeMs(ceilMs);
+        }
+    }
+
+    /*
+     * Sequence numbers are compared as numbers. The column is a string, and
+     * hive compares it with the constant as a string, which gives the same
+     * result since the sequence numbers of a stream have the same length.
+     */
+    private void restrictSeqNo(KinesisScanBounds bounds, String op, Object value) {
+        if (value == null) {
+            return;
+        }
+        BigInteger seqNo;
+        try {
+            seqNo = new BigInteger(value.toString().trim());
+        } catch (NumberFormatException e) {
+            //not a sequence number, the bound is not used
+            return;
+        }
+        if (op.equals(OP_EQUAL)) {
+            bounds.restrictMinSeqNo(seqNo);
+            bounds.restrictMaxSeqNo(seqNo);
+        } else if (op.equals(OP_GREATER_THAN_OR_EQUAL)) {
+            bounds.restrictMinSeqNo(seqNo);
+        } else if (op.equals(OP_GREATER_THAN)) {
+            bounds.restrictMinSeqNo(seqNo.add(BigInteger.ONE));
+        } else if (op.equals(OP_LESS_THAN_OR_EQUAL)) {
+            bounds.restrictMaxSeqNo(seqNo);
+        } else if (op.equals(OP_LESS_THAN)) {
+            bounds.restrictMaxSeqNo(seqNo.subtract(BigInteger.ONE));
+        }
+    }
+}
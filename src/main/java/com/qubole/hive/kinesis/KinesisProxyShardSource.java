@@ -0,0 +1,45 @@
+package com.qubole.hive.kinesis;
+
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.clientlibrary.proxies.KinesisProxy;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Reads a stream from kinesis, through the proxy of the kinesis client
+ * library.
+ */
+public class KinesisProxyShardSource implements KinesisShardSource {
+
+    private final KinesisProxy kinesisProxy;
+
+    public KinesisProxyShardSource(KinesisProxy kinesisProxy) {
+        this.kinesisProxy = kinesisProxy;
+    }
+
+    KinesisProxy getKinesisProxy() {
+        return kinesisProxy;
+    }
+
+    @Override
+    public List<Shard> getShardList() {
+        return kinesisProxy.getShardList();
+    }
+
+    @Override
+    public String getIterator(String shardId, String iteratorType, String sequenceNumber) {
+        return kinesisProxy.getIterator(shardId, iteratorType, sequenceNumber);
+    }
+
+    @Override
+    public String getIterator(String shardId, Date timestamp) {
+        return kinesisProxy.getIterator(shardId, timestamp);
+    }
+
+    @Override
+    public GetRecordsResult get(String shardIterator, int maxRecords) {
+        return kinesisProxy.get(shardIterator, maxRecords);
+    }
+}
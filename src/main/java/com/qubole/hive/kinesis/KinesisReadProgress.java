@@ -0,0 +1,151 @@
+package com.qubole.hive.kinesis;
+
+import java.math.BigInteger;
+
+/**
+ * Tracks how far a reader has got through its split. Progress is the
+ * position of the last sequence number read between the first and last
+ * sequence numbers of the split, when both are known. Otherwise it is
+ * estimated from the arrival times of the records read and how far the
+ * reader is behind the tip of the shard (MillisBehindLatest).
+ *
+ * When the first and last sequence numbers have the same number of digits,
+ * the ones between them do too, and share the leading digits those two
+ * share. Only the digits after those are read, into a double, so that
+ * progress can be asked for after every record without parsing it.
+ */
+class KinesisReadProgress {
+
+    private final BigInteger startSeqNo;
+    private final BigInteger endSeqNo;
+    //number of leading digits shared by the first and last sequence numbers
+    //of the split, -1 if they do not have the same number of digits
+    private final int sharedDigits;
+    private final String sharedPrefix;
+    private final int seqNoLength;
+    //the digits of the first sequence number after the shared ones
+    private final double startRest;
+    private final double restRange;
+    //the last sequence number parsed otherwise, and its position
+    private String parsedSeqNo = null;
+    private double parsedProgress = 0.0;
+
+    private String lastSeqNo = null;
+    private long firstArrivalTimeMs = KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME;
+    private long lastArrivalTimeMs = KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME;
+    private long bytesRead = 0L;
+    private boolean finished = false;
+    //from the last batch taken by the reader
+    private long millisBehindLatest = -1L;
+    private long lastFetchedArrivalTimeMs = KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME;
+
+    /**
+     * startSeqNo and endSeqNo are the first and last sequence numbers of the
+     * split, null if not known.
+     */
+    KinesisReadProgress(String startSeqNo, String endSeqNo) {
+        this.startSeqNo = startSeqNo == null ? null : new BigInteger(startSeqNo);
+        this.endSeqNo = endSeqNo == null ? null : new BigInteger(endSeqNo);
+        if (startSeqNo != null && endSeqNo != null
+                && startSeqNo.length() == endSeqNo.length()) {
+            int shared = 0;
+            while (shared < startSeqNo.length()
+                    && startSeqNo.charAt(shared) == endSeqNo.charAt(shared)) {
+                shared++;
+            }
+            this.sharedDigits = shared;
+            this.sharedPrefix = startSeqNo.substring(0, shared);
+            this.seqNoLength = startSeqNo.length();
+            this.startRest = digitsAfter(startSeqNo, shared);
+            this.restRange = digitsAfter(endSeqNo, shared) - startRest;
+        } else {
+            this.sharedDigits = -1;
+            this.sharedPrefix = null;
+            this.seqNoLength = 0;
+            this.startRest = 0.0;
+            this.restRange = 0.0;
+        }
+    }
+
+    void onRecordRead(String seqNo, long arrivalTimeMs, long bytes) {
+        lastSeqNo = seqNo;
+        bytesRead += bytes;
+        if (arrivalTimeMs != KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME) {
+            if (firstArrivalTimeMs == KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME) {
+                firstArrivalTimeMs = arrivalTimeMs;
+            }
+            lastArrivalTimeMs = arrivalTimeMs;
+        }
+    }
+
+    void onFetch(Long millisBehindLatest, long lastFetchedArrivalTimeMs) {
+        if (millisBehindLatest != null) {
+            this.millisBehindLatest = millisBehindLatest;
+        }
+        this.lastFetchedArrivalTimeMs = lastFetchedArrivalTimeMs;
+    }
+
+    void finish() {
+        finished = true;
+    }
+
+    float getProgress() {
+        if (finished) {
+            return 1.0f;
+        }
+        if (lastSeqNo == null) {
+            return 0.0f;
+        }
+        if (startSeqNo != null && endSeqNo != null
+                && endSeqNo.compareTo(startSeqNo) > 0) {
+            return clamp(seqNoProgress());
+        }
+        long behindMs = millisBehindLatest;
+        if (behindMs < 0 || firstArrivalTimeMs == KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME) {
+            return 0.0f;
+        }
+        //records fetched but not read yet are behind as well
+        long fetchedArrivalTimeMs = lastFetchedArrivalTimeMs;
+        if (fetchedArrivalTimeMs > lastArrivalTimeMs) {
+            behindMs += fetchedArrivalTimeMs - lastArrivalTimeMs;
+        }
+        long readMs = lastArrivalTimeMs - firstArrivalTimeMs;
+        if (readMs + behindMs <= 0) {
+            return 0.0f;
+        }
+        return clamp((double) readMs / (readMs + behindMs));
+    }
+
+    //the position of the last sequence number read between the first and
+    //last ones of the split
+    private double seqNoProgress() {
+        if (sharedDigits >= 0 && lastSeqNo.length() == seqNoLength
+                && lastSeqNo.regionMatches(0, sharedPrefix, 0, sharedDigits)) {
+            return (digitsAfter(lastSeqNo, sharedDigits) - startRest) / restRange;
+        }
+        if (lastSeqNo != parsedSeqNo) {
+            BigInteger read = new BigInteger(lastSeqNo).subtract(startSeqNo);
+            BigInteger total = endSeqNo.subtract(startSeqNo);
+            parsedSeqNo = lastSeqNo;
+            parsedProgress = read.doubleValue() / total.doubleValue();
+        }
+        return parsedProgress;
+    }
+
+    private static double digitsAfter(String seqNo, int from) {
+        double value = 0.0;
+        for (int i = from; i < seqNo.length(); i++) {
+            value = value * 10.0 + (seqNo.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static float clamp(double progress) {
+        return (float) Math.max(0.0, Math.min(1.0, progress));
+    }
+
+    //bytes of record data read so far
+    long getPos() {
+        return bytesRead;
+    }
+}
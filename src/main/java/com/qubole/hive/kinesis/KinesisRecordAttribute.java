@@ -0,0 +1,26 @@
+package com.qubole.hive.kinesis;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Attributes of a kinesis record that can be mapped to table columns. The
+ * column for each attribute is named by a table property.
+ */
+enum KinesisRecordAttribute {
+
+    ARRIVAL_TIME(Constants.ARRIVAL_TIME_COLUMN),
+    SHARD_ID(Constants.SHARD_ID_COLUMN),
+    SEQUENCE_NUMBER(Constants.SEQUENCE_NUMBER_COLUMN),
+    PARTITION_KEY(Constants.PARTITION_KEY_COLUMN),
+    SUB_SEQUENCE_NUMBER(Constants.SUB_SEQUENCE_NUMBER_COLUMN);
+
+    private final String columnProperty;
+
+    private KinesisRecordAttribute(String columnProperty) {
+        this.columnProperty = columnProperty;
+    }
+
+    String getColumnProperty() {
+        return columnProperty;
+    }
+}
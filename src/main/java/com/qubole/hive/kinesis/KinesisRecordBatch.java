@@ -0,0 +1,55 @@
+package com.qubole.hive.kinesis;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * A batch of records fetched from a shard, together with what the fetch
+ * found out about the shard. The batch is handed from the thread fetching
+ * records to the thread reading them, so that the reader does not look at
+ * state the fetching thread is still changing. An empty batch marks the end
+ * of the records to be read.
+ */
+class KinesisRecordBatch {
+
+    static final KinesisRecordBatch EMPTY = new KinesisRecordBatch(
+            Collections.<Record>emptyList(), false, null,
+            KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME);
+
+    private final List<Record> records;
+    private final boolean shardClosed;
+    //null if not known
+    private final Long millisBehindLatest;
+    private final long lastFetchedArrivalTimeMs;
+
+    /**
+     * shardClosed is whether the shard has been fetched to its end, and
+     * lastFetchedArrivalTimeMs the arrival time of the last record fetched
+     * from the shard so far, in this or an earlier batch.
+     */
+    KinesisRecordBatch(List<Record> records, boolean shardClosed,
+            Long millisBehindLatest, long lastFetchedArrivalTimeMs) {
+        this.records = records;
+        this.shardClosed = shardClosed;
+        this.millisBehindLatest = millisBehindLatest;
+        this.lastFetchedArrivalTimeMs = lastFetchedArrivalTimeMs;
+    }
+
+    List<Record> getRecords() {
+        return records;
+    }
+
+    boolean isShardClosed() {
+        return shardClosed;
+    }
+
+    Long getMillisBehindLatest() {
+        return millisBehindLatest;
+    }
+
+    long getLastFetchedArrivalTimeMs() {
+        return lastFetchedArrivalTimeMs;
+    }
+}
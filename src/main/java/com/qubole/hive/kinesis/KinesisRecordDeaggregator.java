@@ -0,0 +1,257 @@
+package com.qubole.hive.kinesis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes the records aggregated by the Kinesis Producer Library. An
+ * aggregated record is made of a magic header, an AggregatedRecord protobuf
+ * message and the MD5 digest of the message. Decoding does not copy the
+ * user records: their data is returned as ranges of the array backing the
+ * kinesis record. Those ranges start past the header, so a value set from
+ * them copies the user record once, as the bytes of a Text must start at
+ * the beginning of its array. The same instance is reused for every record
+ * of a shard.
+ */
+class KinesisRecordDeaggregator {
+
+    private static final byte[] MAGIC =
+            {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+    private static final int DIGEST_LENGTH = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //fields of the AggregatedRecord and Record messages
+    private static final int FIELD_PARTITION_KEY_TABLE = 1;
+    private static final int FIELD_RECORDS = 3;
+    private static final int FIELD_PARTITION_KEY_INDEX = 1;
+    private static final int FIELD_DATA = 3;
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private final MessageDigest md5;
+    private final byte[] digest = new byte[DIGEST_LENGTH];
+
+    private byte[] array;
+    private ByteBuffer dataView = null;
+    private int pos;
+    private final List<String> partitionKeys = new ArrayList<String>();
+    private int recordCount = 0;
+    private int[] partitionKeyIndex = new int[16];
+    private int[] dataOffset = new int[16];
+    private int[] dataLength = new int[16];
+
+    KinesisRecordDeaggregator() {
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Decodes the data of a kinesis record. Returns false if the record
+     * is not an aggregated record, or is corrupt, in which case it should
+     * be read as a single record.
+     */
+    boolean reset(ByteBuffer data) {
+        recordCount = 0;
+        partitionKeys.clear();
+        array = null;
+        if (!data.hasArray()) {
+            return false;
+        }
+        byte[] bytes = data.array();
+        int start = data.arrayOffset() + data.position();
+        int end = start + data.remaining();
+        int messageStart = start + MAGIC.length;
+        int messageEnd = end - DIGEST_LENGTH;
+        if (messageEnd < messageStart || !hasMagic(bytes, start)) {
+            return false;
+        }
+        md5.reset();
+        md5.update(bytes, messageStart, messageEnd - messageStart);
+        try {
+            md5.digest(digest, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            return false;
+        }
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            if (digest[i] != bytes[messageEnd + i]) {
+                return false;
+            }
+        }
+        array = bytes;
+        try {
+            decodeAggregatedRecord(messageStart, messageEnd);
+            for (int i = 0; i < recordCount; i++) {
+                if (partitionKeyIndex[i] >= partitionKeys.size()) {
+                    throw new IllegalArgumentException("Invalid partition key index");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            recordCount = 0;
+            partitionKeys.clear();
+            array = null;
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean hasMagic(byte[] bytes, int start) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[start + i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    String getPartitionKey(int record) {
+        return partitionKeys.get(partitionKeyIndex[record]);
+    }
+
+    //array holding the data of the user records
+    byte[] getArray() {
+        return array;
+    }
+
+    /**
+     * Returns the data of a user record. The buffer is reused, and is only
+     * valid until the next call.
+     */
+    ByteBuffer getData(int record) {
+        if (dataView == null || dataView.array() != array) {
+            dataView = ByteBuffer.wrap(array);
+        }
+        dataView.clear();
+        dataView.limit(dataOffset[record] + dataLength[record]);
+        dataView.position(dataOffset[record]);
+        return dataView;
+    }
+
+    int getDataOffset(int record) {
+        return dataOffset[record];
+    }
+
+    int getDataLength(int record) {
+        return dataLength[record];
+    }
+
+    private void decodeAggregatedRecord(int start, int end) {
+        pos = start;
+        while (pos < end) {
+            long tag = readVarint(end);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 7);
+            if (field == FIELD_PARTITION_KEY_TABLE
+                    && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                int length = readLength(end);
+                partitionKeys.add(new String(array, pos, length, UTF8));
+                pos += length;
+            } else if (field == FIELD_RECORDS
+                    && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                int length = readLength(end);
+                decodeRecord(pos + length);
+            } else {
+                skipField(wireType, end);
+            }
+        }
+    }
+
+    private void decodeRecord(int end) {
+        int keyIndex = -1;
+        int offset = -1;
+        int length = 0;
+        while (pos < end) {
+            long tag = readVarint(end);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) (tag & 7);
+            if (field == FIELD_PARTITION_KEY_INDEX && wireType == WIRETYPE_VARINT) {
+                long index = readVarint(end);
+                if (index < 0 || index > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Invalid partition key index");
+                }
+                keyIndex = (int) index;
+            } else if (field == FIELD_DATA && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                length = readLength(end);
+                offset = pos;
+                pos += length;
+            } else {
+                skipField(wireType, end);
+            }
+        }
+        if (keyIndex < 0 || offset < 0) {
+            throw new IllegalArgumentException("Incomplete user record");
+        }
+        if (recordCount == dataOffset.length) {
+            int capacity = recordCount * 2;
+            partitionKeyIndex = Arrays.copyOf(partitionKeyIndex, capacity);
+            dataOffset = Arrays.copyOf(dataOffset, capacity);
+            dataLength = Arrays.copyOf(dataLength, capacity);
+        }
+        partitionKeyIndex[recordCount] = keyIndex;
+        dataOffset[recordCount] = offset;
+        dataLength[recordCount] = length;
+        recordCount++;
+    }
+
+    private long readVarint(int end) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) {
+                throw new IllegalArgumentException("Truncated varint");
+            }
+            byte b = array[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private int readLength(int end) {
+        long length = readVarint(end);
+        if (length < 0 || length > end - pos) {
+            throw new IllegalArgumentException("Invalid length " + length);
+        }
+        return (int) length;
+    }
+
+    private void skipField(int wireType, int end) {
+        int skip;
+        switch (wireType) {
+        case WIRETYPE_VARINT:
+            readVarint(end);
+            return;
+        case WIRETYPE_FIXED64:
+            skip = 8;
+            break;
+        case WIRETYPE_LENGTH_DELIMITED:
+            skip = readLength(end);
+            break;
+        case WIRETYPE_FIXED32:
+            skip = 4;
+            break;
+        default:
+            throw new IllegalArgumentException("Unsupported wire type " + wireType);
+        }
+        if (skip > end - pos) {
+            throw new IllegalArgumentException("Truncated field");
+        }
+        pos += skip;
+    }
+}
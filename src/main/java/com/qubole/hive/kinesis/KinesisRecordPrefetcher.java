@@ -0,0 +1,168 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+/**
+ * Fetches batches of records from a shard on a background thread, so that
+ * the next GetRecords call is in flight while the current batch is consumed.
+ * At most prefetchDepth batches, and roughly maxBytes of payload, are held
+ * in memory at a time. An empty batch marks the end of the shard; it is
+ * handed to the consumer, with what the fetch found out about the shard,
+ * every time the consumer asks for a batch after the end.
+ */
+class KinesisRecordPrefetcher {
+
+    interface BatchSupplier {
+        //returns an empty batch when there are no more records to read
+        KinesisRecordBatch nextBatch() throws IOException;
+    }
+
+    private final BatchSupplier supplier;
+    private final int prefetchDepth;
+    private final long maxBytes;
+    private final Thread fetchThread;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<KinesisRecordBatch> batches = new ArrayDeque<KinesisRecordBatch>();
+    //the empty batch the supplier ended with, null if it has not ended
+    private KinesisRecordBatch lastBatch = null;
+    private long bufferedBytes = 0L;
+    private boolean finished = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    //how long close waits for a fetch in flight
+    static final long CLOSE_WAIT_MS = 1000L;
+
+    private static final Log LOG = LogFactory.getLog(KinesisRecordPrefetcher.class);
+
+    KinesisRecordPrefetcher(String name, BatchSupplier supplier,
+            int prefetchDepth, long maxBytes) {
+        this.supplier = supplier;
+        this.prefetchDepth = prefetchDepth;
+        this.maxBytes = maxBytes;
+        this.fetchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fetchLoop();
+            }
+        }, "kinesis-prefetch-" + name);
+        this.fetchThread.setDaemon(true);
+    }
+
+    void start() {
+        fetchThread.start();
+    }
+
+    private void fetchLoop() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    //wait for room in the buffer before issuing the next fetch
+                    while (!closed && (batches.size() >= prefetchDepth
+                            || (bufferedBytes >= maxBytes && !batches.isEmpty()))) {
+                        lock.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                KinesisRecordBatch batch = supplier.nextBatch();
+                long batchBytes = sizeOf(batch);
+                synchronized (lock) {
+                    if (batch.getRecords().isEmpty()) {
+                        lastBatch = batch;
+                        finished = true;
+                    } else {
+                        batches.add(batch);
+                        bufferedBytes += batchBytes;
+                    }
+                    lock.notifyAll();
+                    if (finished) {
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Prefetch interrupted.");
+            }
+            finish(null);
+        } catch (IOException e) {
+            finish(e);
+        } catch (RuntimeException e) {
+            finish(new IOException(e));
+        }
+    }
+
+    private void finish(IOException e) {
+        synchronized (lock) {
+            failure = e;
+            finished = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the next prefetched batch, waiting for it if necessary.
+     * Returns an empty batch once the shard has been read completely.
+     */
+    KinesisRecordBatch take() throws IOException {
+        synchronized (lock) {
+            while (batches.isEmpty() && !finished) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for records", e);
+                }
+            }
+            KinesisRecordBatch batch = batches.poll();
+            if (batch == null) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return lastBatch == null ? KinesisRecordBatch.EMPTY : lastBatch;
+            }
+            bufferedBytes -= sizeOf(batch);
+            lock.notifyAll();
+            return batch;
+        }
+    }
+
+    /**
+     * Stops fetching, and waits up to CLOSE_WAIT_MS for a fetch in flight to
+     * end, so that the state it changes can be read once this returns.
+     */
+    void close() {
+        synchronized (lock) {
+            closed = true;
+            batches.clear();
+            bufferedBytes = 0L;
+            lock.notifyAll();
+        }
+        fetchThread.interrupt();
+        try {
+            fetchThread.join(CLOSE_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fetchThread.isAlive() && LOG.isWarnEnabled()) {
+            LOG.warn("Prefetch thread " + fetchThread.getName() + " is still fetching.");
+        }
+    }
+
+    private static long sizeOf(KinesisRecordBatch batch) {
+        long bytes = 0L;
+        for (Record rec : batch.getRecords()) {
+            bytes += rec.getData().remaining();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,227 @@
+package com.qubole.hive.kinesis;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Value returned by the record reader. The record data is held as Text, so
+ * that it can be read by any SerDe that reads Text, along with the attributes
+ * of the kinesis record that can be mapped to columns by HiveKinesisSerDe.
+ *
+ * Data set with setData is not copied when it starts at the beginning of
+ * its backing array, which is the case for the buffers of the kinesis
+ * client. getBytes then returns the backing array itself. The data is
+ * copied into the Text only if it is modified. Other data, such as the user
+ * records of a KPL aggregated record, is copied, since the bytes of a Text
+ * start at the beginning of its array.
+ */
+public class KinesisRecordWritable extends Text {
+
+    public static final long UNKNOWN_ARRIVAL_TIME = Long.MIN_VALUE;
+
+    private long arrivalTimeMs = UNKNOWN_ARRIVAL_TIME;
+    private String shardId;
+    private String sequenceNumber;
+    private String partitionKey;
+    //index of the user record within a KPL aggregated record, 0 otherwise
+    private long subSequenceNumber = 0L;
+    //record data, if it is not held by the Text
+    private ByteBuffer data = null;
+
+    /**
+     * Sets the record data to the remaining bytes of the buffer. The buffer
+     * must not be modified while this value is in use.
+     */
+    public void setData(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0) {
+            data = buffer;
+        } else if (buffer.hasArray()) {
+            super.set(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            data = null;
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            super.set(bytes, 0, bytes.length);
+            data = null;
+        }
+    }
+
+    /**
+     * Returns the record data as a buffer, without copying it.
+     */
+    public ByteBuffer getData() {
+        if (data != null) {
+            return data;
+        }
+        return ByteBuffer.wrap(super.getBytes(), 0, super.getLength());
+    }
+
+    /**
+     * Copies the data into the Text if it is held by reference, so that the
+     * value stays valid after the buffer it was set from is reused.
+     */
+    public void materialize() {
+        if (data != null) {
+            ByteBuffer buffer = data;
+            data = null;
+            super.set(buffer.array(), 0, buffer.remaining());
+        }
+    }
+
+    @Override
+    public byte[] getBytes() {
+        return data != null ? data.array() : super.getBytes();
+    }
+
+    @Override
+    public int getLength() {
+        return data != null ? data.remaining() : super.getLength();
+    }
+
+    //copyBytes is defined by Text from hadoop 2
+    public byte[] copyBytes() {
+        byte[] copy = new byte[getLength()];
+        System.arraycopy(getBytes(), 0, copy, 0, copy.length);
+        return copy;
+    }
+
+    @Override
+    public void set(String string) {
+        data = null;
+        super.set(string);
+    }
+
+    @Override
+    public void set(byte[] utf8, int start, int len) {
+        data = null;
+        super.set(utf8, start, len);
+    }
+
+    /**
+     * Copies the data and the attributes of another value.
+     */
+    public void set(KinesisRecordWritable other) {
+        set(other.getBytes(), 0, other.getLength());
+        arrivalTimeMs = other.arrivalTimeMs;
+        shardId = other.shardId;
+        sequenceNumber = other.sequenceNumber;
+        partitionKey = other.partitionKey;
+        subSequenceNumber = other.subSequenceNumber;
+    }
+
+    @Override
+    public void append(byte[] utf8, int start, int len) {
+        materialize();
+        super.append(utf8, start, len);
+    }
+
+    @Override
+    public void clear() {
+        data = null;
+        super.clear();
+    }
+
+    @Override
+    public int charAt(int position) {
+        materialize();
+        return super.charAt(position);
+    }
+
+    @Override
+    public int find(String what, int start) {
+        materialize();
+        return super.find(what, start);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return decode(getBytes(), 0, getLength());
+        } catch (CharacterCodingException e) {
+            throw new RuntimeException("Should not have happened " + e.toString());
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        data = null;
+        super.readFields(in);
+    }
+
+    //readFields(DataInput, int) and readWithKnownLength are defined by Text
+    //from hadoop 2, and read into the Text without going through readFields
+    public void readFields(DataInput in, int maxLength) throws IOException {
+        int length = WritableUtils.readVInt(in);
+        if (length < 0) {
+            throw new IOException("tried to deserialize " + length
+                    + " bytes of data! newLength must be non-negative.");
+        } else if (length > maxLength) {
+            throw new IOException("tried to deserialize " + length
+                    + " bytes of data, but maxLength = " + maxLength);
+        }
+        readWithKnownLength(in, length);
+    }
+
+    public void readWithKnownLength(DataInput in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes, 0, length);
+        set(bytes, 0, length);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        if (data == null) {
+            super.write(out);
+            return;
+        }
+        WritableUtils.writeVInt(out, data.remaining());
+        out.write(data.array(), 0, data.remaining());
+    }
+
+    public long getArrivalTimeMs() {
+        return arrivalTimeMs;
+    }
+
+    public void setArrivalTimeMs(long arrivalTimeMs) {
+        this.arrivalTimeMs = arrivalTimeMs;
+    }
+
+    public String getShardId() {
+        return shardId;
+    }
+
+    public void setShardId(String shardId) {
+        this.shardId = shardId;
+    }
+
+    public String getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(String sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    public long getSubSequenceNumber() {
+        return subSequenceNumber;
+    }
+
+    public void setSubSequenceNumber(long subSequenceNumber) {
+        this.subSequenceNumber = subSequenceNumber;
+    }
+}
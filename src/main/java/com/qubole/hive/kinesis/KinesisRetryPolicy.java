@@ -0,0 +1,156 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kinesis.leases.exceptions.DependencyException;
+import com.amazonaws.services.kinesis.leases.exceptions.ProvisionedThroughputException;
+import com.amazonaws.services.kinesis.model.LimitExceededException;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Decides whether a failed call to kinesis or DynamoDB is made again, and
+ * how long to wait first. Throttled calls and transient failures, such as
+ * network and server errors, are retried after a backoff with decorrelated
+ * jitter: each wait is drawn at random between the base delay and three
+ * times the previous wait, up to the maximum delay, so that tasks
+ * throttled together do not all retry together. Other failures are fatal.
+ * A reader or writer has a budget of retries for the whole task, after
+ * which all failures are fatal.
+ */
+class KinesisRetryPolicy {
+
+    enum ErrorKind {
+        THROTTLED,
+        TRANSIENT,
+        FATAL
+    }
+
+    /**
+     * Waits between the attempts of one call.
+     */
+    class Backoff {
+        private final long baseDelayMs;
+        private final long capMs;
+        private long lastDelayMs;
+
+        Backoff(long baseDelayMs) {
+            this.baseDelayMs = baseDelayMs;
+            this.capMs = Math.max(baseDelayMs, maxDelayMs);
+            this.lastDelayMs = baseDelayMs;
+        }
+
+        long nextDelayMs() {
+            long upperMs = Math.min(capMs, Math.max(baseDelayMs, lastDelayMs * 3));
+            lastDelayMs = baseDelayMs + (long) (random.nextDouble() * (upperMs - baseDelayMs));
+            return lastDelayMs;
+        }
+    }
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final AtomicInteger retriesLeft;
+    private final KinesisMetrics metrics;
+    private final Random random;
+
+    private static final Log LOG = LogFactory.getLog(KinesisRetryPolicy.class);
+
+    //metrics may be null
+    KinesisRetryPolicy(long baseDelayMs, long maxDelayMs, int budget,
+            KinesisMetrics metrics, Random random) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.retriesLeft = new AtomicInteger(budget);
+        this.metrics = metrics;
+        this.random = random;
+    }
+
+    static KinesisRetryPolicy fromConf(JobConf conf, KinesisMetrics metrics) {
+        return new KinesisRetryPolicy(
+                conf.getLong(Constants.RETRY_BACKOFF_BASE_MS,
+                        Constants.DEFAULT_RETRY_BACKOFF_BASE_MS),
+                conf.getLong(Constants.RETRY_BACKOFF_MAX_MS,
+                        Constants.DEFAULT_RETRY_BACKOFF_MAX_MS),
+                conf.getInt(Constants.RETRY_BUDGET, Constants.DEFAULT_RETRY_BUDGET),
+                metrics,
+                new Random());
+    }
+
+    static ErrorKind classify(Exception e) {
+        if (e instanceof ProvisionedThroughputExceededException
+                || e instanceof LimitExceededException
+                || e instanceof com.amazonaws.services.dynamodbv2.model
+                        .ProvisionedThroughputExceededException
+                || e instanceof ProvisionedThroughputException) {
+            return ErrorKind.THROTTLED;
+        }
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            if ("ThrottlingException".equals(serviceException.getErrorCode())) {
+                return ErrorKind.THROTTLED;
+            }
+            return serviceException.getStatusCode() >= 500
+                    || serviceException.getErrorType() == AmazonServiceException.ErrorType.Service
+                    ? ErrorKind.TRANSIENT : ErrorKind.FATAL;
+        }
+        //a client exception is retryable if the request could not be sent or
+        //its response could not be read
+        if (e instanceof AmazonClientException) {
+            return ((AmazonClientException) e).isRetryable()
+                    ? ErrorKind.TRANSIENT : ErrorKind.FATAL;
+        }
+        if (e instanceof DependencyException || e instanceof IOException) {
+            return ErrorKind.TRANSIENT;
+        }
+        return ErrorKind.FATAL;
+    }
+
+    //waits starting at the base delay of the policy
+    Backoff newBackoff() {
+        return new Backoff(baseDelayMs);
+    }
+
+    //waits starting at the given delay, such as between polls of an empty shard
+    Backoff newBackoff(long firstDelayMs) {
+        return new Backoff(firstDelayMs);
+    }
+
+    /**
+     * Waits before a failed call is made again, and returns true, or
+     * returns false at once if the failure is fatal or the retry budget has
+     * been spent.
+     */
+    boolean retry(Exception e, Backoff backoff) throws InterruptedException {
+        ErrorKind kind = classify(e);
+        if (kind == ErrorKind.FATAL) {
+            return false;
+        }
+        if (retriesLeft.getAndDecrement() <= 0) {
+            LOG.warn("Retry budget spent, not retrying: " + e);
+            return false;
+        }
+        long delayMs = backoff.nextDelayMs();
+        if (metrics != null) {
+            metrics.onRetry(kind, delayMs);
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Retrying in " + delayMs + " ms after " + kind + " failure: "
+                    + e.getMessage());
+        }
+        Thread.sleep(delayMs);
+        return true;
+    }
+
+    int getRetriesLeft() {
+        return Math.max(0, retriesLeft.get());
+    }
+}
@@ -0,0 +1,76 @@
+package com.qubole.hive.kinesis;
+
+import java.math.BigInteger;
+
+/**
+ * Bounds on the records to be read, obtained from the query predicate.
+ * All bounds are inclusive. The bounds may be wider than the predicate,
+ * since the predicate is evaluated again on the records that are read.
+ */
+class KinesisScanBounds {
+
+    private long minArrivalTimeMs = Long.MIN_VALUE;
+    private long maxArrivalTimeMs = Long.MAX_VALUE;
+    //null if unbounded
+    private BigInteger minSeqNo = null;
+    private BigInteger maxSeqNo = null;
+    //null if any partition key may match
+    private String partitionKey = null;
+    private boolean conflictingPartitionKeys = false;
+
+    long getMinArrivalTimeMs() {
+        return minArrivalTimeMs;
+    }
+
+    long getMaxArrivalTimeMs() {
+        return maxArrivalTimeMs;
+    }
+
+    void restrictMinArrivalTimeMs(long timeMs) {
+        minArrivalTimeMs = Math.max(minArrivalTimeMs, timeMs);
+    }
+
+    void restrictMaxArrivalTimeMs(long timeMs) {
+        maxArrivalTimeMs = Math.min(maxArrivalTimeMs, timeMs);
+    }
+
+    BigInteger getMinSeqNo() {
+        return minSeqNo;
+    }
+
+    BigInteger getMaxSeqNo() {
+        return maxSeqNo;
+    }
+
+    void restrictMinSeqNo(BigInteger seqNo) {
+        if (minSeqNo == null || seqNo.compareTo(minSeqNo) > 0) {
+            minSeqNo = seqNo;
+        }
+    }
+
+    void restrictMaxSeqNo(BigInteger seqNo) {
+        if (maxSeqNo == null || seqNo.compareTo(maxSeqNo) < 0) {
+            maxSeqNo = seqNo;
+        }
+    }
+
+    String getPartitionKey() {
+        return partitionKey;
+    }
+
+    void restrictPartitionKey(String key) {
+        if (partitionKey == null) {
+            partitionKey = key;
+        } else if (!partitionKey.equals(key)) {
+            conflictingPartitionKeys = true;
+        }
+    }
+
+    //true if no record can satisfy the bounds
+    boolean isEmpty() {
+        return conflictingPartitionKeys
+                || minArrivalTimeMs > maxArrivalTimeMs
+                || (minSeqNo != null && maxSeqNo != null
+                        && minSeqNo.compareTo(maxSeqNo) > 0);
+    }
+}
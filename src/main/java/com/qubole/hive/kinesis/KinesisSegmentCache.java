@@ -0,0 +1,280 @@
+package com.qubole.hive.kinesis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Keeps the batches of records fetched from a shard in segment files on the
+ * local disk, so that another attempt of the task on the same node, after a
+ * failure or for speculative execution, reads them from disk instead of
+ * from kinesis. A segment holds a single non-empty batch, and is named by
+ * the position the batch was fetched from: the start of the split, or the
+ * sequence number after which it was fetched. Segments are written once,
+ * to a temporary file that is then renamed, and are read by mapping them
+ * into memory. The end of a closed shard is marked by an empty file named
+ * by the position after its last record. Segments older than the time to
+ * live are deleted. The segments of a shard are kept in dir/owner/stream/shard,
+ * where owner names the region and account of the stream, so that tasks
+ * reading same-named streams of different accounts do not share them.
+ */
+class KinesisSegmentCache {
+
+    private static final int SEGMENT_VERSION = 1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String SHARD_END_SUFFIX = ".end";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long NO_ARRIVAL_TIME = Long.MIN_VALUE;
+
+    private final File shardDir;
+    private final long ttlMs;
+    private long segmentsRead = 0L;
+    private long segmentsWritten = 0L;
+
+    private static final Log LOG = LogFactory.getLog(KinesisSegmentCache.class);
+
+    /**
+     * owner names the owner of the stream, as returned by
+     * KinesisClientRegistry.getStreamOwner.
+     */
+    KinesisSegmentCache(File dir, String owner, String streamName, String shardId,
+            long ttlMs) {
+        this.shardDir = new File(new File(new File(dir, owner), streamName), shardId);
+        this.ttlMs = ttlMs;
+        deleteExpiredSegments();
+    }
+
+    static KinesisSegmentCache fromConf(JobConf conf, String owner, String streamName,
+            String shardId) {
+        String dir = conf.get(Constants.SEGMENT_CACHE_DIR);
+        if (dir == null) {
+            dir = conf.get("hadoop.tmp.dir", System.getProperty("java.io.tmpdir"))
+                    + File.separator + "kinesis-segments";
+        }
+        long ttlMs = conf.getLong(Constants.SEGMENT_CACHE_TTL_MS,
+                Constants.DEFAULT_SEGMENT_CACHE_TTL_MS);
+        return new KinesisSegmentCache(new File(dir), owner, streamName, shardId, ttlMs);
+    }
+
+    /**
+     * Key of the first batch of a split, which is fetched from the start
+     * sequence number, the start time, or the trim horizon.
+     */
+    static String startKey(String startSeqNo, long startTimeMs) {
+        if (startSeqNo != null) {
+            return "at-" + startSeqNo;
+        }
+        if (startTimeMs != Long.MIN_VALUE) {
+            return "time-" + startTimeMs;
+        }
+        return "trim-horizon";
+    }
+
+    //key of the batch fetched after the given sequence number
+    static String afterKey(String seqNo) {
+        return "after-" + seqNo;
+    }
+
+    private File segmentFile(String key) {
+        return new File(shardDir, key + SEGMENT_SUFFIX);
+    }
+
+    private boolean isExpired(File file) {
+        return System.currentTimeMillis() - file.lastModified() > ttlMs;
+    }
+
+    private void deleteExpiredSegments() {
+        File[] files = shardDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (isExpired(file) && !file.delete()) {
+                LOG.warn("Cannot delete expired segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns the records of the segment with the given key, or null if
+     * there is no such segment.
+     */
+    List<Record> read(String key) {
+        File file = segmentFile(key);
+        if (!file.isFile() || isExpired(file)) {
+            return null;
+        }
+        try {
+            List<Record> records = readSegment(file);
+            segmentsRead++;
+            return records;
+        } catch (IOException e) {
+            LOG.warn("Cannot read segment " + file + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOG.warn("Corrupt segment " + file + ": " + e);
+        }
+        if (!file.delete()) {
+            LOG.warn("Cannot delete segment " + file);
+        }
+        return null;
+    }
+
+    /**
+     * Marks the position with the given key as the end of the closed shard,
+     * so that a later attempt knows where the shard ends without asking
+     * kinesis. Failures are logged.
+     */
+    void writeShardEnd(String key) {
+        File file = new File(shardDir, key + SHARD_END_SUFFIX);
+        try {
+            if (!shardDir.isDirectory() && !shardDir.mkdirs() && !shardDir.isDirectory()) {
+                throw new IOException("Cannot create directory " + shardDir);
+            }
+            file.createNewFile();
+        } catch (IOException e) {
+            LOG.warn("Cannot write " + file + ": " + e.getMessage());
+        }
+    }
+
+    //true if the position with the given key is the end of the closed shard
+    boolean isShardEnd(String key) {
+        File file = new File(shardDir, key + SHARD_END_SUFFIX);
+        return file.isFile() && !isExpired(file);
+    }
+
+    static List<Record> readSegment(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer segment =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return readRecords(segment);
+        } finally {
+            raf.close();
+        }
+    }
+
+    //reads the records of a segment, which are also the format of the
+    //segments of the shared cache
+    static List<Record> readRecords(ByteBuffer segment) throws IOException {
+        if (segment.getInt() != SEGMENT_VERSION) {
+            throw new IOException("Unknown segment version");
+        }
+        int count = segment.getInt();
+        List<Record> records = new ArrayList<Record>(count);
+        for (int i = 0; i < count; i++) {
+            Record rec = new Record()
+                    .withSequenceNumber(readString(segment))
+                    .withPartitionKey(readString(segment));
+            long arrivalTimeMs = segment.getLong();
+            if (arrivalTimeMs != NO_ARRIVAL_TIME) {
+                rec.setApproximateArrivalTimestamp(new Date(arrivalTimeMs));
+            }
+            //the data is copied to the heap, where the readers of the
+            //payload expect it
+            byte[] data = new byte[segment.getInt()];
+            segment.get(data);
+            rec.setData(ByteBuffer.wrap(data));
+            records.add(rec);
+        }
+        return records;
+    }
+
+    private static String readString(ByteBuffer segment) {
+        byte[] bytes = new byte[segment.getInt()];
+        segment.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Writes a batch of records as the segment with the given key, unless
+     * the segment exists already. Failures are logged, since the records
+     * can always be fetched from kinesis again.
+     */
+    void write(String key, List<Record> records) {
+        File file = segmentFile(key);
+        if (records.isEmpty() || file.isFile()) {
+            return;
+        }
+        File tmp = null;
+        try {
+            if (!shardDir.isDirectory() && !shardDir.mkdirs() && !shardDir.isDirectory()) {
+                throw new IOException("Cannot create directory " + shardDir);
+            }
+            tmp = File.createTempFile(key, ".tmp", shardDir);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                writeRecords(out, records);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            tmp = null;
+            segmentsWritten++;
+        } catch (IOException e) {
+            LOG.warn("Cannot write segment " + file + ": " + e.getMessage());
+        } finally {
+            if (tmp != null && !tmp.delete()) {
+                LOG.warn("Cannot delete " + tmp);
+            }
+        }
+    }
+
+    static void writeRecords(DataOutputStream out, List<Record> records)
+            throws IOException {
+        out.writeInt(SEGMENT_VERSION);
+        out.writeInt(records.size());
+        for (Record rec : records) {
+            writeString(out, rec.getSequenceNumber());
+            writeString(out, rec.getPartitionKey());
+            out.writeLong(rec.getApproximateArrivalTimestamp() == null
+                    ? NO_ARRIVAL_TIME
+                    : rec.getApproximateArrivalTimestamp().getTime());
+            ByteBuffer data = rec.getData().duplicate();
+            out.writeInt(data.remaining());
+            if (data.hasArray()) {
+                out.write(data.array(), data.arrayOffset() + data.position(),
+                        data.remaining());
+            } else {
+                byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    long getSegmentsRead() {
+        return segmentsRead;
+    }
+
+    long getSegmentsWritten() {
+        return segmentsWritten;
+    }
+}
@@ -1,16 +1,40 @@
 package com.qubole.hive.kinesis;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import org.apache.hadoop.mapred.JobConf;
+
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.kinesis.clientlibrary.types.ExtendedSequenceNumber;
 import com.amazonaws.services.kinesis.leases.exceptions.DependencyException;
-import com.amazonaws.services.kinesis.leases.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.leases.exceptions.LeasingException;
 import com.amazonaws.services.kinesis.leases.exceptions.ProvisionedThroughputException;
 import com.amazonaws.services.kinesis.leases.impl.KinesisClientLease;
 import com.amazonaws.services.kinesis.leases.impl.KinesisClientLeaseManager;
+import com.amazonaws.services.kinesis.leases.impl.KinesisClientLeaseSerializer;
+
+import com.qubole.hive.kinesis.util.Constants;
 
 public class KinesisShardCheckpointer {
+
+    //checkpoint of a closed shard that has been read to the end
+    public static final String SHARD_END =
+            ExtendedSequenceNumber.SHARD_END.getSequenceNumber();
+    //keys read by a single BatchGetItem call
+    private static final int MAX_BATCH_GET_KEYS = 100;
     
     private KinesisClientLeaseManager leaseManager;
     private KinesisClientLease lease;
@@ -22,10 +46,17 @@ public class KinesisShardCheckpointer {
     private int curIterationNumber;
     private long dynamoReadCapacity;
     private long dynamoWriteCapacity;
+    //reports the latency of checkpoints, null if not reported
+    private KinesisMetrics metrics = null;
+    //retries failed DynamoDB calls, null if they are not retried
+    private KinesisRetryPolicy retryPolicy = null;
+    //client of the lease manager, in use until the checkpointer is closed;
+    //null if the lease manager was given
+    private AmazonDynamoDBClient dynamoDBClient = null;
 
     private static final Log LOG = LogFactory.getLog(KinesisShardCheckpointer.class);
 
-    private void reportExceptionToLog(Exception e) {
+    private static void reportExceptionToLog(Exception e) {
         if (LOG.isInfoEnabled()) {
             LOG.info(e.getMessage());
         }
@@ -50,6 +81,35 @@ public class KinesisShardCheckpointer {
                 checkpointIntervalMs,
                 dynamoReadCapacity,
                 dynamoWriteCapacity);
+        this.dynamoDBClient = dynamoDBClient;
+        KinesisClientRegistry.retain(dynamoDBClient);
+    }
+
+    /**
+     * Creates the checkpointer of a shard for the iteration and DynamoDB
+     * table given by the conf.
+     */
+    public static KinesisShardCheckpointer fromConf(AmazonDynamoDBClient dynamoDBClient,
+            JobConf conf, String streamName, String shardId) {
+        long checkpointIntervalMs = conf.getLong(Constants.CHECKPOINT_INTERVAL_MS,
+                Constants.DEFAULT_CHECKPOINT_INTERVAL_MS);
+        int iterationNumber = conf.getInt(Constants.ITERATION_NUMBER, 0);
+        String dynamoDBTable = conf.get(Constants.DYNAMO_TABLE_NAME);
+        String logicalProcessName = conf.get(Constants.CHECKPOINT_LOGICAL_NAME);
+        long readCapacity = conf.getLong(Constants.DYNAMO_READ_CAPACITY,
+                Constants.DEFAULT_DYNAMO_READ_CAPACITY);
+        long writeCapacity = conf.getLong(Constants.DYNAMO_WRITE_CAPACITY,
+                Constants.DEFAULT_DYNAMO_WRITE_CAPACITY);
+        return new KinesisShardCheckpointer(
+                dynamoDBClient,
+                dynamoDBTable,
+                streamName,
+                shardId,
+                logicalProcessName,
+                iterationNumber,
+                checkpointIntervalMs,
+                readCapacity,
+                writeCapacity);
     }
 
     //package access for testing
@@ -92,7 +152,44 @@ public class KinesisShardCheckpointer {
     public void initialize() {
     }
 
+    /**
+     * Ends the use of the DynamoDB client by the checkpointer, which may
+     * then be shut down if it was created by KinesisClientRegistry.
+     */
+    public void close() {
+        if (dynamoDBClient != null) {
+            KinesisClientRegistry.release(dynamoDBClient);
+            dynamoDBClient = null;
+        }
+    }
+
+    void setMetrics(KinesisMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setRetryPolicy(KinesisRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    //waits before a failed call is made again, if the retry policy allows
+    private boolean retry(LeasingException e, KinesisRetryPolicy.Backoff backoff) {
+        if (retryPolicy == null) {
+            return false;
+        }
+        try {
+            return retryPolicy.retry(e, backoff);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     private String createCheckpointKey(int iterationNo) {
+        return createCheckpointKey(logicalProcessName, streamName, shardId, iterationNo);
+    }
+
+    private static String createCheckpointKey(String logicalProcessName,
+            String streamName, String shardId, int iterationNo) {
         return new StringBuilder(logicalProcessName)
                 .append("_")
                 .append(streamName)
@@ -109,17 +206,22 @@ public class KinesisShardCheckpointer {
         String lastReadSeqNo = null;
         KinesisClientLease oldLease = null;
         if (curIterationNumber > 0) {
-            try {
-                oldLease = leaseManager.getLease(createCheckpointKey(curIterationNumber - 1));
-            } catch (DependencyException e) {
-                reportExceptionToLog(e);
-            } catch (InvalidStateException e) {
-                reportExceptionToLog(e);
-            } catch (ProvisionedThroughputException e) {
-                reportExceptionToLog(e);
+            KinesisRetryPolicy.Backoff backoff =
+                    retryPolicy == null ? null : retryPolicy.newBackoff();
+            while (true) {
+                try {
+                    oldLease = leaseManager.getLease(
+                            createCheckpointKey(curIterationNumber - 1));
+                    break;
+                } catch (LeasingException e) {
+                    if (!retry(e, backoff)) {
+                        reportExceptionToLog(e);
+                        break;
+                    }
+                }
             }
-            if (oldLease != null) {
-                lastReadSeqNo = oldLease.getCheckpoint();
+            if (oldLease != null && oldLease.getCheckpoint() != null) {
+                lastReadSeqNo = oldLease.getCheckpoint().getSequenceNumber();
             }
         }
         if (LOG.isInfoEnabled()) {
@@ -132,24 +234,121 @@ public class KinesisShardCheckpointer {
         return lastReadSeqNo;
     }
 
+    /**
+     * Returns the ids of the given shards that the previous iteration read
+     * to the end. The checkpoints are read with BatchGetItem calls of up to
+     * 100 shards each. Shards whose checkpoint cannot be read are taken as
+     * unfinished, so that their readers look at the checkpoint again.
+     */
+    public static Set<String> getFinishedShards(AmazonDynamoDBClient dynamoDBClient,
+            JobConf conf, String streamName, List<String> shardIds) {
+        Set<String> finished = new HashSet<String>();
+        int iterationNumber = conf.getInt(Constants.ITERATION_NUMBER, 0);
+        if (iterationNumber == 0 || shardIds.isEmpty()) {
+            return finished;
+        }
+        String dynamoDBTable = conf.get(Constants.DYNAMO_TABLE_NAME);
+        String logicalProcessName = conf.get(Constants.CHECKPOINT_LOGICAL_NAME);
+        KinesisClientLeaseSerializer serializer = new KinesisClientLeaseSerializer();
+        Map<String, String> shardsByKey = new HashMap<String, String>();
+        List<Map<String, AttributeValue>> keys = new ArrayList<Map<String, AttributeValue>>();
+        for (String shardId : shardIds) {
+            String key = createCheckpointKey(logicalProcessName, streamName, shardId,
+                    iterationNumber - 1);
+            shardsByKey.put(key, shardId);
+            keys.add(serializer.getDynamoHashKey(key));
+        }
+        KinesisRetryPolicy retryPolicy = KinesisRetryPolicy.fromConf(conf, null);
+        for (int from = 0; from < keys.size(); from += MAX_BATCH_GET_KEYS) {
+            Map<String, KeysAndAttributes> request = new HashMap<String, KeysAndAttributes>();
+            request.put(dynamoDBTable, new KeysAndAttributes().withKeys(
+                    keys.subList(from, Math.min(keys.size(), from + MAX_BATCH_GET_KEYS))));
+            KinesisRetryPolicy.Backoff backoff = retryPolicy.newBackoff();
+            //keys DynamoDB did not get to are asked for again
+            while (!request.isEmpty()) {
+                BatchGetItemResult result;
+                try {
+                    result = dynamoDBClient.batchGetItem(
+                            new BatchGetItemRequest().withRequestItems(request));
+                } catch (AmazonClientException e) {
+                    try {
+                        if (retryPolicy.retry(e, backoff)) {
+                            continue;
+                        }
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    reportExceptionToLog(e);
+                    break;
+                }
+                List<Map<String, AttributeValue>> items = result.getResponses().get(dynamoDBTable);
+                if (items != null) {
+                    for (Map<String, AttributeValue> item : items) {
+                        KinesisClientLease lease = serializer.fromDynamoRecord(item);
+                        if (lease.getCheckpoint() != null
+                                && SHARD_END.equals(lease.getCheckpoint().getSequenceNumber())) {
+                            finished.add(shardsByKey.get(lease.getLeaseKey()));
+                        }
+                    }
+                }
+                request = result.getUnprocessedKeys();
+                if (request == null || request.isEmpty()) {
+                    break;
+                }
+                try {
+                    Thread.sleep(backoff.nextDelayMs());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Writes the SHARD_END checkpoint of another shard of the stream, which
+     * the previous iteration read to the end and this iteration does not
+     * read, so that the next iteration skips it as well.
+     */
+    public void checkpointShardEnd(String finishedShardId) {
+        KinesisClientLease finished = new KinesisClientLease();
+        finished.setLeaseKey(createCheckpointKey(logicalProcessName, streamName,
+                finishedShardId, curIterationNumber));
+        finished.setCheckpoint(ExtendedSequenceNumber.SHARD_END);
+        writeLease(finished);
+    }
+
     public void checkpoint(String lastReadSeqNo) {
         LOG.info(new StringBuilder("Trying to checkpoint at").append(lastReadSeqNo).toString());
-        try {
-            lease.setCheckpoint(lastReadSeqNo);
-            leaseManager.createLeaseIfNotExists(lease);
-            if (!leaseManager.updateLease(lease)) {
-                if (LOG.isInfoEnabled()) {
-                    LOG.info("Checkpointing unsuccessful");
+        long startNanos = System.nanoTime();
+        lease.setCheckpoint(new ExtendedSequenceNumber(lastReadSeqNo));
+        writeLease(lease);
+        if (metrics != null) {
+            metrics.onCheckpoint(System.nanoTime() - startNanos);
+        }
+        resetNextCheckpointTime();
+    }
+
+    private void writeLease(KinesisClientLease lease) {
+        KinesisRetryPolicy.Backoff backoff =
+                retryPolicy == null ? null : retryPolicy.newBackoff();
+        while (true) {
+            try {
+                leaseManager.createLeaseIfNotExists(lease);
+                if (!leaseManager.updateLease(lease)) {
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info("Checkpointing unsuccessful");
+                    }
+                }
+                break;
+            } catch (LeasingException e) {
+                if (!retry(e, backoff)) {
+                    reportExceptionToLog(e);
+                    break;
                 }
             }
-        } catch (DependencyException e) {
-            reportExceptionToLog(e);
-        } catch (InvalidStateException e) {
-            reportExceptionToLog(e);
-        } catch (ProvisionedThroughputException e) {
-            reportExceptionToLog(e);
         }
-        resetNextCheckpointTime();
     }
 
     public void checkpointIfTimeUp(String lastReadSeqNo) {
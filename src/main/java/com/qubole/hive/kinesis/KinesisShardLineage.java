@@ -0,0 +1,75 @@
+package com.qubole.hive.kinesis;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Parent and child relations between the shards of a stream, as left by
+ * splitting and merging shards. A shard split in two is the parent of both
+ * new shards, and the shard created by a merge has the two merged shards as
+ * its parent and adjacent parent. Parents that are no longer listed, since
+ * their records have expired, are ignored.
+ */
+class KinesisShardLineage {
+
+    private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+
+    KinesisShardLineage(List<Shard> shardList) {
+        for (Shard shard : shardList) {
+            shards.put(shard.getShardId(), shard);
+        }
+    }
+
+    //listed parents of the shard
+    List<String> getParents(Shard shard) {
+        List<String> parents = new ArrayList<String>(2);
+        addParent(parents, shard.getParentShardId());
+        addParent(parents, shard.getAdjacentParentShardId());
+        return parents;
+    }
+
+    private void addParent(List<String> parents, String parentId) {
+        if (parentId != null && shards.containsKey(parentId)
+                && !parents.contains(parentId)) {
+            parents.add(parentId);
+        }
+    }
+
+    //true if the shard no longer receives records
+    static boolean isClosed(Shard shard) {
+        return shard.getSequenceNumberRange() != null
+                && shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+    }
+
+    /**
+     * Returns the shards ordered so that every shard comes after its
+     * parents. Otherwise the shards stay in the order in which they were
+     * listed.
+     */
+    List<Shard> getShardsInParentOrder() {
+        List<Shard> ordered = new ArrayList<Shard>(shards.size());
+        Set<String> visited = new HashSet<String>();
+        for (Shard shard : shards.values()) {
+            addAfterParents(shard, ordered, visited);
+        }
+        return ordered;
+    }
+
+    private void addAfterParents(Shard shard, List<Shard> ordered, Set<String> visited) {
+        //a shard is visited before its parents are added, which guards
+        //against cycles in malformed lineage
+        if (!visited.add(shard.getShardId())) {
+            return;
+        }
+        for (String parentId : getParents(shard)) {
+            addAfterParents(shards.get(parentId), ordered, visited);
+        }
+        ordered.add(shard);
+    }
+}
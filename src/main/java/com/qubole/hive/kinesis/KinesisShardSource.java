@@ -0,0 +1,40 @@
+package com.qubole.hive.kinesis;
+
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Source of the shards and records of a stream. Kinesis itself is read
+ * through {@link KinesisProxyShardSource}. Other sources stand in for a
+ * stream, to measure the readers without a live stream or to replay a
+ * stream dumped to files. Sources behave like the kinesis API: iterators
+ * are positioned by the iterator types of GetShardIterator, and failures
+ * are reported with the exceptions of the kinesis model.
+ */
+public interface KinesisShardSource {
+
+    /**
+     * Returns the shards of the stream, or null if the stream is not
+     * active.
+     */
+    List<Shard> getShardList();
+
+    /**
+     * Returns an iterator of the shard, positioned by the iterator type:
+     * TRIM_HORIZON, LATEST, AT_SEQUENCE_NUMBER or AFTER_SEQUENCE_NUMBER.
+     */
+    String getIterator(String shardId, String iteratorType, String sequenceNumber);
+
+    //returns an iterator at the first record that arrived at or after the timestamp
+    String getIterator(String shardId, Date timestamp);
+
+    /**
+     * Returns up to maxRecords records from the iterator, with the iterator
+     * of the next records, which is null once the shard is closed and has
+     * been read to the end.
+     */
+    GetRecordsResult get(String shardIterator, int maxRecords);
+}
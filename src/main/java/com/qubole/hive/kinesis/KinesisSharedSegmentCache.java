@@ -0,0 +1,323 @@
+package com.qubole.hive.kinesis;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+/**
+ * Keeps the batches of records fetched from a shard in segment files on a
+ * Hadoop file system, such as HDFS, shared by all queries on the stream.
+ * A segment holds the records of the shard from after one sequence number
+ * up to and including another, and is named by these two sequence numbers.
+ * The names of the segments of a shard are listed once, when the shard is
+ * opened, and serve as the index of the records that can be read from the
+ * cache instead of from kinesis. Segments are written once, to a temporary
+ * file that is then renamed, and are evicted when the query is planned,
+ * once they are older than the time to live or, least recently used first,
+ * when the segments of the stream exceed the maximum size. The segments
+ * of a shard are kept in dir/owner/stream/shard, where owner names the
+ * region and account of the stream, so that same-named streams of
+ * different accounts are kept apart.
+ */
+class KinesisSharedSegmentCache {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    //sequence numbers are non-negative, so this precedes all records
+    private static final BigInteger BEFORE_FIRST = BigInteger.ONE.negate();
+
+    //records of the shard after one sequence number, up to and including another
+    private static class Segment {
+        private final BigInteger after;
+        private final BigInteger last;
+        private final Path path;
+
+        Segment(BigInteger after, BigInteger last, Path path) {
+            this.after = after;
+            this.last = last;
+            this.path = path;
+        }
+    }
+
+    private final FileSystem fs;
+    private final Path shardDir;
+    private final long ttlMs;
+    private final List<Segment> index = new ArrayList<Segment>();
+    private long segmentsRead = 0L;
+    private long segmentsWritten = 0L;
+
+    private static final Log LOG = LogFactory.getLog(KinesisSharedSegmentCache.class);
+
+    /**
+     * owner names the owner of the stream, as returned by
+     * KinesisClientRegistry.getStreamOwner.
+     */
+    KinesisSharedSegmentCache(FileSystem fs, Path dir, String owner, String streamName,
+            String shardId, long ttlMs) {
+        this.fs = fs;
+        this.shardDir = new Path(getStreamDir(dir, owner, streamName), shardId);
+        this.ttlMs = ttlMs;
+        loadIndex();
+    }
+
+    private static Path getStreamDir(Path dir, String owner, String streamName) {
+        return new Path(new Path(dir, owner), streamName);
+    }
+
+    static KinesisSharedSegmentCache fromConf(JobConf conf, String owner, String streamName,
+            String shardId) throws IOException {
+        Path dir = new Path(conf.get(Constants.SHARED_CACHE_DIR,
+                Constants.DEFAULT_SHARED_CACHE_DIR));
+        long ttlMs = conf.getLong(Constants.SHARED_CACHE_TTL_MS,
+                Constants.DEFAULT_SHARED_CACHE_TTL_MS);
+        return new KinesisSharedSegmentCache(dir.getFileSystem(conf), dir, owner,
+                streamName, shardId, ttlMs);
+    }
+
+    /**
+     * Returns the sequence number preceding the given one, so that the
+     * records of a split starting at a sequence number are looked up as the
+     * records after its predecessor.
+     */
+    static String precedingSeqNo(String seqNo) {
+        return new BigInteger(seqNo).subtract(BigInteger.ONE).toString();
+    }
+
+    private static FileStatus[] listStatus(FileSystem fs, Path dir) throws IOException {
+        //depending on the version of hadoop, listing a missing directory
+        //returns null or fails
+        if (!fs.exists(dir)) {
+            return new FileStatus[0];
+        }
+        FileStatus[] statuses = fs.listStatus(dir);
+        return statuses == null ? new FileStatus[0] : statuses;
+    }
+
+    //segments are named <after>_<last>.seg, temporary files start with a dot
+    private static Segment parseSegment(Path path) {
+        String name = path.getName();
+        if (!name.endsWith(SEGMENT_SUFFIX) || name.startsWith(".")) {
+            return null;
+        }
+        String[] bounds =
+                name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("_");
+        if (bounds.length != 2) {
+            return null;
+        }
+        try {
+            return new Segment(new BigInteger(bounds[0]), new BigInteger(bounds[1]), path);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void loadIndex() {
+        try {
+            long now = System.currentTimeMillis();
+            for (FileStatus status : listStatus(fs, shardDir)) {
+                Segment segment = parseSegment(status.getPath());
+                if (segment != null && now - status.getModificationTime() <= ttlMs) {
+                    index.add(segment);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot list segments in " + shardDir + ": " + e.getMessage());
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Found " + index.size() + " cached segments in " + shardDir);
+        }
+    }
+
+    /**
+     * Returns the records of the shard following the given sequence number,
+     * up to the end of the cached segment holding them, or null if they are
+     * not cached.
+     */
+    List<Record> read(String afterSeqNo) {
+        BigInteger after = new BigInteger(afterSeqNo);
+        Segment found = null;
+        for (Segment segment : index) {
+            if (segment.after.compareTo(after) <= 0 && segment.last.compareTo(after) > 0
+                    && (found == null || segment.last.compareTo(found.last) > 0)) {
+                found = segment;
+            }
+        }
+        if (found == null) {
+            return null;
+        }
+        try {
+            List<Record> records = readSegment(found.path);
+            //the segment may start before the requested records
+            int first = 0;
+            while (first < records.size()
+                    && new BigInteger(records.get(first).getSequenceNumber())
+                            .compareTo(after) <= 0) {
+                first++;
+            }
+            markUsed(found.path);
+            segmentsRead++;
+            return records.subList(first, records.size());
+        } catch (IOException e) {
+            LOG.warn("Cannot read segment " + found.path + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOG.warn("Corrupt segment " + found.path + ": " + e);
+            delete(found.path);
+        }
+        index.remove(found);
+        return null;
+    }
+
+    private List<Record> readSegment(Path path) throws IOException {
+        byte[] bytes = new byte[(int) fs.getFileStatus(path).getLen()];
+        FSDataInputStream in = fs.open(path);
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return KinesisSegmentCache.readRecords(ByteBuffer.wrap(bytes));
+    }
+
+    //the access time orders segments for eviction, where the file system
+    //keeps it
+    private void markUsed(Path path) {
+        try {
+            fs.setTimes(path, -1L, System.currentTimeMillis());
+        } catch (IOException e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Cannot set the access time of " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of records fetched after the given sequence number, or
+     * from the start of the split if it is null, unless the records are
+     * cached already. Failures are logged, since the records can always be
+     * fetched from kinesis again.
+     */
+    void write(String afterSeqNo, List<Record> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        BigInteger after = afterSeqNo == null
+                ? new BigInteger(records.get(0).getSequenceNumber()).subtract(BigInteger.ONE)
+                : new BigInteger(afterSeqNo);
+        BigInteger last = new BigInteger(records.get(records.size() - 1).getSequenceNumber());
+        for (Segment segment : index) {
+            if (segment.after.compareTo(after) <= 0 && segment.last.compareTo(last) >= 0) {
+                return;
+            }
+        }
+        Path path = new Path(shardDir, after + "_" + last + SEGMENT_SUFFIX);
+        Path tmp = new Path(shardDir, "." + UUID.randomUUID() + ".tmp");
+        try {
+            DataOutputStream out = fs.create(tmp, false);
+            try {
+                KinesisSegmentCache.writeRecords(out, records);
+            } finally {
+                out.close();
+            }
+            //the segment may have been written by another reader meanwhile
+            if (fs.rename(tmp, path)) {
+                segmentsWritten++;
+            } else {
+                delete(tmp);
+            }
+            index.add(new Segment(after, last, path));
+        } catch (IOException e) {
+            LOG.warn("Cannot write segment " + path + ": " + e.getMessage());
+            delete(tmp);
+        }
+    }
+
+    private void delete(Path path) {
+        try {
+            fs.delete(path, false);
+        } catch (IOException e) {
+            LOG.warn("Cannot delete " + path + ": " + e.getMessage());
+        }
+    }
+
+    long getSegmentsRead() {
+        return segmentsRead;
+    }
+
+    long getSegmentsWritten() {
+        return segmentsWritten;
+    }
+
+    private static long lastUsed(FileStatus status) {
+        return Math.max(status.getModificationTime(), status.getAccessTime());
+    }
+
+    /**
+     * Deletes the segments of the stream older than the time to live, and
+     * then the least recently used segments until the rest fit in the
+     * maximum size. Failures are logged.
+     */
+    static void evict(JobConf conf, String owner, String streamName) {
+        Path dir = getStreamDir(new Path(conf.get(Constants.SHARED_CACHE_DIR,
+                Constants.DEFAULT_SHARED_CACHE_DIR)), owner, streamName);
+        long ttlMs = conf.getLong(Constants.SHARED_CACHE_TTL_MS,
+                Constants.DEFAULT_SHARED_CACHE_TTL_MS);
+        long maxBytes = conf.getLong(Constants.SHARED_CACHE_MAX_BYTES,
+                Constants.DEFAULT_SHARED_CACHE_MAX_BYTES);
+        try {
+            FileSystem fs = dir.getFileSystem(conf);
+            List<FileStatus> segments = new ArrayList<FileStatus>();
+            for (FileStatus shardStatus : listStatus(fs, dir)) {
+                if (shardStatus.isDir()) {
+                    Collections.addAll(segments, listStatus(fs, shardStatus.getPath()));
+                }
+            }
+            Collections.sort(segments, new Comparator<FileStatus>() {
+                @Override
+                public int compare(FileStatus s1, FileStatus s2) {
+                    long used1 = lastUsed(s1);
+                    long used2 = lastUsed(s2);
+                    return used1 < used2 ? -1 : (used1 == used2 ? 0 : 1);
+                }
+            });
+            long totalBytes = 0L;
+            for (FileStatus segment : segments) {
+                totalBytes += segment.getLen();
+            }
+            long now = System.currentTimeMillis();
+            int evicted = 0;
+            for (FileStatus segment : segments) {
+                if (totalBytes <= maxBytes
+                        && now - segment.getModificationTime() <= ttlMs) {
+                    continue;
+                }
+                if (fs.delete(segment.getPath(), false)) {
+                    totalBytes -= segment.getLen();
+                    evicted++;
+                }
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Evicted " + evicted + " cached segments of stream " + streamName
+                        + ", " + totalBytes + " bytes remain.");
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot evict cached segments in " + dir + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.qubole.hive.kinesis;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+import com.qubole.hive.kinesis.util.Constants;
+import com.qubole.hive.kinesis.util.HiveKinesisUtils;
+
+/**
+ * Plans the input splits of a stream. A shard can be divided into splits
+ * reading the records that arrived in consecutive time ranges, so that more
+ * than one task can read it. Each split but the first starts reading at the
+ * first record that arrived at the start of its range, so the splits read
+ * disjoint parts of the shard. Sequence numbers are not spread evenly over
+ * a shard, so they are not used to divide it. The range of each split is
+ * narrowed to the sequence number bounds of the query, and splits outside
+ * the bounds are dropped. If the query
+ * selects a single partition key, only the shards whose hash key range
+ * contains the hash of the key are read. Since the parents and children of
+ * a shard cover the same hash keys, this includes the shards the key was
+ * in before and after resharding.
+ * <p>
+ * Splits are planned in shard lineage order: the splits of a shard come
+ * after those of its parents. When there are fewer task slots than splits,
+ * the older records of a partition key are then read first.
+ * <p>
+ * Unless disabled, the splits record the time at which they were planned.
+ * Readers stop at the first record that arrived after that time, or once
+ * they have caught up with the tip of the shard, so that a query reads the
+ * stream as it was when it started.
+ * <p>
+ * Splits can then be combined into multi-shard splits of up to a given
+ * estimated size, so that small shards do not each need a task of their own.
+ */
+class KinesisSplitPlanner {
+
+    private final String streamName;
+    private final int maxSplitsPerShard;
+    private final KinesisScanBounds bounds;
+    private final JobConf conf;
+
+    private static final Log LOG = LogFactory.getLog(KinesisSplitPlanner.class);
+
+    KinesisSplitPlanner(String streamName, int maxSplitsPerShard,
+            KinesisScanBounds bounds, JobConf conf) {
+        this.streamName = streamName;
+        this.maxSplitsPerShard = maxSplitsPerShard;
+        this.bounds = bounds;
+        this.conf = conf;
+    }
+
+    List<HiveKinesisInputSplit> planSplits(List<Shard> shards, int numSplits) {
+        int splitsPerShard = 1;
+        if (!shards.isEmpty()) {
+            splitsPerShard = Math.min(maxSplitsPerShard,
+                    Math.max(1, numSplits / shards.size()));
+        }
+        List<HiveKinesisInputSplit> splits = new ArrayList<HiveKinesisInputSplit>();
+        if (bounds.isEmpty()) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("No records can satisfy the predicate. No splits planned.");
+            }
+            return splits;
+        }
+        long nowMs = System.currentTimeMillis();
+        long snapshotTimeMs = Long.MAX_VALUE;
+        if (conf.getBoolean(Constants.SNAPSHOT_ENABLED,
+                Constants.DEFAULT_SNAPSHOT_ENABLED)) {
+            snapshotTimeMs = nowMs;
+        }
+        //arrival times of the records that can be read
+        long retentionMs = conf.getLong(Constants.STREAM_RETENTION_MS,
+                Constants.DEFAULT_STREAM_RETENTION_MS);
+        long startTimeMs = Math.max(bounds.getMinArrivalTimeMs(), nowMs - retentionMs);
+        long endTimeMs = Math.min(bounds.getMaxArrivalTimeMs(), nowMs);
+        BigInteger hashKey = null;
+        if (bounds.getPartitionKey() != null) {
+            hashKey = HiveKinesisUtils.hashPartitionKey(bounds.getPartitionKey());
+        }
+        for (Shard shard : new KinesisShardLineage(shards).getShardsInParentOrder()) {
+            if (hashKey != null && !containsHashKey(shard.getHashKeyRange(), hashKey)) {
+                continue;
+            }
+            splits.addAll(planShardSplits(shard.getShardId(),
+                    shard.getSequenceNumberRange(), splitsPerShard,
+                    startTimeMs, endTimeMs));
+        }
+        for (HiveKinesisInputSplit split : splits) {
+            split.setPartitionKey(bounds.getPartitionKey());
+            split.setSnapshotTimeMs(snapshotTimeMs);
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Planned " + splits.size() + " splits for "
+                    + shards.size() + " shards");
+        }
+        return splits;
+    }
+
+    /**
+     * Divides a shard into splits for consecutive ranges of arrival times
+     * between startTimeMs and endTimeMs. The first and the last splits keep
+     * the arrival time bounds of the query, so that records arriving outside
+     * [startTimeMs, endTimeMs] are still read. A query starting at a
+     * sequence number reads the shard with a single split, which starts at
+     * that sequence number.
+     */
+    List<HiveKinesisInputSplit> planShardSplits(String shardId,
+            SequenceNumberRange range, int splitsPerShard, long startTimeMs,
+            long endTimeMs) {
+        List<HiveKinesisInputSplit> splits = new ArrayList<HiveKinesisInputSplit>();
+        if (range != null && !overlapsBounds(range)) {
+            return splits;
+        }
+        int count = splitsPerShard;
+        if (bounds.getMinSeqNo() != null || endTimeMs <= startTimeMs) {
+            count = 1;
+        } else if (endTimeMs - startTimeMs < count) {
+            count = (int) (endTimeMs - startTimeMs);
+        }
+        //split i covers [boundary(i), boundary(i + 1) - 1]
+        long splitStartMs = bounds.getMinArrivalTimeMs();
+        for (int i = 1; i <= count; i++) {
+            long splitEndMs = bounds.getMaxArrivalTimeMs();
+            long boundary = 0L;
+            if (i < count) {
+                boundary = startTimeMs + (endTimeMs - startTimeMs) * i / count;
+                splitEndMs = boundary - 1;
+            }
+            HiveKinesisInputSplit split = addSplit(splits, shardId, range);
+            if (split != null) {
+                split.setArrivalTimeRange(splitStartMs, splitEndMs);
+            }
+            splitStartMs = boundary;
+        }
+        return splits;
+    }
+
+    /**
+     * Groups the splits, in order, into splits of up to maxBytes, where each
+     * shard is estimated to hold shardBytes. A group of one split is left
+     * as it is.
+     */
+    List<FileSplit> combineSplits(List<HiveKinesisInputSplit> splits,
+            long maxBytes, long shardBytes) {
+        List<FileSplit> combined = new ArrayList<FileSplit>();
+        List<HiveKinesisInputSplit> group = new ArrayList<HiveKinesisInputSplit>();
+        long groupBytes = 0L;
+        long nowMs = System.currentTimeMillis();
+        long retentionMs = conf.getLong(Constants.STREAM_RETENTION_MS,
+                Constants.DEFAULT_STREAM_RETENTION_MS);
+        for (HiveKinesisInputSplit split : splits) {
+            long bytes = (long) (estimateFraction(split, nowMs - retentionMs, nowMs)
+                    * shardBytes);
+            if (!group.isEmpty() && groupBytes + bytes > maxBytes) {
+                addGroup(combined, group);
+                group.clear();
+                groupBytes = 0L;
+            }
+            group.add(split);
+            groupBytes += bytes;
+        }
+        addGroup(combined, group);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Combined " + splits.size() + " splits into " + combined.size());
+        }
+        return combined;
+    }
+
+    private void addGroup(List<FileSplit> combined, List<HiveKinesisInputSplit> group) {
+        if (group.size() == 1) {
+            combined.add(group.get(0));
+        } else if (group.size() > 1) {
+            combined.add(new HiveKinesisMultiShardSplit(group, conf));
+        }
+    }
+
+    //the part of a shard covered by the sequence number range of the split
+    //and by its arrival time range within [startTimeMs, endTimeMs]
+    private static double estimateFraction(HiveKinesisInputSplit split,
+            long startTimeMs, long endTimeMs) {
+        double fraction = 1.0;
+        long minTimeMs = Math.max(startTimeMs, split.getMinArrivalTimeMs());
+        long maxTimeMs = Math.min(endTimeMs, split.getMaxArrivalTimeMs());
+        if (endTimeMs > startTimeMs) {
+            fraction = Math.max(0.0, (double) (maxTimeMs - minTimeMs)
+                    / (endTimeMs - startTimeMs));
+        }
+        String shardStart = split.getShardStartSeqNo();
+        String shardEnd = split.getShardEndSeqNo();
+        if (shardStart == null || shardEnd == null) {
+            return fraction;
+        }
+        String start = split.getStartSeqNo() != null ? split.getStartSeqNo() : shardStart;
+        String end = split.getEndSeqNo() != null ? split.getEndSeqNo() : shardEnd;
+        BigInteger shardWidth = new BigInteger(shardEnd).subtract(new BigInteger(shardStart));
+        if (shardWidth.signum() <= 0) {
+            return fraction;
+        }
+        BigInteger width = new BigInteger(end).subtract(new BigInteger(start));
+        return fraction * Math.max(0.0, Math.min(1.0,
+                width.doubleValue() / shardWidth.doubleValue()));
+    }
+
+    private static boolean containsHashKey(HashKeyRange range, BigInteger hashKey) {
+        if (range == null || range.getStartingHashKey() == null
+                || range.getEndingHashKey() == null) {
+            return true;
+        }
+        return hashKey.compareTo(new BigInteger(range.getStartingHashKey())) >= 0
+                && hashKey.compareTo(new BigInteger(range.getEndingHashKey())) <= 0;
+    }
+
+    private boolean overlapsBounds(SequenceNumberRange range) {
+        BigInteger minSeqNo = bounds.getMinSeqNo();
+        BigInteger maxSeqNo = bounds.getMaxSeqNo();
+        if (maxSeqNo != null && range.getStartingSequenceNumber() != null
+                && new BigInteger(range.getStartingSequenceNumber()).compareTo(maxSeqNo) > 0) {
+            return false;
+        }
+        if (minSeqNo != null && range.getEndingSequenceNumber() != null
+                && new BigInteger(range.getEndingSequenceNumber()).compareTo(minSeqNo) < 0) {
+            return false;
+        }
+        return true;
+    }
+
+    //adds a split for the sequence number bounds, and returns it
+    private HiveKinesisInputSplit addSplit(List<HiveKinesisInputSplit> splits,
+            String shardId, SequenceNumberRange range) {
+        BigInteger minSeqNo = bounds.getMinSeqNo();
+        BigInteger maxSeqNo = bounds.getMaxSeqNo();
+        String start = minSeqNo == null ? null : minSeqNo.toString();
+        String end = maxSeqNo == null ? null : maxSeqNo.toString();
+        HiveKinesisInputSplit split =
+                new HiveKinesisInputSplit(streamName, shardId, start, end, conf);
+        if (range != null) {
+            split.setShardSequenceNumberRange(range.getStartingSequenceNumber(),
+                    range.getEndingSequenceNumber());
+        }
+        splits.add(split);
+        return split;
+    }
+}
@@ -0,0 +1,126 @@
+package com.qubole.hive.kinesis;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.Shard;
+
+/**
+ * Shards of the streams read in this JVM, such as HiveServer2, so that
+ * queries planned shortly after each other do not all describe the stream,
+ * whose calls are limited for the whole account. A stream is described by
+ * one query at a time, and the other queries wait for its listing. The
+ * listing of a stream is dropped once it is older than the time to live,
+ * or once a shard listed as open is found to have been closed by
+ * resharding: when planning, by its checkpoint, and by a reader running in
+ * the planning JVM, as in local mode. Listings are kept apart by where
+ * they were listed from, so that queries with other credentials or shard
+ * sources do not share them.
+ */
+class KinesisStreamMetadataCache {
+
+    private static final KinesisStreamMetadataCache INSTANCE =
+            new KinesisStreamMetadataCache();
+
+    private static class Listing {
+        private final String streamName;
+        private final FutureTask<List<Shard>> task;
+        private final long createdMs = System.currentTimeMillis();
+
+        Listing(String streamName, FutureTask<List<Shard>> task) {
+            this.streamName = streamName;
+            this.task = task;
+        }
+
+        boolean isExpired(long ttlMs) {
+            return task.isDone() && System.currentTimeMillis() - createdMs > ttlMs;
+        }
+    }
+
+    //listings by source and stream name
+    private final ConcurrentMap<String, Listing> listings =
+            new ConcurrentHashMap<String, Listing>();
+
+    private static final Log LOG = LogFactory.getLog(KinesisStreamMetadataCache.class);
+
+    static KinesisStreamMetadataCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the shards of the stream, as listed by the source less than
+     * the time to live ago, or null if the stream is not active. sourceKey
+     * identifies the source, such as the region and credentials of a
+     * kinesis client. The shards are listed on every call if the time to
+     * live is not positive.
+     */
+    List<Shard> getShardList(String sourceKey, String streamName,
+            final KinesisShardSource shardSource, long ttlMs) throws IOException {
+        if (ttlMs <= 0) {
+            return shardSource.getShardList();
+        }
+        String key = sourceKey + "/" + streamName;
+        while (true) {
+            Listing listing = listings.get(key);
+            if (listing == null || listing.isExpired(ttlMs)) {
+                Listing newListing = new Listing(streamName,
+                        new FutureTask<List<Shard>>(new Callable<List<Shard>>() {
+                            @Override
+                            public List<Shard> call() {
+                                List<Shard> shards = shardSource.getShardList();
+                                return shards == null
+                                        ? null : Collections.unmodifiableList(shards);
+                            }
+                        }));
+                boolean added = listing == null
+                        ? listings.putIfAbsent(key, newListing) == null
+                        : listings.replace(key, listing, newListing);
+                if (!added) {
+                    //another query is listing the stream
+                    continue;
+                }
+                if (LOG.isInfoEnabled()) {
+                    LOG.info("Listing the shards of stream " + streamName);
+                }
+                newListing.task.run();
+                listing = newListing;
+            }
+            try {
+                List<Shard> shards = listing.task.get();
+                if (shards == null) {
+                    listings.remove(key, listing);
+                }
+                return shards;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while listing the shards", e);
+            } catch (ExecutionException e) {
+                listings.remove(key, listing);
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Cannot list the shards of stream " + streamName,
+                        e.getCause());
+            }
+        }
+    }
+
+    //drops the listings of the stream from all sources
+    void invalidate(String streamName) {
+        for (Map.Entry<String, Listing> entry : listings.entrySet()) {
+            if (entry.getValue().streamName.equals(streamName)) {
+                listings.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.qubole.hive.kinesis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+import com.qubole.hive.kinesis.util.Constants;
+import com.qubole.hive.kinesis.util.HiveKinesisUtils;
+
+/**
+ * Replays a stream dumped to segment files on the local disk, as written by
+ * the local and the shared segment caches. The directory of the stream has
+ * a directory for each shard, holding its segments. The records of the
+ * segments of a shard are read into memory, in the order of their sequence
+ * numbers, and all shards are closed.
+ */
+public class LocalFileShardSource extends InMemoryShardSource {
+
+    public LocalFileShardSource(JobConf conf) throws IOException {
+        this(new File(conf.get(Constants.SHARD_SOURCE_DIR)));
+    }
+
+    public LocalFileShardSource(File streamDir) throws IOException {
+        File[] shardDirs = streamDir.listFiles();
+        if (shardDirs == null) {
+            throw new IOException("Cannot list the shards in " + streamDir);
+        }
+        Arrays.sort(shardDirs);
+        for (File shardDir : shardDirs) {
+            if (shardDir.isDirectory()) {
+                String shardId = shardDir.getName();
+                addShard(shardId);
+                for (Record rec : readRecords(shardDir)) {
+                    addRecord(shardId, rec);
+                }
+                closeShard(shardId);
+            }
+        }
+    }
+
+    //records of the segments of a shard, in order and without duplicates
+    private static List<Record> readRecords(File shardDir) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        File[] files = shardDir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list the segments in " + shardDir);
+        }
+        for (File file : files) {
+            //temporary files of segments being written start with a dot
+            if (file.getName().endsWith(".seg") && !file.getName().startsWith(".")) {
+                records.addAll(KinesisSegmentCache.readSegment(file));
+            }
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record r1, Record r2) {
+                return HiveKinesisUtils.compareSequenceNumbers(
+                        r1.getSequenceNumber(), r2.getSequenceNumber());
+            }
+        });
+        List<Record> distinct = new ArrayList<Record>(records.size());
+        for (Record rec : records) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1)
+                    .getSequenceNumber().equals(rec.getSequenceNumber())) {
+                distinct.add(rec);
+            }
+        }
+        return distinct;
+    }
+}
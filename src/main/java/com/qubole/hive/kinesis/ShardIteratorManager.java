@@ -0,0 +1,136 @@
+package com.qubole.hive.kinesis;
+
+import java.util.Date;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.InvalidArgumentException;
+
+/**
+ * Keeps track of the shard iterator of a single shard. The NextShardIterator
+ * returned by each GetRecords call is chained into the next call, and a new
+ * iterator is requested from kinesis only for the first call and when the
+ * current iterator has expired.
+ */
+class ShardIteratorManager {
+
+    private final KinesisShardSource shardSource;
+    private final String shardId;
+    private final String startSeqNo;
+    private final long startTimeMs;
+    private String shardIterator = null;
+    private boolean shardClosed = false;
+    private long iteratorRequests = 0L;
+    private long iteratorRequestsSaved = 0L;
+
+    private static final Log LOG = LogFactory.getLog(ShardIteratorManager.class);
+
+    /**
+     * startSeqNo is the sequence number at which reading starts if nothing
+     * has been read yet. If null, reading starts at the first record that
+     * arrived at or after startTimeMs, or at the trim horizon if startTimeMs
+     * is Long.MIN_VALUE.
+     */
+    ShardIteratorManager(KinesisShardSource shardSource, String shardId,
+            String startSeqNo, long startTimeMs) {
+        this.shardSource = shardSource;
+        this.shardId = shardId;
+        this.startSeqNo = startSeqNo;
+        this.startTimeMs = startTimeMs;
+    }
+
+    /**
+     * Gets the next batch of records. lastSeqNo is the sequence number of the
+     * last record obtained so far (null if none), and is used to position
+     * a new iterator if one has to be obtained.
+     */
+    GetRecordsResult getRecords(String lastSeqNo, int batchSize) {
+        boolean reused = shardIterator != null;
+        if (!reused) {
+            shardIterator = newIterator(lastSeqNo);
+        }
+        GetRecordsResult result;
+        try {
+            result = shardSource.get(shardIterator, batchSize);
+        } catch (ExpiredIteratorException e) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Shard iterator expired. Obtaining a new one.");
+            }
+            reused = false;
+            shardIterator = newIterator(lastSeqNo);
+            result = shardSource.get(shardIterator, batchSize);
+        }
+        if (reused) {
+            iteratorRequestsSaved++;
+        }
+        shardIterator = result.getNextShardIterator();
+        if (shardIterator == null) {
+            shardClosed = true;
+        }
+        return result;
+    }
+
+    //failures are left to the reader, which retries them or not depending
+    //on the error
+    private String newIterator(String lastSeqNo) {
+        iteratorRequests++;
+        if (lastSeqNo == null) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("This is the first set of records.");
+            }
+            if (startSeqNo != null) {
+                try {
+                    return shardSource.getIterator(shardId,
+                            "AT_SEQUENCE_NUMBER", startSeqNo);
+                } catch (InvalidArgumentException e) {
+                    //the start of the query need not be the sequence number
+                    //of an actual record. Records before it are skipped
+                    //by the reader, at the cost of reading them.
+                    LOG.warn("Cannot start shard " + shardId + " at " + startSeqNo
+                            + ". Reading it from "
+                            + (startTimeMs != Long.MIN_VALUE
+                                    ? "time " + startTimeMs : "the trim horizon")
+                            + " instead.");
+                }
+            }
+            if (startTimeMs != Long.MIN_VALUE) {
+                return shardSource.getIterator(shardId, new Date(startTimeMs));
+            }
+            return shardSource.getIterator(shardId, "TRIM_HORIZON", null);
+        }
+        return shardSource.getIterator(shardId,
+                "AFTER_SEQUENCE_NUMBER", lastSeqNo);
+    }
+
+    /**
+     * Drops the chained iterator after records were read from elsewhere,
+     * such as a cache, so that the next call asks for a new iterator after
+     * the last of them instead of continuing from the last call.
+     */
+    void reset() {
+        shardIterator = null;
+    }
+
+    //true once kinesis has returned no NextShardIterator
+    boolean isShardClosed() {
+        return shardClosed;
+    }
+
+    //the end of the closed shard was found without asking kinesis
+    void setShardClosed() {
+        shardClosed = true;
+    }
+
+    long getIteratorRequests() {
+        return iteratorRequests;
+    }
+
+    //number of GetRecords calls made with a chained iterator, each of which
+    //would otherwise have needed a GetShardIterator call
+    long getIteratorRequestsSaved() {
+        return iteratorRequestsSaved;
+    }
+}
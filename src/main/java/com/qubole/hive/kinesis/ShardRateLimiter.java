@@ -0,0 +1,118 @@
+package com.qubole.hive.kinesis;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token buckets limiting the GetRecords calls and bytes read per second from
+ * a shard. There is one limiter per shard in the JVM, shared by all the
+ * readers of the shard, so that concurrent queries stay within the read
+ * limits of the shard together. Readers waiting for a call are served in
+ * the order in which they arrived.
+ */
+class ShardRateLimiter {
+
+    private static final ConcurrentMap<String, ShardRateLimiter> LIMITERS =
+            new ConcurrentHashMap<String, ShardRateLimiter>();
+
+    private final double callsPerSecond;
+    private final double bytesPerSecond;
+    //orders the readers waiting for a call
+    private final ReentrantLock queue = new ReentrantLock(true);
+    //the following are guarded by this
+    private double callTokens;
+    private double byteTokens;
+    private long lastRefillNanos;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    ShardRateLimiter(double callsPerSecond, long bytesPerSecond) {
+        this.callsPerSecond = callsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.callTokens = callsPerSecond;
+        this.byteTokens = bytesPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the limiter of a shard. The rates are those given by the
+     * first reader of the shard in this JVM.
+     */
+    static ShardRateLimiter forShard(String streamName, String shardId,
+            double callsPerSecond, long bytesPerSecond) {
+        String key = streamName + "/" + shardId;
+        ShardRateLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            ShardRateLimiter newLimiter = new ShardRateLimiter(callsPerSecond, bytesPerSecond);
+            limiter = LIMITERS.putIfAbsent(key, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Waits until a GetRecords call can be made. Returns the time waited,
+     * in nanoseconds.
+     */
+    long acquire() throws InterruptedException {
+        long start = System.nanoTime();
+        queue.lockInterruptibly();
+        try {
+            while (true) {
+                long sleepNanos;
+                synchronized (this) {
+                    refill();
+                    if (callTokens >= 1.0 && byteTokens >= 0.0) {
+                        callTokens -= 1.0;
+                        break;
+                    }
+                    double secondsForCall = Math.max(0.0, 1.0 - callTokens) / callsPerSecond;
+                    double secondsForBytes = Math.max(0.0, -byteTokens) / bytesPerSecond;
+                    sleepNanos = (long) (Math.max(secondsForCall, secondsForBytes) * 1e9) + 1;
+                }
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        } finally {
+            queue.unlock();
+        }
+        long waited = System.nanoTime() - start;
+        calls.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        return waited;
+    }
+
+    //charges the bytes returned by a call. Calls wait until the bytes read
+    //beyond the rate have been paid for.
+    synchronized void onBytesRead(long bytes) {
+        refill();
+        byteTokens -= bytes;
+    }
+
+    //kinesis throttled a call, so no more calls are made for a while
+    synchronized void onThrottled() {
+        refill();
+        callTokens = Math.min(callTokens, 0.0);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (now - lastRefillNanos) / 1e9;
+        lastRefillNanos = now;
+        callTokens = Math.min(callsPerSecond, callTokens + seconds * callsPerSecond);
+        byteTokens = Math.min(bytesPerSecond, byteTokens + seconds * bytesPerSecond);
+    }
+
+    long getCalls() {
+        return calls.get();
+    }
+
+    long getWaitTimeMs() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+}
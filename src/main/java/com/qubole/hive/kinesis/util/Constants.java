@@ -8,6 +8,20 @@ public class Constants {
     public static final String STREAM_NAME = "kinesis.stream.name";
     public static final String ENDPOINT_REGION = "kinesis.endpoint.region";
     public static final String DEFAULT_ENDPOINT_REGION = "us-east-1";
+    public static final String CLIENT_MAX_CONNECTIONS = "kinesis.client.max.connections";
+    public static final int DEFAULT_CLIENT_MAX_CONNECTIONS = 50;
+    public static final String CLIENT_SOCKET_TIMEOUT_MS = "kinesis.client.socket.timeout";
+    public static final int DEFAULT_CLIENT_SOCKET_TIMEOUT_MS = 50000;
+    public static final String CLIENT_CONNECTION_TIMEOUT_MS =
+            "kinesis.client.connection.timeout";
+    public static final int DEFAULT_CLIENT_CONNECTION_TIMEOUT_MS = 10000;
+    public static final String CLIENT_CONNECTION_MAX_IDLE_MS =
+            "kinesis.client.connection.max.idle";
+    public static final long DEFAULT_CLIENT_CONNECTION_MAX_IDLE_MS = 60000L;
+    public static final String CLIENT_TCP_KEEP_ALIVE = "kinesis.client.tcp.keepalive";
+    public static final boolean DEFAULT_CLIENT_TCP_KEEP_ALIVE = true;
+    public static final String SHARD_SOURCE_CLASS = "kinesis.shard.source.class";
+    public static final String SHARD_SOURCE_DIR = "kinesis.shard.source.dir";
     public static final String ACCESS_KEY = "kinesis.accessKey";
     public static final String SECRET_KEY = "kinesis.secretKey";
     public static final String S3_ACCESS_KEY = "fs.s3.awsAccessKeyId";
@@ -17,10 +31,73 @@ public class Constants {
     public static final String BATCH_SIZE = "kinesis.batch.size";
     public static final int DEFAULT_BATCH_SIZE = 1000;
     public static final int MAX_PERMITTED_BATCH_SIZE = 10000;
+    public static final String BATCH_ADAPTIVE = "kinesis.batch.adaptive";
+    public static final String BATCH_MAX_BYTES = "kinesis.batch.max.bytes";
+    public static final long DEFAULT_BATCH_MAX_BYTES = 2L * 1024 * 1024;
     public static final String RETRY_MAXATTEMPTS = "kinesis.retry.maxattempts";
     public static final int DEFAULT_RETRY_MAXATTEMPTS = 3;
     public static final String RETRY_INTERVAL = "kinesis.retry.interval";
     public static final int DEFAULT_RETRY_INTERVAL = 1000; //milliseconds
+    public static final String RETRY_BACKOFF_BASE_MS = "kinesis.retry.backoff.base";
+    public static final long DEFAULT_RETRY_BACKOFF_BASE_MS = 100;
+    public static final String RETRY_BACKOFF_MAX_MS = "kinesis.retry.backoff.max";
+    public static final long DEFAULT_RETRY_BACKOFF_MAX_MS = 10000;
+    //retries of failed calls allowed for each reader or writer
+    public static final String RETRY_BUDGET = "kinesis.retry.budget";
+    public static final int DEFAULT_RETRY_BUDGET = 1000;
+    public static final String PREFETCH_DEPTH = "kinesis.prefetch.depth";
+    public static final int DEFAULT_PREFETCH_DEPTH = 1;
+    public static final String PREFETCH_MAX_BYTES = "kinesis.prefetch.max.bytes";
+    public static final long DEFAULT_PREFETCH_MAX_BYTES = 32L * 1024 * 1024;
+    public static final String MAX_SPLITS_PER_SHARD = "kinesis.split.max.per.shard";
+    public static final int DEFAULT_MAX_SPLITS_PER_SHARD = 1;
+    //shards are divided by the arrival times of the records they retain
+    public static final String STREAM_RETENTION_MS = "kinesis.stream.retention";
+    public static final long DEFAULT_STREAM_RETENTION_MS = 24L * 60 * 60 * 1000;
+    public static final String COMBINE_SPLITS = "kinesis.split.combine";
+    public static final String COMBINE_MAX_BYTES = "kinesis.split.combine.max.bytes";
+    public static final long DEFAULT_COMBINE_MAX_BYTES = 256L * 1024 * 1024;
+    public static final String SHARD_ESTIMATED_BYTES = "kinesis.split.shard.estimated.bytes";
+    public static final long DEFAULT_SHARD_ESTIMATED_BYTES = 64L * 1024 * 1024;
+    public static final String COMBINE_THREADS = "kinesis.split.combine.threads";
+    public static final int DEFAULT_COMBINE_THREADS = 4;
+    public static final String PAYLOAD_SERDE = "kinesis.payload.serde";
+    public static final String ARRIVAL_TIME_COLUMN = "kinesis.arrival.time.column";
+    public static final String SHARD_ID_COLUMN = "kinesis.shard.id.column";
+    public static final String SEQUENCE_NUMBER_COLUMN = "kinesis.sequence.number.column";
+    public static final String PARTITION_KEY_COLUMN = "kinesis.partition.key.column";
+    public static final String SUB_SEQUENCE_NUMBER_COLUMN = "kinesis.sub.sequence.number.column";
+    public static final String ARRIVAL_TIME_SLACK_MS = "kinesis.arrival.time.slack";
+    public static final long DEFAULT_ARRIVAL_TIME_SLACK_MS = 1000L;
+    public static final String SEGMENT_CACHE_ENABLED = "kinesis.cache.local";
+    public static final String SEGMENT_CACHE_DIR = "kinesis.cache.local.dir";
+    public static final String SEGMENT_CACHE_TTL_MS = "kinesis.cache.local.ttl";
+    public static final long DEFAULT_SEGMENT_CACHE_TTL_MS = 60L * 60 * 1000;
+    public static final String SHARED_CACHE_ENABLED = "kinesis.cache.shared";
+    public static final String SHARED_CACHE_DIR = "kinesis.cache.shared.dir";
+    public static final String DEFAULT_SHARED_CACHE_DIR = "/tmp/kinesis-segments";
+    public static final String ACCOUNT_ID = "kinesis.account.id";
+    public static final String SHARED_CACHE_MAX_BYTES = "kinesis.cache.shared.max.bytes";
+    public static final long DEFAULT_SHARED_CACHE_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+    public static final String SHARED_CACHE_TTL_MS = "kinesis.cache.shared.ttl";
+    public static final long DEFAULT_SHARED_CACHE_TTL_MS = 24L * 60 * 60 * 1000;
+    public static final String SNAPSHOT_ENABLED = "kinesis.snapshot";
+    public static final boolean DEFAULT_SNAPSHOT_ENABLED = true;
+    public static final String METADATA_CACHE_TTL_MS = "kinesis.metadata.cache.ttl";
+    public static final long DEFAULT_METADATA_CACHE_TTL_MS = 60000L;
+
+    public static final String SHARD_RATE_LIMIT_ENABLED = "kinesis.shard.rate.limit";
+    public static final String SHARD_READS_PER_SECOND = "kinesis.shard.reads.per.second";
+    public static final int DEFAULT_SHARD_READS_PER_SECOND = 5;
+    public static final String SHARD_BYTES_PER_SECOND = "kinesis.shard.bytes.per.second";
+    public static final long DEFAULT_SHARD_BYTES_PER_SECOND = 2L * 1024 * 1024;
+
+    public static final String PAYLOAD_CODEC = "kinesis.payload.codec";
+    public static final String PAYLOAD_MAX_DECODED_BYTES = "kinesis.payload.max.decoded.bytes";
+    public static final int DEFAULT_PAYLOAD_MAX_DECODED_BYTES = 64 * 1024 * 1024;
+
+    public static final String DEAGGREGATION_ENABLED = "kinesis.kpl.deaggregate";
+    public static final boolean DEFAULT_DEAGGREGATION_ENABLED = true;
     public static final String CHECKPOINTING_ENABLED = "kinesis.checkpoint.enabled";
     public static final String DYNAMO_TABLE_NAME = "kinesis.checkpoint.metastore.table.name";
     public static final String CHECKPOINT_LOGICAL_NAME = "kinesis.checkpoint.logical.name";
@@ -1,5 +1,10 @@
 package com.qubole.hive.kinesis.util;
 
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import org.apache.commons.lang3.Validate;
 import org.apache.hadoop.mapred.JobConf;
 
@@ -55,4 +60,30 @@ public class HiveKinesisUtils {
             }
         };
     }
+
+    /**
+     * Compares two kinesis sequence numbers numerically. Sequence numbers are
+     * decimal strings without leading zeros, so they can be compared by
+     * length first and then lexicographically, without parsing them.
+     */
+    public static int compareSequenceNumbers(String seqNo1, String seqNo2) {
+        if (seqNo1.length() != seqNo2.length()) {
+            return seqNo1.length() < seqNo2.length() ? -1 : 1;
+        }
+        return seqNo1.compareTo(seqNo2);
+    }
+
+    /**
+     * Returns the hash key to which kinesis maps a partition key, i.e, the
+     * MD5 hash of the key as an unsigned 128 bit integer.
+     */
+    public static BigInteger hashPartitionKey(String partitionKey) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            return new BigInteger(1,
+                    md5.digest(partitionKey.getBytes(Charset.forName("UTF-8"))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void testGrowsWhileBehind() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 1, 10000, 1024 * 1024);
+        sizer.onResult(100, 100, 100 * 10, 5000L);
+        assertEquals(200, sizer.getBatchSize());
+        sizer.onResult(200, 200, 200 * 10, 5000L);
+        assertEquals(400, sizer.getBatchSize());
+
+        //caught up, or partial batch: no growth
+        sizer.onResult(400, 400, 400 * 10, 0L);
+        assertEquals(400, sizer.getBatchSize());
+        sizer.onResult(400, 10, 10 * 10, 5000L);
+        assertEquals(400, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testStaysWithinByteBudget() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 1, 10000, 100 * 1024);
+        //1 KB records allow 100 records per batch
+        sizer.onResult(1000, 1000, 1000 * 1024, 5000L);
+        assertEquals(100, sizer.getBatchSize());
+        sizer.onResult(100, 100, 100 * 1024, 5000L);
+        assertEquals(100, sizer.getBatchSize());
+    }
+
+    @Test
+    public void testShrinksWhenThrottled() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 10, 10000, 1024 * 1024);
+        sizer.onThrottled();
+        assertEquals(50, sizer.getBatchSize());
+        for (int i = 0; i < 5; i++) {
+            sizer.onThrottled();
+        }
+        assertEquals(10, sizer.getBatchSize());
+        assertEquals(6, sizer.getThrottledCalls());
+    }
+}
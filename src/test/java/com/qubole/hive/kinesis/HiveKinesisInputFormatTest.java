@@ -6,14 +6,28 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.plan.ExprNodeColumnDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeConstantDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
+import org.apache.hadoop.hive.ql.plan.TableScanDesc;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqual;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobConf;
 
@@ -21,8 +35,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.amazonaws.services.kinesis.clientlibrary.proxies.KinesisProxy;
+import com.amazonaws.services.kinesis.model.HashKeyRange;
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
 
 import com.qubole.hive.kinesis.util.Constants;
+import com.qubole.hive.kinesis.util.HiveKinesisUtils;
 
 public class HiveKinesisInputFormatTest {
 
@@ -41,6 +59,14 @@ public class HiveKinesisInputFormatTest {
     }
 
     private void expectConf() {
+        expectConf(Constants.DEFAULT_MAX_SPLITS_PER_SHARD);
+    }
+
+    private void expectConf(int maxSplitsPerShard) {
+        expectConf(maxSplitsPerShard, false);
+    }
+
+    private void expectConf(int maxSplitsPerShard, boolean checkpointingEnabled) {
         expect(mockJobConf.get(Constants.STREAM_NAME))
                 .andReturn(STR1).anyTimes();
         expect(mockJobConf.getInt(Constants.BATCH_SIZE, Constants.DEFAULT_BATCH_SIZE))
@@ -48,7 +74,10 @@ public class HiveKinesisInputFormatTest {
         expect(mockJobConf.get(Constants.ENDPOINT_REGION))
                 .andReturn("kinesis-east-1").anyTimes();
         expect(mockJobConf.getBoolean(Constants.CHECKPOINTING_ENABLED, false))
-                .andReturn(false).anyTimes();
+                .andReturn(checkpointingEnabled).anyTimes();
+        expect(mockJobConf.getInt(Constants.MAX_SPLITS_PER_SHARD,
+                        Constants.DEFAULT_MAX_SPLITS_PER_SHARD))
+                .andReturn(maxSplitsPerShard).anyTimes();
         expect(mockJobConf.get(Constants.ACCESS_KEY))
                 .andReturn("ACCESS_KEY").anyTimes();
         expect(mockJobConf.get(Constants.SECRET_KEY))
@@ -60,17 +89,27 @@ public class HiveKinesisInputFormatTest {
     @Test
     public void testGetSplits() throws IOException {
         expectConf();
-        Set<String> shardIds = new HashSet<String>();
-        shardIds.add(SHARD1);
-        shardIds.add(SHARD2);
-        shardIds.add(SHARD3);
-        expect(mockKinesisProxy.getAllShardIds()).andReturn(shardIds);
+        List<Shard> shards = Arrays.asList(
+                new Shard().withShardId(SHARD1),
+                new Shard().withShardId(SHARD2),
+                new Shard().withShardId(SHARD3));
+        expect(mockKinesisProxy.getShardList()).andReturn(shards);
+        expect(mockJobConf.getBoolean(Constants.SNAPSHOT_ENABLED,
+                        Constants.DEFAULT_SNAPSHOT_ENABLED))
+                .andReturn(true);
         replay(mockKinesisProxy, mockJobConf);
 
         HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat();
         inputFormat.setKinesisProxy(STR1, mockKinesisProxy);
+        long planningStartMs = System.currentTimeMillis();
         InputSplit[] splits = inputFormat.getSplits(mockJobConf, 1000);
         assertEquals(3, splits.length);
+        //splits record the time at which they were planned
+        for (InputSplit split : splits) {
+            long snapshotTimeMs = ((HiveKinesisInputSplit) split).getSnapshotTimeMs();
+            assertTrue(snapshotTimeMs >= planningStartMs);
+            assertTrue(snapshotTimeMs <= System.currentTimeMillis());
+        }
         assertEquals(STR1, ((HiveKinesisInputSplit) splits[0]).getStreamName());
         assertEquals("PATH", ((HiveKinesisInputSplit) splits[0]).getPath().toString());
 
@@ -85,4 +124,245 @@ public class HiveKinesisInputFormatTest {
 
         verify(mockKinesisProxy, mockJobConf);
     }
+
+    @Test
+    public void testGetSplitsDividesShardsByArrivalTime() throws IOException {
+        expectConf(4);
+        expect(mockJobConf.getLong(Constants.STREAM_RETENTION_MS,
+                        Constants.DEFAULT_STREAM_RETENTION_MS))
+                .andReturn(4000L);
+        //closed shard with a known range, and an open shard
+        List<Shard> shards = Arrays.asList(
+                new Shard().withShardId(SHARD1)
+                        .withSequenceNumberRange(new SequenceNumberRange()
+                                .withStartingSequenceNumber("100")
+                                .withEndingSequenceNumber("500")),
+                new Shard().withShardId(SHARD2)
+                        .withSequenceNumberRange(new SequenceNumberRange()
+                                .withStartingSequenceNumber("100")));
+        expect(mockKinesisProxy.getShardList()).andReturn(shards);
+        replay(mockKinesisProxy, mockJobConf);
+
+        HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat();
+        inputFormat.setKinesisProxy(STR1, mockKinesisProxy);
+        long planningStartMs = System.currentTimeMillis();
+        InputSplit[] splits = inputFormat.getSplits(mockJobConf, 1000);
+        assertEquals(8, splits.length);
+
+        for (int shard = 0; shard < 2; shard++) {
+            //the splits cover consecutive seconds of the retention period,
+            //the first and the last being open ended
+            long startMs = Long.MIN_VALUE;
+            for (int i = 0; i < 4; i++) {
+                HiveKinesisInputSplit split = (HiveKinesisInputSplit) splits[4 * shard + i];
+                assertEquals(shard == 0 ? SHARD1 : SHARD2, split.getShardId());
+                assertNull(split.getStartSeqNo());
+                assertNull(split.getEndSeqNo());
+                assertEquals(startMs, split.getMinArrivalTimeMs());
+                if (i == 0) {
+                    assertTrue(split.getMaxArrivalTimeMs() >= planningStartMs - 3001L);
+                } else if (i < 3) {
+                    assertEquals(999L, split.getMaxArrivalTimeMs() - startMs);
+                } else {
+                    assertEquals(Long.MAX_VALUE, split.getMaxArrivalTimeMs());
+                }
+                startMs = split.getMaxArrivalTimeMs() + 1;
+            }
+        }
+
+        verify(mockKinesisProxy, mockJobConf);
+    }
+
+    @Test
+    public void testGetSplitsPrunesShardsByPartitionKey() throws IOException {
+        expectConf();
+        String partitionKey = "customer-42";
+        List<ExprNodeDesc> children = new ArrayList<ExprNodeDesc>();
+        children.add(new ExprNodeColumnDesc(TypeInfoFactory.stringTypeInfo,
+                "pkey", "t", false));
+        children.add(new ExprNodeConstantDesc(TypeInfoFactory.stringTypeInfo,
+                partitionKey));
+        ExprNodeGenericFuncDesc predicate = new ExprNodeGenericFuncDesc(
+                TypeInfoFactory.booleanTypeInfo, new GenericUDFOPEqual(), children);
+        expect(mockJobConf.get(Constants.PARTITION_KEY_COLUMN))
+                .andReturn("pkey").anyTimes();
+        expect(mockJobConf.get(TableScanDesc.FILTER_EXPR_CONF_STR))
+                .andReturn(Utilities.serializeExpression(predicate)).anyTimes();
+
+        //the hash key space is divided between two shards
+        BigInteger middle = BigInteger.ONE.shiftLeft(127);
+        BigInteger max = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+        List<Shard> shards = Arrays.asList(
+                new Shard().withShardId(SHARD1).withHashKeyRange(new HashKeyRange()
+                        .withStartingHashKey("0")
+                        .withEndingHashKey(middle.subtract(BigInteger.ONE).toString())),
+                new Shard().withShardId(SHARD2).withHashKeyRange(new HashKeyRange()
+                        .withStartingHashKey(middle.toString())
+                        .withEndingHashKey(max.toString())));
+        expect(mockKinesisProxy.getShardList()).andReturn(shards);
+        replay(mockKinesisProxy, mockJobConf);
+
+        HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat();
+        inputFormat.setKinesisProxy(STR1, mockKinesisProxy);
+        InputSplit[] splits = inputFormat.getSplits(mockJobConf, 1000);
+        assertEquals(1, splits.length);
+        HiveKinesisInputSplit split = (HiveKinesisInputSplit) splits[0];
+        String expectedShard = HiveKinesisUtils.hashPartitionKey(partitionKey)
+                .compareTo(middle) < 0 ? SHARD1 : SHARD2;
+        assertEquals(expectedShard, split.getShardId());
+        assertEquals(partitionKey, split.getPartitionKey());
+
+        verify(mockKinesisProxy, mockJobConf);
+    }
+
+    @Test
+    public void testGetSplitsSkipsFinishedShardsInLineageOrder() throws IOException {
+        expectConf(Constants.DEFAULT_MAX_SPLITS_PER_SHARD, true);
+        expect(mockJobConf.get(Constants.DYNAMO_TABLE_NAME)).andReturn("TABLE").anyTimes();
+        expect(mockJobConf.get(Constants.CHECKPOINT_LOGICAL_NAME)).andReturn("QUERY").anyTimes();
+        //SHARD1 and SHARD2 were merged into SHARD3, which is listed first
+        SequenceNumberRange closedRange = new SequenceNumberRange()
+                .withStartingSequenceNumber("100")
+                .withEndingSequenceNumber("500");
+        List<Shard> shards = Arrays.asList(
+                new Shard().withShardId(SHARD3)
+                        .withParentShardId(SHARD1)
+                        .withAdjacentParentShardId(SHARD2)
+                        .withSequenceNumberRange(new SequenceNumberRange()
+                                .withStartingSequenceNumber("600")),
+                new Shard().withShardId(SHARD1).withSequenceNumberRange(closedRange),
+                new Shard().withShardId(SHARD2).withSequenceNumberRange(closedRange));
+        expect(mockKinesisProxy.getShardList()).andReturn(shards);
+
+        replay(mockKinesisProxy, mockJobConf);
+
+        //SHARD1 was read to the end by the previous iteration. The shards
+        //are looked up together.
+        final List<List<String>> lookups = new ArrayList<List<String>>();
+        HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat() {
+            @Override
+            Set<String> getFinishedShards(JobConf job, String streamName,
+                    List<String> shardIds) {
+                lookups.add(shardIds);
+                return Collections.singleton(SHARD1);
+            }
+        };
+        inputFormat.setKinesisProxy(STR1, mockKinesisProxy);
+        InputSplit[] splits = inputFormat.getSplits(mockJobConf, 1000);
+        assertEquals(1, lookups.size());
+        assertEquals(Arrays.asList(SHARD3, SHARD1, SHARD2), lookups.get(0));
+
+        //the merged shard comes after its remaining parent, and the first
+        //split carries the checkpoint of the finished shard over
+        assertEquals(2, splits.length);
+        HiveKinesisInputSplit first = (HiveKinesisInputSplit) splits[0];
+        assertEquals(SHARD2, first.getShardId());
+        assertEquals(Arrays.asList(SHARD1), first.getFinishedShardIds());
+        assertEquals(SHARD3, ((HiveKinesisInputSplit) splits[1]).getShardId());
+        assertTrue(((HiveKinesisInputSplit) splits[1]).getFinishedShardIds().isEmpty());
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        first.write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        HiveKinesisInputSplit read = new HiveKinesisInputSplit();
+        read.readFields(in);
+        assertEquals(Arrays.asList(SHARD1), read.getFinishedShardIds());
+
+        verify(mockKinesisProxy, mockJobConf);
+    }
+
+    @Test
+    public void testGetSplitsListsStreamAgainWhenOpenShardIsFinished() throws IOException {
+        KinesisStreamMetadataCache.getInstance().invalidate(STR1);
+        expectConf(Constants.DEFAULT_MAX_SPLITS_PER_SHARD, true);
+        expect(mockJobConf.get(Constants.DYNAMO_TABLE_NAME)).andReturn("TABLE").anyTimes();
+        expect(mockJobConf.get(Constants.CHECKPOINT_LOGICAL_NAME)).andReturn("QUERY").anyTimes();
+        expect(mockJobConf.getLong(Constants.METADATA_CACHE_TTL_MS,
+                        Constants.DEFAULT_METADATA_CACHE_TTL_MS))
+                .andReturn(60000L).anyTimes();
+        //the cached listing is older than the split of SHARD1 into SHARD2
+        //and SHARD3
+        expect(mockKinesisProxy.getShardList()).andReturn(Arrays.asList(
+                new Shard().withShardId(SHARD1).withSequenceNumberRange(
+                        new SequenceNumberRange().withStartingSequenceNumber("100"))));
+        SequenceNumberRange childRange = new SequenceNumberRange()
+                .withStartingSequenceNumber("600");
+        expect(mockKinesisProxy.getShardList()).andReturn(Arrays.asList(
+                new Shard().withShardId(SHARD1).withSequenceNumberRange(
+                        new SequenceNumberRange().withStartingSequenceNumber("100")
+                                .withEndingSequenceNumber("500")),
+                new Shard().withShardId(SHARD2).withParentShardId(SHARD1)
+                        .withSequenceNumberRange(childRange),
+                new Shard().withShardId(SHARD3).withParentShardId(SHARD1)
+                        .withSequenceNumberRange(childRange)));
+        replay(mockKinesisProxy, mockJobConf);
+
+        //the previous iteration read SHARD1 to its end
+        final List<List<String>> lookups = new ArrayList<List<String>>();
+        HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat() {
+            @Override
+            Set<String> getFinishedShards(JobConf job, String streamName,
+                    List<String> shardIds) {
+                lookups.add(shardIds);
+                return Collections.singleton(SHARD1);
+            }
+        };
+        inputFormat.setKinesisProxy(STR1, mockKinesisProxy);
+        InputSplit[] splits = inputFormat.getSplits(mockJobConf, 1000);
+        assertEquals(Arrays.asList(Arrays.asList(SHARD1),
+                Arrays.asList(SHARD1, SHARD2, SHARD3)), lookups);
+        assertEquals(2, splits.length);
+        assertEquals(SHARD2, ((HiveKinesisInputSplit) splits[0]).getShardId());
+        assertEquals(Arrays.asList(SHARD1),
+                ((HiveKinesisInputSplit) splits[0]).getFinishedShardIds());
+        assertEquals(SHARD3, ((HiveKinesisInputSplit) splits[1]).getShardId());
+
+        //the new listing is cached
+        assertEquals(2, inputFormat.getSplits(mockJobConf, 1000).length);
+
+        verify(mockKinesisProxy, mockJobConf);
+        KinesisStreamMetadataCache.getInstance().invalidate(STR1);
+    }
+
+    @Test
+    public void testGetSplitsCombinesShards() throws IOException {
+        expectConf();
+        expect(mockJobConf.getBoolean(Constants.COMBINE_SPLITS, false)).andReturn(true);
+        expect(mockJobConf.getLong(Constants.COMBINE_MAX_BYTES,
+                        Constants.DEFAULT_COMBINE_MAX_BYTES))
+                .andReturn(200L);
+        expect(mockJobConf.getLong(Constants.SHARD_ESTIMATED_BYTES,
+                        Constants.DEFAULT_SHARD_ESTIMATED_BYTES))
+                .andReturn(100L);
+        List<Shard> shards = Arrays.asList(
+                new Shard().withShardId(SHARD1),
+                new Shard().withShardId(SHARD2),
+                new Shard().withShardId(SHARD3));
+        expect(mockKinesisProxy.getShardList()).andReturn(shards);
+        replay(mockKinesisProxy, mockJobConf);
+
+        HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat();
+        inputFormat.setKinesisProxy(STR1, mockKinesisProxy);
+        InputSplit[] splits = inputFormat.getSplits(mockJobConf, 1000);
+
+        //two shards fit in a split, the third is read on its own
+        assertEquals(2, splits.length);
+        assertTrue(splits[0] instanceof HiveKinesisMultiShardSplit);
+        assertEquals(SHARD3, ((HiveKinesisInputSplit) splits[1]).getShardId());
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        splits[0].write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        HiveKinesisMultiShardSplit split = new HiveKinesisMultiShardSplit();
+        split.readFields(in);
+        assertEquals("PATH", split.getPath().toString());
+        assertEquals(2, split.getSplits().size());
+        assertEquals(SHARD1, split.getSplits().get(0).getShardId());
+        assertEquals(SHARD2, split.getSplits().get(1).getShardId());
+        assertEquals(STR1, split.getSplits().get(1).getStreamName());
+
+        verify(mockKinesisProxy, mockJobConf);
+    }
 }
@@ -1,7 +1,15 @@
 package com.qubole.hive.kinesis;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.createStrictMock;
@@ -13,17 +21,26 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.JobConf;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.kinesis.clientlibrary.proxies.KinesisProxy;
+import com.amazonaws.services.kinesis.model.ExpiredIteratorException;
 import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
 import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
 import com.qubole.hive.kinesis.util.Constants;
 
 public class HiveKinesisRecordReaderTest {
@@ -36,6 +53,7 @@ public class HiveKinesisRecordReaderTest {
 
     private String STR1 = "STREAM_NAME_1";
     private String SHARD1 = "SHARD_ID_1";
+    private String ACCOUNT_ID = "ACCOUNT_ID_1";
     private int BATCH_SIZE = 4;
     private String STARTING_SEQ_NO = "-1";
     private String ITERATOR1 = "ITERATOR_1";
@@ -43,13 +61,25 @@ public class HiveKinesisRecordReaderTest {
     private String ITERATOR3 = "ITERATOR_3";
     private String ITERATOR4 = "ITERATOR_4";
     private String ITERATOR5 = "ITERATOR_5";
+    private long ARRIVAL_TIME_MS = 1400000000000L;
     private Record[] records;
+    private boolean adaptiveBatchSize = false;
+    private long snapshotTimeMs = Long.MAX_VALUE;
+    private String checkpointSeqNo = STARTING_SEQ_NO;
+    private File segmentCacheDir = null;
+    private String shardEndSeqNo = null;
+    private List<String> finishedShardIds = Collections.emptyList();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
 
     private Record createKinesisRecord(String key, String data, String seqNo) {
         return new Record()
                 .withPartitionKey(key)
                 .withData(ByteBuffer.wrap(data.getBytes()))
-                .withSequenceNumber(seqNo);
+                .withSequenceNumber(seqNo)
+                .withApproximateArrivalTimestamp(
+                        new Date(ARRIVAL_TIME_MS + 1000L * Integer.parseInt(seqNo)));
     }
 
     @Before
@@ -68,33 +98,101 @@ public class HiveKinesisRecordReaderTest {
         }
     }
 
-    private void expectForInitialize(boolean checkpointingEnabled) {
+    private void expectForInitialize(boolean checkpointingEnabled,
+            int prefetchDepth) {
+        expectForInitialize(checkpointingEnabled, prefetchDepth, null, null);
+    }
+
+    private void expectForInitialize(boolean checkpointingEnabled,
+            int prefetchDepth, String startSeqNo, String endSeqNo) {
+        expectForInitialize(checkpointingEnabled, prefetchDepth, startSeqNo, endSeqNo,
+                Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private void expectForInitialize(boolean checkpointingEnabled,
+            int prefetchDepth, String startSeqNo, String endSeqNo,
+            long minArrivalTimeMs, long maxArrivalTimeMs) {
         expect(mockSplit.getShardId()).andReturn(SHARD1);
         expect(mockSplit.getStreamName()).andReturn(STR1);
+        expect(mockSplit.getStartSeqNo()).andReturn(startSeqNo);
+        expect(mockSplit.getEndSeqNo()).andReturn(endSeqNo);
+        expect(mockSplit.getMinArrivalTimeMs()).andReturn(minArrivalTimeMs);
+        expect(mockSplit.getMaxArrivalTimeMs()).andReturn(maxArrivalTimeMs);
+        expect(mockSplit.getPartitionKey()).andReturn(null);
+        expect(mockSplit.getShardStartSeqNo()).andReturn(null);
+        expect(mockSplit.getShardEndSeqNo()).andReturn(shardEndSeqNo);
+        expect(mockSplit.getFinishedShardIds()).andReturn(finishedShardIds);
+        expect(mockSplit.getSnapshotTimeMs()).andReturn(snapshotTimeMs);
         expect(mockConf.getInt(Constants.BATCH_SIZE,
                         Constants.DEFAULT_BATCH_SIZE))
                 .andReturn(4);
+        expect(mockConf.getBoolean(Constants.BATCH_ADAPTIVE, false))
+                .andReturn(adaptiveBatchSize);
+        if (adaptiveBatchSize) {
+            expect(mockConf.getLong(Constants.BATCH_MAX_BYTES,
+                            Constants.DEFAULT_BATCH_MAX_BYTES))
+                    .andReturn(Constants.DEFAULT_BATCH_MAX_BYTES);
+        }
         expect(mockConf.getInt(Constants.ITERATION_TIMEOUT_MIN,
                         Constants.DEFAULT_ITERATION_TIMEOUT_MIN))
                 .andReturn(Constants.DEFAULT_ITERATION_TIMEOUT_MIN);
+        expect(mockConf.getBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, true))
+                .andReturn(false);
         expect(mockConf.getInt(Constants.RETRY_MAXATTEMPTS,
                         Constants.DEFAULT_RETRY_MAXATTEMPTS))
                 .andReturn(2);
         expect(mockConf.getInt(Constants.RETRY_INTERVAL,
                         Constants.DEFAULT_RETRY_INTERVAL))
                 .andReturn(5);
+        expect(mockConf.getLong(Constants.RETRY_BACKOFF_BASE_MS,
+                        Constants.DEFAULT_RETRY_BACKOFF_BASE_MS))
+                .andReturn(1L);
+        expect(mockConf.getLong(Constants.RETRY_BACKOFF_MAX_MS,
+                        Constants.DEFAULT_RETRY_BACKOFF_MAX_MS))
+                .andReturn(10L);
+        expect(mockConf.getInt(Constants.RETRY_BUDGET,
+                        Constants.DEFAULT_RETRY_BUDGET))
+                .andReturn(10);
         expect(mockConf.getBoolean(Constants.CHECKPOINTING_ENABLED, false))
                 .andReturn(checkpointingEnabled);
         
         if (checkpointingEnabled) {
             expect(mockCheckpointer.getLastReadSeqNo())
-                .andReturn(STARTING_SEQ_NO);
+                .andReturn(checkpointSeqNo);
+        }
+        expect(mockConf.getBoolean(Constants.SEGMENT_CACHE_ENABLED, false))
+                .andReturn(segmentCacheDir != null);
+        if (segmentCacheDir != null) {
+            //the owner of the stream names the directory of its segments
+            expect(mockConf.get(Constants.ACCOUNT_ID)).andReturn(ACCOUNT_ID);
+            expect(mockConf.get(Constants.ENDPOINT_REGION, Constants.DEFAULT_ENDPOINT_REGION))
+                    .andReturn(Constants.DEFAULT_ENDPOINT_REGION);
+            expect(mockConf.get(Constants.SEGMENT_CACHE_DIR))
+                    .andReturn(segmentCacheDir.getPath());
+            expect(mockConf.getLong(Constants.SEGMENT_CACHE_TTL_MS,
+                            Constants.DEFAULT_SEGMENT_CACHE_TTL_MS))
+                    .andReturn(Constants.DEFAULT_SEGMENT_CACHE_TTL_MS);
         }
+        expect(mockConf.getBoolean(Constants.SHARED_CACHE_ENABLED, false))
+                .andReturn(false);
+        expect(mockConf.getBoolean(Constants.DEAGGREGATION_ENABLED,
+                        Constants.DEFAULT_DEAGGREGATION_ENABLED))
+                .andReturn(true);
+        expect(mockConf.get(Constants.PAYLOAD_CODEC)).andReturn(null);
+        expect(mockConf.getInt(Constants.PAYLOAD_MAX_DECODED_BYTES,
+                        Constants.DEFAULT_PAYLOAD_MAX_DECODED_BYTES))
+                .andReturn(Constants.DEFAULT_PAYLOAD_MAX_DECODED_BYTES);
+        expect(mockConf.getInt(Constants.PREFETCH_DEPTH,
+                        Constants.DEFAULT_PREFETCH_DEPTH))
+                .andReturn(prefetchDepth);
+        expect(mockConf.getLong(Constants.PREFETCH_MAX_BYTES,
+                        Constants.DEFAULT_PREFETCH_MAX_BYTES))
+                .andReturn(Constants.DEFAULT_PREFETCH_MAX_BYTES);
     }
 
     @Test
     public void testNextWithoutCheckpoint() throws IOException {
-        expectForInitialize(false);
+        expectForInitialize(false, 0);
 
         //first getIterator call should be TRIM_HORIZON
         expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
@@ -103,9 +201,7 @@ public class HiveKinesisRecordReaderTest {
                 .andReturn(new GetRecordsResult().withRecords(records[0])
                             .withNextShardIterator(ITERATOR2));
 
-        //next call would be after records[0], no more records returned
-        expect(mockKinesisProxy.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", "0"))
-                .andReturn(ITERATOR2);
+        //next call chains the returned iterator, no more records returned
         expect(mockKinesisProxy.get(ITERATOR2, 4))
                 .andReturn(new GetRecordsResult().withNextShardIterator(ITERATOR3));
 
@@ -138,7 +234,8 @@ public class HiveKinesisRecordReaderTest {
 
     @Test
     public void testNextWithCheckpoint() throws IOException {
-        expectForInitialize(true);
+        //records are fetched in the background, two batches ahead
+        expectForInitialize(true, 2);
 
         //first getIterator call should be after starting_seq
         //given by checkpointer
@@ -149,17 +246,12 @@ public class HiveKinesisRecordReaderTest {
                         .withRecords(records[0], records[1], records[2], records[3])
                         .withNextShardIterator(ITERATOR2));
 
-        //next getIterator call should be after records[3]
-        expect(mockKinesisProxy.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", "3"))
-                .andReturn(ITERATOR2);
+        //next iterator is chained, without calling getIterator
         expect(mockKinesisProxy.get(ITERATOR2, 4))
                 .andReturn(new GetRecordsResult()
                         .withRecords(records[4], records[5])
                         .withNextShardIterator(ITERATOR3));
 
-        //next getIterator call should be after records[5]
-        expect(mockKinesisProxy.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", "5"))
-                .andReturn(ITERATOR3);
         //no records returned this time
         expect(mockKinesisProxy.get(ITERATOR3, 4))
                 .andReturn(new GetRecordsResult()
@@ -173,11 +265,14 @@ public class HiveKinesisRecordReaderTest {
                 .andReturn(new GetRecordsResult()
                         .withNextShardIterator(ITERATOR5));
 
-        //each next call should call checkpointIfTimeUp() with last seq no
-        for (int i = 0; i < 6; i++) {
-            mockCheckpointer.checkpointIfTimeUp(String.valueOf(i));
-            expectLastCall();
-        }
+        //checkpointIfTimeUp() is called with the last seq no once each
+        //batch has been read
+        mockCheckpointer.checkpointIfTimeUp("3");
+        expectLastCall();
+        mockCheckpointer.checkpointIfTimeUp("5");
+        expectLastCall();
+        mockCheckpointer.checkpoint("5");
+        expectLastCall();
 
         replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
                 mockCheckpointer);
@@ -202,6 +297,131 @@ public class HiveKinesisRecordReaderTest {
         //record reader should return no more records
         boolean gotRecord = recordReader.next(key, val);
         assertFalse("Record should not have been obtained", gotRecord);
+        recordReader.close();
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextWithExpiredIterator() throws IOException {
+        expectForInitialize(false, 0);
+
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult().withRecords(records[0], records[1])
+                            .withNextShardIterator(ITERATOR2));
+
+        //chained iterator has expired, a new one is obtained after records[1]
+        expect(mockKinesisProxy.get(ITERATOR2, 4))
+                .andThrow(new ExpiredIteratorException("expired"));
+        expect(mockKinesisProxy.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", "1"))
+                .andReturn(ITERATOR3);
+        expect(mockKinesisProxy.get(ITERATOR3, 4))
+                .andReturn(new GetRecordsResult().withRecords(records[2]));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(recordReader.next(key, val));
+            assertEquals("DATA_" + i, val.toString());
+        }
+        //shard is closed, since no next iterator was returned
+        assertFalse(recordReader.next(key, val));
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextWithinSequenceNumberRange() throws IOException {
+        expectForInitialize(false, 0, "2", "3");
+
+        //split starts at records[2] and ends at records[3]
+        expect(mockKinesisProxy.getIterator(SHARD1, "AT_SEQUENCE_NUMBER", "2"))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[2], records[3], records[4], records[5])
+                        .withNextShardIterator(ITERATOR2));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        assertEquals(0.0f, recordReader.getProgress(), 0.0f);
+        assertTrue(recordReader.next(key, val));
+        assertEquals("DATA_2", val.toString());
+        assertTrue(recordReader.next(key, val));
+        assertEquals("DATA_3", val.toString());
+        //progress is the position of the last record read within the split
+        assertEquals(1.0f, recordReader.getProgress(), 0.0f);
+        assertEquals("DATA_2DATA_3".length(), recordReader.getPos());
+        //records[4] is beyond the end of the split
+        assertFalse(recordReader.next(key, val));
+        assertFalse(recordReader.next(key, val));
+        assertEquals(1.0f, recordReader.getProgress(), 0.0f);
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextWithinArrivalTimeRange() throws IOException {
+        //records[1] to records[2] arrived within the range
+        expectForInitialize(false, 0, null, null,
+                ARRIVAL_TIME_MS + 1000L, ARRIVAL_TIME_MS + 2000L);
+        expect(mockConf.getLong(Constants.ARRIVAL_TIME_SLACK_MS,
+                        Constants.DEFAULT_ARRIVAL_TIME_SLACK_MS))
+                .andReturn(1000L);
+
+        //reading starts at the lower bound of the arrival time
+        expect(mockKinesisProxy.getIterator(SHARD1, new Date(ARRIVAL_TIME_MS + 1000L)))
+                .andReturn(ITERATOR1);
+        //records[1] is out of order, records[4] is beyond the slack
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[2], records[1], records[3], records[4])
+                        .withNextShardIterator(ITERATOR2));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        assertTrue(recordReader.next(key, val));
+        assertEquals("DATA_2", val.toString());
+        assertEquals(ARRIVAL_TIME_MS + 2000L,
+                ((KinesisRecordWritable) val).getArrivalTimeMs());
+        assertTrue(recordReader.next(key, val));
+        assertEquals("DATA_1", val.toString());
+        assertFalse(recordReader.next(key, val));
 
         verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
                 mockCheckpointer);
@@ -209,7 +429,7 @@ public class HiveKinesisRecordReaderTest {
 
     @Test
     public void testClose() {
-        expectForInitialize(true);
+        expectForInitialize(true, 0);
         mockCheckpointer.checkpoint(STARTING_SEQ_NO);
         expectLastCall();
         replay(mockSplit, mockConf, mockCheckpointer);
@@ -224,4 +444,587 @@ public class HiveKinesisRecordReaderTest {
         
         verify(mockSplit, mockConf, mockCheckpointer);
     }
+
+    @Test
+    public void testNextWithAggregatedRecord() throws Exception {
+        expectForInitialize(false, 0);
+
+        Record aggregated = new Record()
+                .withPartitionKey("KEY_A")
+                .withData(ByteBuffer.wrap(KinesisRecordDeaggregatorTest.aggregate(
+                        new String[] {"KEY_A", "KEY_B"},
+                        new String[] {"USER_DATA_0", "USER_DATA_1"})))
+                .withSequenceNumber("0")
+                .withApproximateArrivalTimestamp(new Date(ARRIVAL_TIME_MS));
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult().withRecords(aggregated, records[1]));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        KinesisRecordWritable val = (KinesisRecordWritable) recordReader.createValue();
+
+        //one row per user record, with the sequence number of the kinesis record
+        for (int i = 0; i < 2; i++) {
+            assertTrue(recordReader.next(key, val));
+            assertEquals(i == 0 ? "KEY_A" : "KEY_B", key.toString());
+            assertEquals("USER_DATA_" + i, val.toString());
+            assertEquals("0", val.getSequenceNumber());
+            assertEquals(i, val.getSubSequenceNumber());
+        }
+        assertTrue(recordReader.next(key, val));
+        assertEquals("DATA_1", val.toString());
+        assertEquals(0, val.getSubSequenceNumber());
+        assertFalse(recordReader.next(key, val));
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextWithThrottlingAndAdaptiveBatchSize() throws IOException {
+        adaptiveBatchSize = true;
+        expectForInitialize(false, 0);
+
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        //full batch while behind the tip of the shard, so the batch size grows
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1], records[2], records[3])
+                        .withMillisBehindLatest(60000L)
+                        .withNextShardIterator(ITERATOR2));
+        //throttled, so the batch size shrinks and the call is made again
+        expect(mockKinesisProxy.get(ITERATOR2, 8))
+                .andThrow(new ProvisionedThroughputExceededException("throttled"));
+        expect(mockKinesisProxy.get(ITERATOR2, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[4], records[5])
+                        .withMillisBehindLatest(0L));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        for (int i = 0; i < 6; i++) {
+            assertTrue(recordReader.next(key, val));
+            assertEquals("DATA_" + i, val.toString());
+        }
+        assertFalse(recordReader.next(key, val));
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextRetriesTransientFailures() throws IOException {
+        expectForInitialize(false, 0);
+
+        //the network fails while getting the iterator and the records
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andThrow(new AmazonClientException("connection reset",
+                        new SocketException()));
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andThrow(new AmazonClientException("connection reset",
+                        new SocketException()));
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult().withRecords(records[0]));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        assertTrue(recordReader.next(key, val));
+        assertEquals("DATA_0", val.toString());
+        assertFalse(recordReader.next(key, val));
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNextFailsOnFatalError() throws IOException {
+        expectForInitialize(false, 0);
+
+        //a missing stream is not retried
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andThrow(new ResourceNotFoundException("no such stream"));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+        recordReader.next(recordReader.createKey(), recordReader.createValue());
+    }
+
+    @Test
+    public void testNextStopsAtSnapshotTime() throws IOException {
+        //the splits were planned when records[2] arrived
+        snapshotTimeMs = ARRIVAL_TIME_MS + 2000L;
+        expectForInitialize(false, 0);
+
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1], records[2], records[3])
+                        .withMillisBehindLatest(5000L)
+                        .withNextShardIterator(ITERATOR2));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        //records arriving later are not read, and no more calls are made
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(recordReader.next(key, val));
+            assertEquals("DATA_" + i, val.toString());
+        }
+        assertFalse(recordReader.next(key, val));
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextStopsAtTipOfShard() throws IOException {
+        snapshotTimeMs = ARRIVAL_TIME_MS + 60000L;
+        expectForInitialize(false, 0);
+
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1])
+                        .withMillisBehindLatest(0L)
+                        .withNextShardIterator(ITERATOR2));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        //the tip has been reached, so there are no empty fetches and retries
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        assertTrue(recordReader.next(key, val));
+        assertTrue(recordReader.next(key, val));
+        assertEquals("DATA_1", val.toString());
+        assertFalse(recordReader.next(key, val));
+        assertEquals(1.0f, recordReader.getProgress(), 0.0f);
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextCheckpointsEndOfClosedShard() throws IOException {
+        readClosedShard(0);
+    }
+
+    @Test
+    public void testNextCheckpointsEndOfClosedShardWhenPrefetching() throws IOException {
+        //the closed shard is found on the prefetch thread, and handed over
+        //with the last batch
+        readClosedShard(2);
+    }
+
+    private void readClosedShard(int prefetchDepth) throws IOException {
+        expectForInitialize(true, prefetchDepth);
+
+        expect(mockKinesisProxy.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", STARTING_SEQ_NO))
+                .andReturn(ITERATOR1);
+        //no next iterator, so the shard is closed
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult().withRecords(records[0]));
+        mockCheckpointer.checkpointIfTimeUp("0");
+        expectLastCall();
+        mockCheckpointer.checkpoint(KinesisShardCheckpointer.SHARD_END);
+        expectLastCall();
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        assertTrue(recordReader.next(key, val));
+        assertFalse(recordReader.next(key, val));
+        recordReader.close();
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextCheckpointsEndOfShardClosedWhenPlanned() throws IOException {
+        //the shard was closed when planned, and other finished shards are
+        //carried over by this split
+        shardEndSeqNo = "1";
+        finishedShardIds = Arrays.asList("SHARD_ID_2", "SHARD_ID_3");
+        checkpointSeqNo = null;
+        expectForInitialize(true, 0);
+
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        //kinesis is not asked again after the last record of the shard
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1])
+                        .withNextShardIterator(ITERATOR2));
+        mockCheckpointer.checkpointIfTimeUp("1");
+        expectLastCall();
+        mockCheckpointer.checkpoint(KinesisShardCheckpointer.SHARD_END);
+        expectLastCall();
+        mockCheckpointer.checkpointShardEnd("SHARD_ID_2");
+        expectLastCall();
+        mockCheckpointer.checkpointShardEnd("SHARD_ID_3");
+        expectLastCall();
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        assertTrue(recordReader.next(key, val));
+        assertTrue(recordReader.next(key, val));
+        assertFalse(recordReader.next(key, val));
+        recordReader.close();
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextWithFinishedShard() throws IOException {
+        //the previous iteration read the shard to the end
+        checkpointSeqNo = KinesisShardCheckpointer.SHARD_END;
+        expectForInitialize(true, 1);
+        mockCheckpointer.checkpoint(KinesisShardCheckpointer.SHARD_END);
+        expectLastCall();
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+
+        //nothing is fetched, and the checkpoint is carried over
+        assertFalse(recordReader.next(recordReader.createKey(), recordReader.createValue()));
+        recordReader.close();
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextReplaysBatchesFromSegmentCache() throws IOException {
+        segmentCacheDir = tempFolder.newFolder("segments");
+        //the first attempt reads the shard from kinesis
+        expectForInitialize(false, 0);
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1], records[2], records[3])
+                        .withNextShardIterator(ITERATOR2));
+        expect(mockKinesisProxy.get(ITERATOR2, 4))
+                .andReturn(new GetRecordsResult().withRecords(records[4], records[5]));
+
+        //the second attempt replays the closed shard without asking kinesis
+        expectForInitialize(false, 0);
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                    mockKinesisProxy,
+                    mockSplit,
+                    mockConf,
+                    mockDynamoDBClient,
+                    mockCheckpointer);
+            KinesisRecordWritable val = (KinesisRecordWritable) recordReader.createValue();
+            Text key = recordReader.createKey();
+            for (int i = 0; i < 6; i++) {
+                assertTrue(recordReader.next(key, val));
+                assertEquals("KEY_" + i, key.toString());
+                assertEquals("DATA_" + i, val.toString());
+                assertEquals(String.valueOf(i), val.getSequenceNumber());
+                assertEquals(ARRIVAL_TIME_MS + 1000L * i, val.getArrivalTimeMs());
+            }
+            assertFalse(recordReader.next(key, val));
+            recordReader.close();
+        }
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextFetchesAfterReplayedBatches() throws IOException {
+        segmentCacheDir = tempFolder.newFolder("segments");
+        expectForInitialize(false, 0);
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1])
+                        .withNextShardIterator(ITERATOR2));
+        expect(mockKinesisProxy.get(ITERATOR2, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[2], records[3])
+                        .withNextShardIterator(ITERATOR3));
+        expect(mockKinesisProxy.get(ITERATOR3, 4))
+                .andReturn(new GetRecordsResult().withRecords(records[4], records[5]));
+
+        //the first and the last segments are gone, so the second attempt
+        //reads the first batch from kinesis, replays the middle ones and
+        //then asks kinesis for the records after them
+        expectForInitialize(false, 0);
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1])
+                        .withNextShardIterator(ITERATOR2));
+        expect(mockKinesisProxy.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", "5"))
+                .andReturn(ITERATOR5);
+        expect(mockKinesisProxy.get(ITERATOR5, 4))
+                .andReturn(new GetRecordsResult());
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if (attempt == 1) {
+                JobConf ownerConf = new JobConf();
+                ownerConf.set(Constants.ACCOUNT_ID, ACCOUNT_ID);
+                String owner = KinesisClientRegistry.getStreamOwner(ownerConf,
+                        new KinesisProxyShardSource(mockKinesisProxy));
+                File shardDir = new File(new File(new File(segmentCacheDir, owner), STR1),
+                        SHARD1);
+                assertTrue(new File(shardDir, "trim-horizon.seg").delete());
+                assertTrue(new File(shardDir, "after-5.end").delete());
+            }
+            HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                    mockKinesisProxy,
+                    mockSplit,
+                    mockConf,
+                    mockDynamoDBClient,
+                    mockCheckpointer);
+            Text key = recordReader.createKey();
+            Text val = recordReader.createValue();
+            for (int i = 0; i < 6; i++) {
+                assertTrue(recordReader.next(key, val));
+                assertEquals("DATA_" + i, val.toString());
+            }
+            assertFalse(recordReader.next(key, val));
+            recordReader.close();
+        }
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextFetchesAfterSharedSegments() throws IOException {
+        final int[] calls = new int[1];
+        InMemoryShardSource source = new InMemoryShardSource() {
+            @Override
+            public synchronized GetRecordsResult get(String shardIterator, int maxRecords) {
+                calls[0]++;
+                return super.get(shardIterator, maxRecords);
+            }
+        };
+        source.addShard(SHARD1);
+        for (int i = 1; i <= 12; i++) {
+            source.putRecord(SHARD1, "KEY_" + i, ByteBuffer.wrap(("DATA_" + i).getBytes()),
+                    new Date(ARRIVAL_TIME_MS + i));
+        }
+        source.closeShard(SHARD1);
+        JobConf conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, STR1);
+        conf.setInt(Constants.BATCH_SIZE, 4);
+        conf.setBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, false);
+        conf.setBoolean(Constants.SHARED_CACHE_ENABLED, true);
+        File sharedDir = tempFolder.newFolder("shared");
+        conf.set(Constants.SHARED_CACHE_DIR, sharedDir.getPath());
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/" + STR1));
+        //an earlier query cached the records in the middle of the shard
+        KinesisSharedSegmentCache.fromConf(conf,
+                KinesisClientRegistry.getStreamOwner(conf, source), STR1, SHARD1).write("4",
+                source.get(source.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", "4"), 4)
+                        .getRecords());
+        calls[0] = 0;
+
+        //the first batch is fetched, the second replayed and the third
+        //fetched after it
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(source,
+                new HiveKinesisInputSplit(STR1, SHARD1, conf), conf);
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        for (int i = 1; i <= 12; i++) {
+            assertTrue(recordReader.next(key, val));
+            assertEquals("DATA_" + i, val.toString());
+        }
+        assertFalse(recordReader.next(key, val));
+        recordReader.close();
+        assertEquals(2, calls[0]);
+
+        //the fetched batches are cached after the records they follow
+        List<String> segments = new ArrayList<String>();
+        File streamDir = new File(new File(sharedDir,
+                KinesisClientRegistry.getStreamOwner(conf, source)), STR1);
+        for (String name : new File(streamDir, SHARD1).list()) {
+            if (name.endsWith(".seg")) {
+                segments.add(name);
+            }
+        }
+        Collections.sort(segments);
+        assertEquals(Arrays.asList("0_4.seg", "4_8.seg", "8_12.seg"), segments);
+    }
+
+    @Test
+    public void testNextSkipsRepeatedRecords() throws IOException {
+        expectForInitialize(false, 0);
+        expect(mockKinesisProxy.getIterator(SHARD1, "TRIM_HORIZON", null))
+                .andReturn(ITERATOR1);
+        expect(mockKinesisProxy.get(ITERATOR1, 4))
+                .andReturn(new GetRecordsResult()
+                        .withRecords(records[0], records[1])
+                        .withNextShardIterator(ITERATOR2));
+        expect(mockKinesisProxy.get(ITERATOR2, 4))
+                .andReturn(new GetRecordsResult().withRecords(records[1], records[2]));
+
+        replay(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(
+                mockKinesisProxy,
+                mockSplit,
+                mockConf,
+                mockDynamoDBClient,
+                mockCheckpointer);
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(recordReader.next(key, val));
+            assertEquals("DATA_" + i, val.toString());
+        }
+        assertFalse(recordReader.next(key, val));
+
+        verify(mockKinesisProxy, mockSplit, mockConf, mockDynamoDBClient,
+                mockCheckpointer);
+    }
+
+    @Test
+    public void testNextDoesNotAllocatePerRecord() throws IOException {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations =
+                (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported()
+                && allocations.isThreadAllocatedMemoryEnabled());
+
+        int recordCount = 20000;
+        InMemoryShardSource source = new InMemoryShardSource();
+        source.addShard(SHARD1);
+        ByteBuffer data = ByteBuffer.wrap(new byte[100]);
+        for (int i = 0; i < recordCount; i++) {
+            source.putRecord(SHARD1, "KEY_" + (i % 100), data,
+                    new Date(ARRIVAL_TIME_MS + i));
+        }
+        source.closeShard(SHARD1);
+        JobConf conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, STR1);
+        conf.setInt(Constants.BATCH_SIZE, 1000);
+        conf.setBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, false);
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/" + STR1));
+
+        HiveKinesisRecordReader recordReader = new HiveKinesisRecordReader(source,
+                new HiveKinesisInputSplit(STR1, SHARD1, conf), conf);
+        Text key = recordReader.createKey();
+        KinesisRecordWritable val = (KinesisRecordWritable) recordReader.createValue();
+        //the first batches load classes and size the buffers
+        for (int i = 0; i < recordCount / 2; i++) {
+            assertTrue(recordReader.next(key, val));
+        }
+        //the batches are fetched on the prefetch thread, so this thread
+        //allocates only when it takes a new batch
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < recordCount / 2; i++) {
+            assertTrue(recordReader.next(key, val));
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+        assertFalse(recordReader.next(key, val));
+        recordReader.close();
+
+        assertTrue("allocated " + allocated + " bytes for " + recordCount / 2 + " records",
+                allocated < recordCount / 2);
+    }
 }
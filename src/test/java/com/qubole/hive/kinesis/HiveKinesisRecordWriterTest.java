@@ -0,0 +1,129 @@
+package com.qubole.hive.kinesis;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
+import org.easymock.Capture;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.AmazonKinesis;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.PutRecordRequest;
+import com.amazonaws.services.kinesis.model.PutRecordResult;
+
+public class HiveKinesisRecordWriterTest {
+
+    private String STR1 = "STREAM_NAME_1";
+    private String SHARD1 = "SHARD_ID_1";
+
+    private AmazonKinesis mockKinesis;
+
+    @Before
+    public void setUp() {
+        mockKinesis = createMock(AmazonKinesis.class);
+    }
+
+    private PutRecordResult putRecordResult() {
+        return new PutRecordResult().withShardId(SHARD1).withSequenceNumber("1");
+    }
+
+    private static String toString(ByteBuffer data) throws IOException {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Test(timeout = 10000)
+    public void testWritePutsRecordOnce() throws IOException {
+        //a write used to put the record again and again after it succeeded,
+        //so that it never returned
+        Capture<PutRecordRequest> first = new Capture<PutRecordRequest>();
+        Capture<PutRecordRequest> second = new Capture<PutRecordRequest>();
+        expect(mockKinesis.putRecord(capture(first))).andReturn(putRecordResult()).once();
+        expect(mockKinesis.putRecord(capture(second))).andReturn(putRecordResult()).once();
+        replay(mockKinesis);
+
+        HiveKinesisRecordWriter writer = new HiveKinesisRecordWriter(mockKinesis, STR1);
+        writer.write(null, new Text("ROW_1"));
+        writer.write(null, new Text("ROW_2"));
+
+        //each write put its own record, and only once
+        assertEquals("ROW_1", toString(first.getValue().getData()));
+        assertEquals("ROW_2", toString(second.getValue().getData()));
+        verify(mockKinesis);
+    }
+
+    @Test
+    public void testWriteSendsOnlyTheRow() throws IOException {
+        Capture<PutRecordRequest> first = new Capture<PutRecordRequest>();
+        Capture<PutRecordRequest> second = new Capture<PutRecordRequest>();
+        Capture<PutRecordRequest> third = new Capture<PutRecordRequest>();
+        expect(mockKinesis.putRecord(capture(first))).andReturn(putRecordResult());
+        expect(mockKinesis.putRecord(capture(second))).andReturn(putRecordResult());
+        expect(mockKinesis.putRecord(capture(third))).andReturn(putRecordResult());
+        replay(mockKinesis);
+
+        HiveKinesisRecordWriter writer = new HiveKinesisRecordWriter(mockKinesis, STR1);
+        //the row is written into the same Text, which keeps its larger array
+        Text row = new Text("A_LONGER_ROW_1");
+        writer.write(null, row);
+        row.set("ROW_2");
+        writer.write(null, row);
+        //as the file sink operator of Hive writes rows
+        row.set("ROW_3");
+        writer.write(row);
+
+        assertEquals("A_LONGER_ROW_1", toString(first.getValue().getData()));
+        assertEquals("ROW_2", toString(second.getValue().getData()));
+        assertEquals(5, second.getValue().getData().remaining());
+        assertEquals("ROW_3", toString(third.getValue().getData()));
+        assertEquals(row.getLength(), third.getValue().getData().remaining());
+        verify(mockKinesis);
+    }
+
+    @Test
+    public void testWriteCountsOnlyTheBytesOfTheRow() throws IOException {
+        expect(mockKinesis.putRecord(isA(PutRecordRequest.class)))
+                .andReturn(putRecordResult()).times(2);
+        Reporter reporter = createNiceMock(Reporter.class);
+        reporter.incrCounter(KinesisCounter.BYTES_WRITTEN, 14L);
+        reporter.incrCounter(KinesisCounter.BYTES_WRITTEN, 5L);
+        replay(mockKinesis, reporter);
+
+        HiveKinesisRecordWriter writer = new HiveKinesisRecordWriter(mockKinesis, STR1,
+                null, reporter);
+        Text row = new Text("A_LONGER_ROW_1");
+        writer.write(null, row);
+        row.set("ROW_2");
+        writer.write(null, row);
+        writer.close(false);
+
+        verify(mockKinesis, reporter);
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteRetriesThrottledRecord() throws IOException {
+        expect(mockKinesis.putRecord(isA(PutRecordRequest.class)))
+                .andThrow(new ProvisionedThroughputExceededException("throttled"));
+        expect(mockKinesis.putRecord(isA(PutRecordRequest.class)))
+                .andReturn(putRecordResult());
+        replay(mockKinesis);
+
+        HiveKinesisRecordWriter writer = new HiveKinesisRecordWriter(mockKinesis, STR1);
+        writer.write(null, new Text("ROW_1"));
+
+        verify(mockKinesis);
+    }
+}
@@ -0,0 +1,165 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.io.TimestampWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+
+import org.junit.Test;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+public class HiveKinesisSerDeTest {
+
+    private long ARRIVAL_TIME_MS = 1400000000000L;
+
+    private Properties createTableProperties(String arrivalTimeColumn) {
+        Properties tbl = new Properties();
+        tbl.setProperty(serdeConstants.LIST_COLUMNS, "username,arrival_ts,amount");
+        tbl.setProperty(serdeConstants.LIST_COLUMN_TYPES, "string:timestamp:int");
+        if (arrivalTimeColumn != null) {
+            tbl.setProperty(Constants.ARRIVAL_TIME_COLUMN, arrivalTimeColumn);
+        }
+        return tbl;
+    }
+
+    private KinesisRecordWritable createValue(String data, long arrivalTimeMs) {
+        KinesisRecordWritable value = new KinesisRecordWritable();
+        value.set(data);
+        value.setArrivalTimeMs(arrivalTimeMs);
+        return value;
+    }
+
+    private List<Object> deserialize(HiveKinesisSerDe serDe, Text value)
+            throws SerDeException {
+        StructObjectInspector inspector =
+                (StructObjectInspector) serDe.getObjectInspector();
+        return inspector.getStructFieldsDataAsList(serDe.deserialize(value));
+    }
+
+    @Test
+    public void testDeserializeWithArrivalTimeColumn() throws SerDeException {
+        HiveKinesisSerDe serDe = new HiveKinesisSerDe();
+        serDe.initialize(new JobConf(), createTableProperties("arrival_ts"));
+
+        List<Object> row = deserialize(serDe, createValue("user1\u00015", ARRIVAL_TIME_MS));
+        assertEquals(3, row.size());
+        assertEquals("user1", row.get(0).toString());
+        assertEquals(new Timestamp(ARRIVAL_TIME_MS),
+                ((TimestampWritable) row.get(1)).getTimestamp());
+        assertEquals("5", row.get(2).toString());
+
+        //arrival time is null if unknown
+        row = deserialize(serDe, createValue("user2\u00016",
+                KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME));
+        assertEquals("user2", row.get(0).toString());
+        assertNull(row.get(1));
+    }
+
+    @Test
+    public void testDeserializeWithoutArrivalTimeColumn() throws SerDeException {
+        HiveKinesisSerDe serDe = new HiveKinesisSerDe();
+        serDe.initialize(new JobConf(), createTableProperties(null));
+
+        //all columns are read from the data
+        List<Object> row = deserialize(serDe, createValue("user1\u00012014-05-13 16:53:20\u00015",
+                ARRIVAL_TIME_MS));
+        assertEquals("user1", row.get(0).toString());
+        assertEquals("2014-05-13 16:53:20", row.get(1).toString());
+    }
+
+    @Test
+    public void testSerializeSkipsArrivalTimeColumn() throws SerDeException {
+        HiveKinesisSerDe serDe = new HiveKinesisSerDe();
+        serDe.initialize(new JobConf(), createTableProperties("arrival_ts"));
+
+        Object row = ObjectInspectorUtils.copyToStandardObject(
+                serDe.deserialize(createValue("user1\u00015", ARRIVAL_TIME_MS)),
+                serDe.getObjectInspector(), ObjectInspectorCopyOption.WRITABLE);
+        Text serialized = (Text) serDe.serialize(row,
+                ObjectInspectorUtils.getStandardObjectInspector(
+                        serDe.getObjectInspector(), ObjectInspectorCopyOption.WRITABLE));
+        assertEquals("user1\u00015", serialized.toString());
+        assertTrue(Text.class.isAssignableFrom(serDe.getSerializedClass()));
+    }
+
+    @Test
+    public void testDeserializeWithRecordAttributeColumns() throws SerDeException {
+        Properties tbl = new Properties();
+        tbl.setProperty(serdeConstants.LIST_COLUMNS, "username,shard,seq_no,pkey");
+        tbl.setProperty(serdeConstants.LIST_COLUMN_TYPES, "string:string:string:string");
+        tbl.setProperty(Constants.SHARD_ID_COLUMN, "shard");
+        tbl.setProperty(Constants.SEQUENCE_NUMBER_COLUMN, "seq_no");
+        tbl.setProperty(Constants.PARTITION_KEY_COLUMN, "pkey");
+        HiveKinesisSerDe serDe = new HiveKinesisSerDe();
+        serDe.initialize(new JobConf(), tbl);
+
+        KinesisRecordWritable value = createValue("user1", ARRIVAL_TIME_MS);
+        value.setShardId("shardId-000000000001");
+        value.setSequenceNumber("12345");
+        value.setPartitionKey("key1");
+        List<Object> row = deserialize(serDe, value);
+        assertEquals(4, row.size());
+        assertEquals("user1", row.get(0).toString());
+        assertEquals("shardId-000000000001", row.get(1).toString());
+        assertEquals("12345", row.get(2).toString());
+        assertEquals("key1", row.get(3).toString());
+    }
+
+    @Test
+    public void testDeserializeReusesRecordAttributeText() throws SerDeException {
+        Properties tbl = new Properties();
+        tbl.setProperty(serdeConstants.LIST_COLUMNS, "username,shard,seq_no,pkey");
+        tbl.setProperty(serdeConstants.LIST_COLUMN_TYPES, "string:string:string:string");
+        tbl.setProperty(Constants.SHARD_ID_COLUMN, "shard");
+        tbl.setProperty(Constants.SEQUENCE_NUMBER_COLUMN, "seq_no");
+        tbl.setProperty(Constants.PARTITION_KEY_COLUMN, "pkey");
+        HiveKinesisSerDe serDe = new HiveKinesisSerDe();
+        serDe.initialize(new JobConf(), tbl);
+
+        KinesisRecordWritable value = createValue("user1", ARRIVAL_TIME_MS);
+        value.setShardId("shardId-000000000001");
+        value.setSequenceNumber("12345");
+        value.setPartitionKey("key1");
+        List<Object> row = deserialize(serDe, value);
+        byte[] shardBytes = ((Text) row.get(1)).getBytes();
+        byte[] seqNoBytes = ((Text) row.get(2)).getBytes();
+
+        value = createValue("user2", ARRIVAL_TIME_MS);
+        value.setShardId(new String("shardId-000000000001"));
+        value.setSequenceNumber("12346");
+        value.setPartitionKey("k\u00e9y2");
+        row = deserialize(serDe, value);
+        assertEquals("shardId-000000000001", row.get(1).toString());
+        assertEquals("12346", row.get(2).toString());
+        assertEquals("k\u00e9y2", row.get(3).toString());
+        //neither the unchanged shard id nor the ASCII sequence number is
+        //encoded into a new array
+        assertSame(shardBytes, ((Text) row.get(1)).getBytes());
+        assertSame(seqNoBytes, ((Text) row.get(2)).getBytes());
+
+        value.setPartitionKey("key3");
+        row = deserialize(serDe, value);
+        assertEquals("key3", row.get(3).toString());
+    }
+
+    @Test(expected = SerDeException.class)
+    public void testRecordAttributeColumnMustBeString() throws SerDeException {
+        Properties tbl = createTableProperties(null);
+        tbl.setProperty(Constants.SEQUENCE_NUMBER_COLUMN, "amount");
+        new HiveKinesisSerDe().initialize(new JobConf(), tbl);
+    }
+}
@@ -0,0 +1,132 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.apache.hadoop.hive.ql.exec.vector.BytesColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.LongColumnVector;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatch;
+import org.apache.hadoop.hive.ql.exec.vector.VectorizedRowBatchCtx;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+
+import org.junit.Test;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+public class HiveKinesisVectorizedRecordReaderTest {
+
+    private static final long ARRIVAL_TIME_MS = 1400000000000L;
+
+    //returns numRecords delimited records of a shard
+    private static class ShardReader implements RecordReader<Text, Text> {
+
+        private final int numRecords;
+        private int position = 0;
+        private boolean closed = false;
+
+        ShardReader(int numRecords) {
+            this.numRecords = numRecords;
+        }
+
+        @Override
+        public boolean next(Text key, Text value) {
+            if (position == numRecords) {
+                return false;
+            }
+            KinesisRecordWritable recordValue = (KinesisRecordWritable) value;
+            recordValue.set("user" + position + "\u0001" + position);
+            recordValue.setShardId("shardId-000000000001");
+            recordValue.setArrivalTimeMs(ARRIVAL_TIME_MS + position);
+            position++;
+            return true;
+        }
+
+        @Override
+        public Text createKey() {
+            return new Text();
+        }
+
+        @Override
+        public Text createValue() {
+            return new KinesisRecordWritable();
+        }
+
+        @Override
+        public long getPos() {
+            return position;
+        }
+
+        @Override
+        public float getProgress() {
+            return (float) position / numRecords;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private VectorizedRowBatchCtx createContext() throws SerDeException {
+        Properties tbl = new Properties();
+        tbl.setProperty(serdeConstants.LIST_COLUMNS, "username,amount,shard,arrival_ms");
+        tbl.setProperty(serdeConstants.LIST_COLUMN_TYPES, "string:int:string:bigint");
+        tbl.setProperty(Constants.SHARD_ID_COLUMN, "shard");
+        tbl.setProperty(Constants.ARRIVAL_TIME_COLUMN, "arrival_ms");
+        HiveKinesisSerDe serDe = new HiveKinesisSerDe();
+        serDe.initialize(new JobConf(), tbl);
+        StructObjectInspector rowOI = (StructObjectInspector) serDe.getObjectInspector();
+        return new VectorizedRowBatchCtx(rowOI, rowOI, serDe,
+                new HashMap<String, Object>(), new HashMap<String, PrimitiveCategory>());
+    }
+
+    private static String getString(BytesColumnVector column, int row) {
+        return new String(column.vector[row], column.start[row], column.length[row]);
+    }
+
+    @Test
+    public void testNextFillsBatches() throws Exception {
+        ShardReader shardReader = new ShardReader(VectorizedRowBatch.DEFAULT_SIZE + 10);
+        HiveKinesisVectorizedRecordReader recordReader =
+                new HiveKinesisVectorizedRecordReader(shardReader, createContext());
+
+        NullWritable key = recordReader.createKey();
+        VectorizedRowBatch batch = recordReader.createValue();
+        assertEquals(4, batch.numCols);
+
+        assertTrue(recordReader.next(key, batch));
+        assertEquals(VectorizedRowBatch.DEFAULT_SIZE, batch.size);
+        BytesColumnVector usernames = (BytesColumnVector) batch.cols[0];
+        LongColumnVector amounts = (LongColumnVector) batch.cols[1];
+        BytesColumnVector shards = (BytesColumnVector) batch.cols[2];
+        LongColumnVector arrivalTimes = (LongColumnVector) batch.cols[3];
+        assertEquals("user0", getString(usernames, 0));
+        assertEquals("user1000", getString(usernames, 1000));
+        assertEquals(1000L, amounts.vector[1000]);
+        assertEquals("shardId-000000000001", getString(shards, 5));
+        assertEquals(ARRIVAL_TIME_MS + 7, arrivalTimes.vector[7]);
+
+        //the remaining rows, in a batch of their own
+        assertTrue(recordReader.next(key, batch));
+        assertEquals(10, batch.size);
+        assertEquals("user" + (VectorizedRowBatch.DEFAULT_SIZE + 9), getString(usernames, 9));
+
+        assertFalse(recordReader.next(key, batch));
+        assertEquals(0, batch.size);
+        assertEquals(1.0f, recordReader.getProgress(), 0.0f);
+        recordReader.close();
+        assertTrue(shardReader.closed);
+    }
+}
@@ -0,0 +1,167 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+public class InMemoryShardSourceTest {
+
+    private static final String STREAM = "IN_MEMORY_STREAM";
+    private static final String SHARD1 = "SHARD_ID_1";
+    private static final String SHARD2 = "SHARD_ID_2";
+    private static final long ARRIVAL_TIME_MS = 1400000000000L;
+
+    private InMemoryShardSource source;
+
+    @Before
+    public void setUp() {
+        source = new InMemoryShardSource();
+        source.addShard(SHARD1);
+        source.addShard(SHARD2);
+        for (int i = 0; i < 10; i++) {
+            source.putRecord(i % 2 == 0 ? SHARD1 : SHARD2, "KEY_" + i,
+                    ByteBuffer.wrap(("DATA_" + i).getBytes()),
+                    new Date(ARRIVAL_TIME_MS + 1000L * i));
+        }
+    }
+
+    private static void assertSeqNos(List<Record> records, String... seqNos) {
+        assertEquals(seqNos.length, records.size());
+        for (int i = 0; i < seqNos.length; i++) {
+            assertEquals(seqNos[i], records.get(i).getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void testGetRecords() {
+        GetRecordsResult result =
+                source.get(source.getIterator(SHARD1, "TRIM_HORIZON", null), 3);
+        assertSeqNos(result.getRecords(), "1", "3", "5");
+        assertEquals(4000L, result.getMillisBehindLatest().longValue());
+        result = source.get(result.getNextShardIterator(), 3);
+        assertSeqNos(result.getRecords(), "7", "9");
+        assertEquals(0L, result.getMillisBehindLatest().longValue());
+        //the shard is open, so more records may follow
+        result = source.get(result.getNextShardIterator(), 3);
+        assertSeqNos(result.getRecords());
+
+        assertSeqNos(source.get(source.getIterator(SHARD1, "AT_SEQUENCE_NUMBER", "5"), 10)
+                .getRecords(), "5", "7", "9");
+        assertSeqNos(source.get(source.getIterator(SHARD1, "AFTER_SEQUENCE_NUMBER", "5"), 10)
+                .getRecords(), "7", "9");
+        assertSeqNos(source.get(source.getIterator(SHARD2, "LATEST", null), 10)
+                .getRecords());
+        assertSeqNos(source.get(source.getIterator(SHARD2,
+                new Date(ARRIVAL_TIME_MS + 6500L)), 10).getRecords(), "8", "10");
+    }
+
+    @Test
+    public void testCloseShard() {
+        String iterator = source.getIterator(SHARD2, "AFTER_SEQUENCE_NUMBER", "8");
+        source.closeShard(SHARD2);
+        GetRecordsResult result = source.get(iterator, 10);
+        assertSeqNos(result.getRecords(), "10");
+        assertNull(result.getNextShardIterator());
+
+        List<Shard> shards = source.getShardList();
+        assertEquals(2, shards.size());
+        assertNull(shards.get(0).getSequenceNumberRange().getEndingSequenceNumber());
+        assertEquals("1", shards.get(1).getSequenceNumberRange().getStartingSequenceNumber());
+        assertEquals("10", shards.get(1).getSequenceNumberRange().getEndingSequenceNumber());
+    }
+
+    @Test
+    public void testReadShardDividedByArrivalTime() throws IOException {
+        final int[] timestampIterators = new int[1];
+        InMemoryShardSource timedSource = new InMemoryShardSource() {
+            @Override
+            public synchronized String getIterator(String shardId, Date timestamp) {
+                timestampIterators[0]++;
+                return super.getIterator(shardId, timestamp);
+            }
+        };
+        timedSource.addShard(SHARD1);
+        long nowMs = System.currentTimeMillis();
+        for (int i = 0; i < 40; i++) {
+            timedSource.putRecord(SHARD1, "KEY_" + i, ByteBuffer.wrap(("DATA_" + i).getBytes()),
+                    new Date(nowMs - 3950L + 100L * i));
+        }
+        JobConf conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, STREAM);
+        conf.setLong(Constants.METADATA_CACHE_TTL_MS, 0L);
+        conf.setInt(Constants.MAX_SPLITS_PER_SHARD, 4);
+        conf.setLong(Constants.STREAM_RETENTION_MS, 4000L);
+        conf.setBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, false);
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/" + STREAM));
+        HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat();
+        inputFormat.setShardSource(STREAM, timedSource);
+
+        InputSplit[] splits = inputFormat.getSplits(conf, 4);
+        assertEquals(4, splits.length);
+        Set<String> values = new HashSet<String>();
+        for (InputSplit split : splits) {
+            RecordReader<Text, Text> reader = inputFormat.getRecordReader(split, conf, null);
+            Text key = reader.createKey();
+            Text value = reader.createValue();
+            while (reader.next(key, value)) {
+                assertTrue(values.add(value.toString()));
+            }
+            reader.close();
+        }
+        //each record is read once, and the splits after the first start
+        //at the time their range starts
+        assertEquals(40, values.size());
+        assertEquals(3, timestampIterators[0]);
+    }
+
+    @Test
+    public void testReadStreamThroughInputFormat() throws IOException {
+        source.closeShard(SHARD1);
+        source.closeShard(SHARD2);
+        JobConf conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, STREAM);
+        conf.setLong(Constants.METADATA_CACHE_TTL_MS, 0L);
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/" + STREAM));
+        HiveKinesisInputFormat inputFormat = new HiveKinesisInputFormat();
+        inputFormat.setShardSource(STREAM, source);
+
+        InputSplit[] splits = inputFormat.getSplits(conf, 1);
+        assertEquals(2, splits.length);
+        Set<String> values = new HashSet<String>();
+        for (InputSplit split : splits) {
+            RecordReader<Text, Text> reader = inputFormat.getRecordReader(split, conf, null);
+            Text key = reader.createKey();
+            Text value = reader.createValue();
+            while (reader.next(key, value)) {
+                assertTrue(values.add(value.toString()));
+            }
+            assertFalse(reader.next(key, value));
+            reader.close();
+        }
+        assertEquals(10, values.size());
+        assertTrue(values.contains("DATA_9"));
+    }
+}
@@ -0,0 +1,162 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+public class KinesisClientRegistryTest {
+
+    private JobConf conf;
+
+    @Before
+    public void setUp() {
+        conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, "STREAM_NAME_1");
+        conf.set(Constants.ACCESS_KEY, "ACCESS_KEY_1");
+        conf.set(Constants.SECRET_KEY, "SECRET_KEY_1");
+    }
+
+    @Test
+    public void testClientKey() {
+        String key = KinesisClientRegistry.getClientKey(conf);
+        assertEquals(key, KinesisClientRegistry.getClientKey(new JobConf(conf)));
+        assertTrue(key.startsWith("ACCESS_KEY_1/"));
+        //the secret key is not kept in the key of the clients
+        assertFalse(key.contains("SECRET_KEY_1"));
+
+        JobConf otherCredentials = new JobConf(conf);
+        otherCredentials.set(Constants.SECRET_KEY, "SECRET_KEY_2");
+        assertFalse(key.equals(KinesisClientRegistry.getClientKey(otherCredentials)));
+
+        JobConf otherConfig = new JobConf(conf);
+        otherConfig.setInt(Constants.CLIENT_MAX_CONNECTIONS, 200);
+        assertFalse(key.equals(KinesisClientRegistry.getClientKey(otherConfig)));
+    }
+
+    //cache of at most two clients, which records the clients evicted and
+    //shut down
+    private static KinesisClientRegistry.ClientCache<String> createClients(
+            final List<String> evicted, final List<String> shutDown) {
+        return new KinesisClientRegistry.ClientCache<String>(2) {
+            @Override
+            void evicted(String key, String client) {
+                evicted.add(client);
+            }
+
+            @Override
+            void shutdown(String client) {
+                shutDown.add(client);
+            }
+        };
+    }
+
+    @Test
+    public void testClientsLookedUpLeastRecentlyAreEvicted() {
+        List<String> evicted = new ArrayList<String>();
+        List<String> shutDown = new ArrayList<String>();
+        KinesisClientRegistry.ClientCache<String> clients = createClients(evicted, shutDown);
+        clients.put("KEY_1", "CLIENT_1");
+        clients.put("KEY_2", "CLIENT_2");
+        assertEquals("CLIENT_1", clients.get("KEY_1"));
+        //the credentials are rotated
+        clients.put("KEY_3", "CLIENT_3");
+        assertEquals(Arrays.asList("CLIENT_2"), evicted);
+        clients.put("KEY_4", "CLIENT_4");
+        assertEquals(Arrays.asList("CLIENT_2", "CLIENT_1"), evicted);
+        //clients not in use are shut down when they are evicted
+        assertEquals(Arrays.asList("CLIENT_2", "CLIENT_1"), shutDown);
+        assertEquals(2, clients.size());
+    }
+
+    @Test
+    public void testClientInUseIsShutDownOnceReleased() {
+        List<String> evicted = new ArrayList<String>();
+        List<String> shutDown = new ArrayList<String>();
+        KinesisClientRegistry.ClientCache<String> clients = createClients(evicted, shutDown);
+        clients.put("KEY_1", "CLIENT_1");
+        //used by a reader and a checkpointer
+        clients.retain("CLIENT_1");
+        clients.retain("CLIENT_1");
+        clients.put("KEY_2", "CLIENT_2");
+        clients.put("KEY_3", "CLIENT_3");
+        assertEquals(Arrays.asList("CLIENT_1"), evicted);
+        assertTrue(shutDown.isEmpty());
+        assertFalse(clients.containsValue("CLIENT_1"));
+
+        clients.release("CLIENT_1");
+        assertTrue(shutDown.isEmpty());
+        clients.release("CLIENT_1");
+        assertEquals(Arrays.asList("CLIENT_1"), shutDown);
+        //released again, or released without being retained
+        clients.release("CLIENT_1");
+        clients.release("CLIENT_2");
+        assertEquals(Arrays.asList("CLIENT_1"), shutDown);
+    }
+
+    @Test
+    public void testClientReleasedBeforeEvictionIsShutDownOnEviction() {
+        List<String> evicted = new ArrayList<String>();
+        List<String> shutDown = new ArrayList<String>();
+        KinesisClientRegistry.ClientCache<String> clients = createClients(evicted, shutDown);
+        clients.put("KEY_1", "CLIENT_1");
+        clients.retain("CLIENT_1");
+        clients.release("CLIENT_1");
+        //clients not handed out by the cache are not counted
+        clients.retain("OTHER_CLIENT");
+        clients.put("KEY_2", "CLIENT_2");
+        clients.put("KEY_3", "CLIENT_3");
+        assertEquals(Arrays.asList("CLIENT_1"), shutDown);
+    }
+
+    @Test
+    public void testStreamOwner() {
+        KinesisShardSource kinesis = new KinesisProxyShardSource(null);
+        String owner = KinesisClientRegistry.getStreamOwner(conf, kinesis);
+        assertEquals(owner, KinesisClientRegistry.getStreamOwner(new JobConf(conf), kinesis));
+        //the owner is used in paths
+        assertTrue(owner.matches("[0-9a-f]+"));
+
+        JobConf otherRegion = new JobConf(conf);
+        otherRegion.set(Constants.ENDPOINT_REGION, "eu-west-1");
+        assertFalse(owner.equals(KinesisClientRegistry.getStreamOwner(otherRegion, kinesis)));
+        JobConf otherCredentials = new JobConf(conf);
+        otherCredentials.set(Constants.ACCESS_KEY, "ACCESS_KEY_2");
+        assertFalse(owner.equals(
+                KinesisClientRegistry.getStreamOwner(otherCredentials, kinesis)));
+
+        //credentials of the same account share the owner if it is set
+        conf.set(Constants.ACCOUNT_ID, "123456789012");
+        otherCredentials.set(Constants.ACCOUNT_ID, "123456789012");
+        assertEquals(KinesisClientRegistry.getStreamOwner(conf, kinesis),
+                KinesisClientRegistry.getStreamOwner(otherCredentials, kinesis));
+
+        //other sources are owned by their class
+        assertFalse(owner.equals(
+                KinesisClientRegistry.getStreamOwner(conf, new InMemoryShardSource())));
+    }
+
+    @Test
+    public void testClientConfiguration() {
+        conf.setInt(Constants.CLIENT_MAX_CONNECTIONS, 200);
+        conf.setInt(Constants.CLIENT_SOCKET_TIMEOUT_MS, 5000);
+        conf.setBoolean(Constants.CLIENT_TCP_KEEP_ALIVE, false);
+        ClientConfiguration clientConfig = KinesisClientRegistry.getClientConfiguration(conf);
+        assertEquals(200, clientConfig.getMaxConnections());
+        assertEquals(5000, clientConfig.getSocketTimeout());
+        assertEquals(Constants.DEFAULT_CLIENT_CONNECTION_TIMEOUT_MS,
+                clientConfig.getConnectionTimeout());
+        assertFalse(clientConfig.useTcpKeepAlive());
+    }
+}
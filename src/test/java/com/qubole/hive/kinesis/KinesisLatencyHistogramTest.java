@@ -0,0 +1,101 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class KinesisLatencyHistogramTest {
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    @Test
+    public void testBuckets() {
+        //each bucket starts where the previous one ends
+        for (int bucket = 0; bucket < 200; bucket++) {
+            long lower = KinesisLatencyHistogram.lowerBound(bucket);
+            assertEquals(bucket, KinesisLatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, KinesisLatencyHistogram.bucketOf(
+                    KinesisLatencyHistogram.lowerBound(bucket + 1) - 1));
+        }
+        assertEquals(7, KinesisLatencyHistogram.bucketOf(7L));
+        assertEquals(8, KinesisLatencyHistogram.bucketOf(8L));
+        assertEquals(KinesisLatencyHistogram.bucketOf(Long.MAX_VALUE),
+                KinesisLatencyHistogram.bucketOf(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void testPercentiles() {
+        KinesisLatencyHistogram histogram = new KinesisLatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * NANOS_PER_MS);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(100.0, histogram.getMaxMillis(), 0.001);
+        //within an eighth of the actual latencies
+        assertEquals(50.0, histogram.getMedianMillis(), 50.0 / 8);
+        assertEquals(90.0, histogram.get90thPercentileMillis(), 90.0 / 8);
+        assertEquals(99.0, histogram.get99thPercentileMillis(), 99.0 / 8);
+        assertTrue(histogram.get99thPercentileMillis() >= 99.0);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.get99thPercentileMillis(), 0.0);
+    }
+
+    @Test
+    public void testForShardIsRegistered() throws Exception {
+        KinesisLatencyHistogram histogram =
+                KinesisLatencyHistogram.forShard("STREAM", "SHARD_1", "GetRecords");
+        assertSame(histogram,
+                KinesisLatencyHistogram.forShard("STREAM", "SHARD_1", "GetRecords"));
+        assertNotSame(histogram,
+                KinesisLatencyHistogram.forShard("STREAM", "SHARD_1", "Checkpoint"));
+
+        histogram.record(5 * NANOS_PER_MS);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = KinesisLatencyHistogram.objectName("STREAM", "SHARD_1", "GetRecords");
+        assertEquals(histogram.getCount(), server.getAttribute(name, "Count"));
+        assertEquals(histogram.getMaxMillis(), server.getAttribute(name, "MaxMillis"));
+
+        KinesisLatencyHistogram.release(histogram);
+        KinesisLatencyHistogram.release(histogram);
+        KinesisLatencyHistogram.release(
+                KinesisLatencyHistogram.forShard("STREAM", "SHARD_1", "Checkpoint"));
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testReleasedWhenNoLongerUsed() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = KinesisLatencyHistogram.objectName("STREAM", "SHARD_2", "GetRecords");
+        KinesisLatencyHistogram first =
+                KinesisLatencyHistogram.forShard("STREAM", "SHARD_2", "GetRecords");
+        KinesisLatencyHistogram second =
+                KinesisLatencyHistogram.forShard("STREAM", "SHARD_2", "GetRecords");
+        first.record(NANOS_PER_MS);
+
+        KinesisLatencyHistogram.release(first);
+        assertTrue(server.isRegistered(name));
+        assertEquals(1, second.getCount());
+        KinesisLatencyHistogram.release(second);
+        assertFalse(server.isRegistered(name));
+
+        //a shard read again starts with a new histogram
+        KinesisLatencyHistogram third =
+                KinesisLatencyHistogram.forShard("STREAM", "SHARD_2", "GetRecords");
+        assertNotSame(first, third);
+        assertEquals(0, third.getCount());
+        assertTrue(server.isRegistered(name));
+        KinesisLatencyHistogram.release(third);
+    }
+}
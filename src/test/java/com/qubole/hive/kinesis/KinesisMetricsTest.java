@@ -0,0 +1,166 @@
+package com.qubole.hive.kinesis;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+public class KinesisMetricsTest {
+
+    private static final long NANOS_PER_MS = 1000000L;
+
+    //held by the test, so that they outlive the metrics closed by the test
+    private KinesisLatencyHistogram shard1GetRecords;
+    private KinesisLatencyHistogram shard2PutRecord;
+    private KinesisLatencyHistogram shard3GetRecords;
+
+    @Before
+    public void setUp() {
+        shard1GetRecords = KinesisLatencyHistogram.forShard("METRICS_STREAM", "SHARD_1",
+                KinesisMetrics.GET_RECORDS);
+        shard2PutRecord = KinesisLatencyHistogram.forShard("METRICS_STREAM", "SHARD_2",
+                KinesisMetrics.PUT_RECORD);
+        shard3GetRecords = KinesisLatencyHistogram.forShard("METRICS_STREAM", "SHARD_3",
+                KinesisMetrics.GET_RECORDS);
+    }
+
+    @After
+    public void tearDown() {
+        KinesisLatencyHistogram.release(shard1GetRecords);
+        KinesisLatencyHistogram.release(shard2PutRecord);
+        KinesisLatencyHistogram.release(shard3GetRecords);
+    }
+
+    @Test
+    public void testGetRecordsCounters() {
+        Reporter reporter = createMock(Reporter.class);
+        reporter.incrCounter(KinesisCounter.GET_RECORDS_CALLS, 1L);
+        reporter.incrCounter(KinesisCounter.GET_RECORDS_MILLIS, 2L);
+        reporter.incrCounter(KinesisCounter.GET_RECORDS_EMPTY, 1L);
+        reporter.incrCounter(KinesisCounter.RECORDS_FETCHED, 0L);
+        reporter.incrCounter(KinesisCounter.BYTES_FETCHED, 0L);
+        reporter.progress();
+        reporter.incrCounter(KinesisCounter.GET_RECORDS_CALLS, 1L);
+        //the milliseconds of both calls add up to three
+        reporter.incrCounter(KinesisCounter.GET_RECORDS_MILLIS, 1L);
+        reporter.incrCounter(KinesisCounter.RECORDS_FETCHED, 10L);
+        reporter.incrCounter(KinesisCounter.BYTES_FETCHED, 100L);
+        reporter.progress();
+        reporter.incrCounter(KinesisCounter.GET_RECORDS_THROTTLED, 1L);
+        reporter.progress();
+        replay(reporter);
+
+        KinesisMetrics metrics = new KinesisMetrics(reporter, "METRICS_STREAM", "SHARD_1");
+        metrics.onGetRecords(2500000L, 0, 0L);
+        metrics.onGetRecords(600000L, 10, 100L);
+        metrics.onGetRecordsThrottled();
+        metrics.close();
+        verify(reporter);
+
+        assertEquals(2, shard1GetRecords.getCount());
+        assertEquals(2.5, shard1GetRecords.getMaxMillis(), 0.001);
+    }
+
+    @Test
+    public void testProgressWithoutCounters() {
+        //a Progressable that is not a Reporter keeps no counters
+        Progressable progress = createMock(Progressable.class);
+        progress.progress();
+        replay(progress);
+
+        KinesisMetrics metrics = new KinesisMetrics(progress, "METRICS_STREAM", null);
+        metrics.onPutRecordThrottled();
+        metrics.onPutRecord("SHARD_2", 3 * NANOS_PER_MS, 10L);
+        metrics.onPutRecord("SHARD_2", 4 * NANOS_PER_MS, 10L);
+        metrics.close();
+        verify(progress);
+
+        assertEquals(2, shard2PutRecord.getCount());
+        //without any progress
+        new KinesisMetrics(null, "METRICS_STREAM", null).progress();
+    }
+
+    @Test
+    public void testReaderReportsFetches() throws IOException {
+        InMemoryShardSource source = new InMemoryShardSource();
+        source.addShard("SHARD_3");
+        for (int i = 0; i < 3; i++) {
+            source.putRecord("SHARD_3", "KEY", ByteBuffer.wrap("DATA".getBytes()),
+                    new Date());
+        }
+        source.closeShard("SHARD_3");
+        JobConf conf = new JobConf();
+        conf.set(Constants.STREAM_NAME, "METRICS_STREAM");
+        conf.setBoolean(Constants.SHARD_RATE_LIMIT_ENABLED, false);
+        FileInputFormat.setInputPaths(conf, new Path("/tmp/METRICS_STREAM"));
+
+        Reporter reporter = createNiceMock(Reporter.class);
+        reporter.incrCounter(KinesisCounter.RECORDS_FETCHED, 3L);
+        reporter.incrCounter(KinesisCounter.BYTES_FETCHED, 12L);
+        replay(reporter);
+
+        HiveKinesisRecordReader reader = new HiveKinesisRecordReader(source,
+                new HiveKinesisInputSplit("METRICS_STREAM", "SHARD_3", conf), conf,
+                null, reporter);
+        Text key = reader.createKey();
+        Text value = reader.createValue();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(reader.next(key, value));
+        }
+        assertFalse(reader.next(key, value));
+        reader.close();
+        verify(reporter);
+        assertEquals(1, shard3GetRecords.getCount());
+    }
+
+    @Test
+    public void testCloseUnregistersHistograms() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        KinesisMetrics reader = new KinesisMetrics(null, "METRICS_STREAM", "SHARD_4");
+        KinesisMetrics writer = new KinesisMetrics(null, "METRICS_STREAM", null);
+        writer.onPutRecord("SHARD_4", NANOS_PER_MS, 10L);
+        writer.onPutRecord("SHARD_5", NANOS_PER_MS, 10L);
+        writer.onPutRecord("SHARD_4", NANOS_PER_MS, 10L);
+        ObjectName getRecords = KinesisLatencyHistogram.objectName("METRICS_STREAM",
+                "SHARD_4", KinesisMetrics.GET_RECORDS);
+        ObjectName putRecord = KinesisLatencyHistogram.objectName("METRICS_STREAM",
+                "SHARD_5", KinesisMetrics.PUT_RECORD);
+        assertTrue(server.isRegistered(getRecords));
+        assertTrue(server.isRegistered(putRecord));
+
+        reader.close();
+        writer.close();
+        //closing again releases nothing
+        writer.close();
+        assertFalse(server.isRegistered(getRecords));
+        assertFalse(server.isRegistered(putRecord));
+        assertFalse(server.isRegistered(KinesisLatencyHistogram.objectName(
+                "METRICS_STREAM", "SHARD_4", KinesisMetrics.PUT_RECORD)));
+        //histograms held elsewhere are kept
+        assertTrue(server.isRegistered(KinesisLatencyHistogram.objectName(
+                "METRICS_STREAM", "SHARD_2", KinesisMetrics.PUT_RECORD)));
+    }
+}
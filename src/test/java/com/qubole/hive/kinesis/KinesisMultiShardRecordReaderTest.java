@@ -0,0 +1,141 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.RecordReader;
+
+import org.junit.Test;
+
+public class KinesisMultiShardRecordReaderTest {
+
+    //returns numRecords records of a shard, then fails if fail is set
+    private static class ShardReader implements RecordReader<Text, Text> {
+
+        private final String shardId;
+        private final int numRecords;
+        private final boolean fail;
+        private int position = 0;
+        private boolean closed = false;
+
+        ShardReader(String shardId, int numRecords, boolean fail) {
+            this.shardId = shardId;
+            this.numRecords = numRecords;
+            this.fail = fail;
+        }
+
+        @Override
+        public boolean next(Text key, Text value) throws IOException {
+            if (position == numRecords) {
+                if (fail) {
+                    throw new IOException("Shard " + shardId + " failed");
+                }
+                return false;
+            }
+            key.set(shardId);
+            ((KinesisRecordWritable) value).set(shardId + "_" + position);
+            ((KinesisRecordWritable) value).setShardId(shardId);
+            position++;
+            return true;
+        }
+
+        @Override
+        public Text createKey() {
+            return new Text();
+        }
+
+        @Override
+        public Text createValue() {
+            return new KinesisRecordWritable();
+        }
+
+        @Override
+        public long getPos() {
+            return position;
+        }
+
+        @Override
+        public float getProgress() {
+            return (float) position / numRecords;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testNextReadsAllShardsInOrder() throws IOException {
+        List<ShardReader> shardReaders = Arrays.asList(
+                new ShardReader("shard-0", 1000, false),
+                new ShardReader("shard-1", 10, false),
+                new ShardReader("shard-2", 500, false));
+        KinesisMultiShardRecordReader recordReader = new KinesisMultiShardRecordReader(
+                new ArrayList<RecordReader<Text, Text>>(shardReaders), 2);
+
+        Text key = recordReader.createKey();
+        KinesisRecordWritable val = (KinesisRecordWritable) recordReader.createValue();
+        Map<String, Integer> nextPosition = new HashMap<String, Integer>();
+        int count = 0;
+        while (recordReader.next(key, val)) {
+            String shardId = key.toString();
+            Integer position = nextPosition.get(shardId);
+            position = position == null ? 0 : position;
+            //the records of each shard keep their order
+            assertEquals(shardId + "_" + position, val.toString());
+            assertEquals(shardId, val.getShardId());
+            nextPosition.put(shardId, position + 1);
+            count++;
+        }
+        assertEquals(1510, count);
+        assertFalse(recordReader.next(key, val));
+        assertEquals(1510L, recordReader.getPos());
+        assertEquals(1.0f, recordReader.getProgress(), 0.0f);
+
+        recordReader.close();
+        for (ShardReader shardReader : shardReaders) {
+            assertTrue(shardReader.closed);
+        }
+    }
+
+    @Test
+    public void testNextFailsWhenAShardFails() throws IOException {
+        KinesisMultiShardRecordReader recordReader = new KinesisMultiShardRecordReader(
+                Arrays.<RecordReader<Text, Text>>asList(
+                        new ShardReader("shard-0", 5, false),
+                        new ShardReader("shard-1", 5, true)),
+                2);
+
+        Text key = recordReader.createKey();
+        Text val = recordReader.createValue();
+        try {
+            while (recordReader.next(key, val)) {
+                //records read before the failure are returned
+            }
+            fail("The failure of the shard should have been thrown");
+        } catch (IOException e) {
+            assertEquals("Shard shard-1 failed", e.getMessage());
+        }
+        recordReader.close();
+    }
+
+    @Test
+    public void testNextWithoutShards() throws IOException {
+        KinesisMultiShardRecordReader recordReader = new KinesisMultiShardRecordReader(
+                new ArrayList<RecordReader<Text, Text>>(), 2);
+        assertFalse(recordReader.next(recordReader.createKey(), recordReader.createValue()));
+        assertEquals(1.0f, recordReader.getProgress(), 0.0f);
+        recordReader.close();
+    }
+}
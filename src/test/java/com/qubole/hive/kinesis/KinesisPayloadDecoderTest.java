@@ -0,0 +1,135 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.xerial.snappy.Snappy;
+
+public class KinesisPayloadDecoderTest {
+
+    private String PAYLOAD = "{\"username\": \"user1\", \"amount\": 5}";
+
+    private byte[] gzip(String data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private byte[] deflate(String data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        out.write(data.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private String toString(ByteBuffer buffer) throws IOException {
+        return new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining(), "UTF-8");
+    }
+
+    @Test
+    public void testForName() {
+        assertNull(KinesisPayloadDecoder.forName(null));
+        assertNull(KinesisPayloadDecoder.forName("none"));
+        assertEquals(KinesisPayloadDecoder.Codec.GZIP,
+                KinesisPayloadDecoder.forName("gzip").getCodec());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForNameWithUnsupportedCodec() {
+        KinesisPayloadDecoder.forName("lzma");
+    }
+
+    @Test
+    public void testDecodeGzip() throws IOException {
+        KinesisPayloadDecoder decoder = KinesisPayloadDecoder.forName("gzip");
+        assertEquals(PAYLOAD, toString(decoder.decode(ByteBuffer.wrap(gzip(PAYLOAD)))));
+        //output buffer is reused, and grows for larger payloads
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append(PAYLOAD);
+        }
+        assertEquals(large.toString(),
+                toString(decoder.decode(ByteBuffer.wrap(gzip(large.toString())))));
+        assertEquals("a", toString(decoder.decode(ByteBuffer.wrap(gzip("a")))));
+    }
+
+    @Test
+    public void testDecodeDeflate() throws IOException {
+        KinesisPayloadDecoder decoder = KinesisPayloadDecoder.forName("deflate");
+        assertEquals(PAYLOAD, toString(decoder.decode(ByteBuffer.wrap(deflate(PAYLOAD)))));
+    }
+
+    @Test
+    public void testDecodeSnappy() throws IOException {
+        KinesisPayloadDecoder decoder = KinesisPayloadDecoder.forName("snappy");
+        byte[] compressed = Snappy.compress(PAYLOAD.getBytes("UTF-8"));
+        assertEquals(PAYLOAD, toString(decoder.decode(ByteBuffer.wrap(compressed))));
+    }
+
+    @Test
+    public void testDecodeAuto() throws IOException {
+        KinesisPayloadDecoder decoder = KinesisPayloadDecoder.forName("auto");
+        assertEquals(PAYLOAD, toString(decoder.decode(ByteBuffer.wrap(gzip(PAYLOAD)))));
+        assertEquals(PAYLOAD, toString(decoder.decode(ByteBuffer.wrap(deflate(PAYLOAD)))));
+        //uncompressed payloads are returned as they are
+        ByteBuffer plain = ByteBuffer.wrap(PAYLOAD.getBytes("UTF-8"));
+        assertSame(plain, decoder.decode(plain));
+        //text that happens to look like a zlib header
+        ByteBuffer zlibLike = ByteBuffer.wrap("x^2".getBytes("UTF-8"));
+        assertSame(zlibLike, decoder.decode(zlibLike));
+        zlibLike = ByteBuffer.wrap("x^2 + y^2 = z^2".getBytes("UTF-8"));
+        assertSame(zlibLike, decoder.decode(zlibLike));
+        //a zlib payload followed by more data is not a zlib payload
+        byte[] compressed = deflate(PAYLOAD);
+        byte[] followed = Arrays.copyOf(compressed, compressed.length + 3);
+        ByteBuffer concatenated = ByteBuffer.wrap(followed);
+        assertSame(concatenated, decoder.decode(concatenated));
+    }
+
+    @Test
+    public void testDetectOnlyStrongHeaders() throws IOException {
+        KinesisPayloadDecoder decoder = KinesisPayloadDecoder.forName("auto");
+        //pass the zlib header check with other window sizes
+        for (String text : new String[] {"Hj", "H,text", "80 items", "hb text"}) {
+            ByteBuffer plain = ByteBuffer.wrap(text.getBytes("UTF-8"));
+            assertSame(text, plain, decoder.decode(plain));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeLimitsDeflatedSize() throws IOException {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            large.append(PAYLOAD);
+        }
+        KinesisPayloadDecoder.forName("auto", 64 * 1024)
+                .decode(ByteBuffer.wrap(deflate(large.toString())));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeLimitsSnappySize() throws IOException {
+        byte[] compressed = Snappy.compress(new byte[1024 * 1024]);
+        KinesisPayloadDecoder.forName("snappy", 64 * 1024)
+                .decode(ByteBuffer.wrap(compressed));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeCorruptGzip() throws IOException {
+        byte[] compressed = gzip(PAYLOAD);
+        compressed[compressed.length - 8]++;
+        KinesisPayloadDecoder.forName("gzip").decode(ByteBuffer.wrap(compressed));
+    }
+}
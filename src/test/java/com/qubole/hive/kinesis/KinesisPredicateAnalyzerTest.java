@@ -0,0 +1,130 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.exec.Utilities;
+import org.apache.hadoop.hive.ql.metadata.HiveStoragePredicateHandler.DecomposedPredicate;
+import org.apache.hadoop.hive.ql.plan.ExprNodeColumnDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeConstantDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeDesc;
+import org.apache.hadoop.hive.ql.plan.ExprNodeGenericFuncDesc;
+import org.apache.hadoop.hive.ql.plan.TableScanDesc;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPAnd;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqual;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqualOrGreaterThan;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPGreaterThan;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPEqualOrLessThan;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDFOPLessThan;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.mapred.JobConf;
+
+import org.junit.Test;
+
+public class KinesisPredicateAnalyzerTest {
+
+    private String ARRIVAL_COL = "arrival_ts";
+    private String SEQ_COL = "seq_no";
+    private String DATA_COL = "username";
+    private String SEQ1 = "49545115243490985018280067714973144582180062593244200961";
+    private String SEQ2 = "49545115243490985018280067714973144582180062593244201000";
+    private long TIME1 = 1400000000000L;
+    private long TIME2 = 1400000600000L;
+
+    private ExprNodeGenericFuncDesc comparison(GenericUDF udf, String column,
+            TypeInfo type, Object value) {
+        List<ExprNodeDesc> children = new ArrayList<ExprNodeDesc>();
+        children.add(new ExprNodeColumnDesc(type, column, "t", false));
+        children.add(new ExprNodeConstantDesc(type, value));
+        return new ExprNodeGenericFuncDesc(TypeInfoFactory.booleanTypeInfo, udf, children);
+    }
+
+    private ExprNodeGenericFuncDesc and(ExprNodeDesc left, ExprNodeDesc right) {
+        List<ExprNodeDesc> children = new ArrayList<ExprNodeDesc>();
+        children.add(left);
+        children.add(right);
+        return new ExprNodeGenericFuncDesc(TypeInfoFactory.booleanTypeInfo,
+                new GenericUDFOPAnd(), children);
+    }
+
+    private ExprNodeGenericFuncDesc timeRangePredicate() {
+        return and(
+                and(comparison(new GenericUDFOPEqualOrGreaterThan(), ARRIVAL_COL,
+                        TypeInfoFactory.timestampTypeInfo, new Timestamp(TIME1)),
+                    comparison(new GenericUDFOPLessThan(), ARRIVAL_COL,
+                        TypeInfoFactory.timestampTypeInfo, new Timestamp(TIME2))),
+                comparison(new GenericUDFOPEqual(), DATA_COL,
+                        TypeInfoFactory.stringTypeInfo, "user1"));
+    }
+
+    @Test
+    public void testDecomposeWithoutArrivalTimeColumn() {
+        KinesisPredicateAnalyzer analyzer = new KinesisPredicateAnalyzer(null, null, null);
+        assertNull(analyzer.decompose(timeRangePredicate()));
+    }
+
+    @Test
+    public void testDecomposePushesArrivalTimeConditions() {
+        KinesisPredicateAnalyzer analyzer = new KinesisPredicateAnalyzer(ARRIVAL_COL, SEQ_COL, null);
+        ExprNodeGenericFuncDesc predicate = timeRangePredicate();
+        DecomposedPredicate decomposed = analyzer.decompose(predicate);
+        assertNotNull(decomposed);
+        assertEquals(2, decomposed.pushedPredicate.getChildren().size());
+        //whole predicate is still evaluated on the records read
+        assertEquals(predicate, decomposed.residualPredicate);
+    }
+
+    @Test
+    public void testGetScanBounds() {
+        JobConf conf = new JobConf();
+        conf.set(TableScanDesc.FILTER_EXPR_CONF_STR,
+                Utilities.serializeExpression(timeRangePredicate()));
+        KinesisScanBounds bounds =
+                new KinesisPredicateAnalyzer(ARRIVAL_COL, SEQ_COL, null).getScanBounds(conf);
+        assertEquals(TIME1, bounds.getMinArrivalTimeMs());
+        assertEquals(TIME2, bounds.getMaxArrivalTimeMs());
+        assertTrue(!bounds.isEmpty());
+    }
+
+    @Test
+    public void testGetScanBoundsWithoutFilter() {
+        KinesisScanBounds bounds =
+                new KinesisPredicateAnalyzer(ARRIVAL_COL, SEQ_COL, null).getScanBounds(new JobConf());
+        assertEquals(Long.MIN_VALUE, bounds.getMinArrivalTimeMs());
+        assertEquals(Long.MAX_VALUE, bounds.getMaxArrivalTimeMs());
+    }
+
+    @Test
+    public void testGetScanBoundsForSequenceNumbers() {
+        ExprNodeGenericFuncDesc predicate = and(
+                comparison(new GenericUDFOPGreaterThan(), SEQ_COL,
+                        TypeInfoFactory.stringTypeInfo, SEQ1),
+                comparison(new GenericUDFOPEqualOrLessThan(), SEQ_COL,
+                        TypeInfoFactory.stringTypeInfo, SEQ2));
+        JobConf conf = new JobConf();
+        conf.set(TableScanDesc.FILTER_EXPR_CONF_STR,
+                Utilities.serializeExpression(predicate));
+        KinesisScanBounds bounds =
+                new KinesisPredicateAnalyzer(ARRIVAL_COL, SEQ_COL, null).getScanBounds(conf);
+        assertEquals(new BigInteger(SEQ1).add(BigInteger.ONE), bounds.getMinSeqNo());
+        assertEquals(new BigInteger(SEQ2), bounds.getMaxSeqNo());
+        assertEquals(Long.MIN_VALUE, bounds.getMinArrivalTimeMs());
+
+        //conflicting conditions leave nothing to read
+        predicate = and(predicate, comparison(new GenericUDFOPEqual(), SEQ_COL,
+                TypeInfoFactory.stringTypeInfo, SEQ1));
+        conf.set(TableScanDesc.FILTER_EXPR_CONF_STR,
+                Utilities.serializeExpression(predicate));
+        bounds = new KinesisPredicateAnalyzer(ARRIVAL_COL, SEQ_COL, null).getScanBounds(conf);
+        assertTrue(bounds.isEmpty());
+    }
+}
@@ -0,0 +1,54 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class KinesisReadProgressTest {
+
+    private long ARRIVAL_TIME_MS = 1400000000000L;
+
+    @Test
+    public void testProgressWithinSequenceNumberRange() {
+        KinesisReadProgress progress = new KinesisReadProgress(
+                "49545115243490985018280067714973144582180062593244200000",
+                "49545115243490985018280067714973144582180062593244201000");
+        assertEquals(0.0f, progress.getProgress(), 0.0f);
+        progress.onRecordRead("49545115243490985018280067714973144582180062593244200250",
+                ARRIVAL_TIME_MS, 10);
+        assertEquals(0.25f, progress.getProgress(), 0.001f);
+        progress.onRecordRead("49545115243490985018280067714973144582180062593244200750",
+                ARRIVAL_TIME_MS, 10);
+        assertEquals(0.75f, progress.getProgress(), 0.001f);
+        assertEquals(20L, progress.getPos());
+        progress.finish();
+        assertEquals(1.0f, progress.getProgress(), 0.0f);
+    }
+
+    @Test
+    public void testProgressWithinRangeOfDifferentLengths() {
+        KinesisReadProgress progress = new KinesisReadProgress("900", "1900");
+        progress.onRecordRead("1150", ARRIVAL_TIME_MS, 10);
+        assertEquals(0.25f, progress.getProgress(), 0.001f);
+        assertEquals(0.25f, progress.getProgress(), 0.001f);
+        progress.onRecordRead("1650", ARRIVAL_TIME_MS, 10);
+        assertEquals(0.75f, progress.getProgress(), 0.001f);
+    }
+
+    @Test
+    public void testProgressFromMillisBehindLatest() {
+        KinesisReadProgress progress = new KinesisReadProgress("100", null);
+        progress.onFetch(30000L, ARRIVAL_TIME_MS + 20000L);
+        progress.onRecordRead("100", ARRIVAL_TIME_MS, 10);
+        progress.onRecordRead("200", ARRIVAL_TIME_MS + 10000L, 10);
+        //10s read, 10s fetched but not read, and 30s behind the tip
+        assertEquals(0.2f, progress.getProgress(), 0.001f);
+    }
+
+    @Test
+    public void testProgressUnknown() {
+        KinesisReadProgress progress = new KinesisReadProgress(null, null);
+        progress.onRecordRead("100", KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME, 10);
+        assertEquals(0.0f, progress.getProgress(), 0.0f);
+    }
+}
@@ -0,0 +1,112 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+public class KinesisRecordDeaggregatorTest {
+
+    private static final byte[] MAGIC =
+            {(byte) 0xF3, (byte) 0x89, (byte) 0x9A, (byte) 0xC2};
+
+    /*
+     * Builds a record in the format written by the Kinesis Producer Library.
+     * The protobuf message is encoded by hand, since the protobuf classes
+     * of the kinesis client do not match the protobuf runtime used by hive.
+     */
+    static byte[] aggregate(String[] keys, String[] data) throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (String key : keys) {
+            //partition_key_table
+            writeBytes(message, 1, key.getBytes("UTF-8"));
+        }
+        //explicit_hash_key_table
+        writeBytes(message, 2, "0".getBytes("UTF-8"));
+        for (int i = 0; i < data.length; i++) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            //partition_key_index, explicit_hash_key_index, data
+            writeVarint(record, 1 << 3);
+            writeVarint(record, i % keys.length);
+            writeVarint(record, 2 << 3);
+            writeVarint(record, 0);
+            writeBytes(record, 3, data[i].getBytes("UTF-8"));
+            //a tag, which is skipped
+            ByteArrayOutputStream tag = new ByteArrayOutputStream();
+            writeBytes(tag, 1, "tag".getBytes("UTF-8"));
+            writeBytes(record, 4, tag.toByteArray());
+            //records
+            writeBytes(message, 3, record.toByteArray());
+        }
+        byte[] messageBytes = message.toByteArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC);
+        out.write(messageBytes);
+        out.write(MessageDigest.getInstance("MD5").digest(messageBytes));
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes)
+            throws IOException {
+        writeVarint(out, (field << 3) | 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private String dataOf(KinesisRecordDeaggregator deaggregator, int record) {
+        return new String(deaggregator.getArray(), deaggregator.getDataOffset(record),
+                deaggregator.getDataLength(record));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        KinesisRecordDeaggregator deaggregator = new KinesisRecordDeaggregator();
+        byte[] bytes = aggregate(new String[] {"KEY_A", "KEY_B"},
+                new String[] {"DATA_0", "DATA_1", "DATA_2"});
+        assertTrue(deaggregator.reset(ByteBuffer.wrap(bytes)));
+        assertEquals(3, deaggregator.getRecordCount());
+        assertEquals("KEY_A", deaggregator.getPartitionKey(0));
+        assertEquals("KEY_B", deaggregator.getPartitionKey(1));
+        assertEquals("KEY_A", deaggregator.getPartitionKey(2));
+        assertEquals("DATA_0", dataOf(deaggregator, 0));
+        assertEquals("DATA_2", dataOf(deaggregator, 2));
+
+        //the same instance is reused for the next record
+        bytes = aggregate(new String[] {"KEY_C"}, new String[] {"DATA_3"});
+        assertTrue(deaggregator.reset(ByteBuffer.wrap(bytes)));
+        assertEquals(1, deaggregator.getRecordCount());
+        assertEquals("KEY_C", deaggregator.getPartitionKey(0));
+        assertEquals("DATA_3", dataOf(deaggregator, 0));
+    }
+
+    @Test
+    public void testResetWithPlainRecord() {
+        KinesisRecordDeaggregator deaggregator = new KinesisRecordDeaggregator();
+        assertFalse(deaggregator.reset(ByteBuffer.wrap("DATA_0".getBytes())));
+        assertFalse(deaggregator.reset(ByteBuffer.wrap(MAGIC)));
+        assertEquals(0, deaggregator.getRecordCount());
+    }
+
+    @Test
+    public void testResetWithBadDigest() throws Exception {
+        KinesisRecordDeaggregator deaggregator = new KinesisRecordDeaggregator();
+        byte[] bytes = aggregate(new String[] {"KEY_A"}, new String[] {"DATA_0"});
+        bytes[bytes.length - 1]++;
+        assertFalse(deaggregator.reset(ByteBuffer.wrap(bytes)));
+        assertEquals(0, deaggregator.getRecordCount());
+    }
+}
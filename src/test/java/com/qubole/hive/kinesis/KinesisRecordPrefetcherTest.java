@@ -0,0 +1,107 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+public class KinesisRecordPrefetcherTest {
+
+    private Record createKinesisRecord(int size, String seqNo) {
+        return new Record()
+                .withPartitionKey("KEY")
+                .withData(ByteBuffer.wrap(new byte[size]))
+                .withSequenceNumber(seqNo);
+    }
+
+    private static class CountingSupplier
+            implements KinesisRecordPrefetcher.BatchSupplier {
+        private final List<List<Record>> batches;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        CountingSupplier(List<List<Record>> batches) {
+            this.batches = batches;
+        }
+
+        @Override
+        public KinesisRecordBatch nextBatch() throws IOException {
+            int i = calls.getAndIncrement();
+            if (i < batches.size()) {
+                return new KinesisRecordBatch(batches.get(i), false, null,
+                        KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME);
+            }
+            return new KinesisRecordBatch(Collections.<Record>emptyList(), true, 0L,
+                    KinesisRecordWritable.UNKNOWN_ARRIVAL_TIME);
+        }
+    }
+
+    @Test
+    public void testTakeReturnsBatchesInOrder() throws IOException {
+        List<List<Record>> batches = new ArrayList<List<Record>>();
+        for (int i = 0; i < 5; i++) {
+            batches.add(Arrays.asList(createKinesisRecord(10, String.valueOf(i))));
+        }
+        KinesisRecordPrefetcher prefetcher = new KinesisRecordPrefetcher(
+                "SHARD_ID_1", new CountingSupplier(batches), 2, 1024L);
+        prefetcher.start();
+        for (int i = 0; i < 5; i++) {
+            KinesisRecordBatch batch = prefetcher.take();
+            assertEquals(String.valueOf(i), batch.getRecords().get(0).getSequenceNumber());
+            assertFalse(batch.isShardClosed());
+        }
+        //the end of the shard, with what was found out about it, is handed
+        //over every time
+        for (int i = 0; i < 2; i++) {
+            KinesisRecordBatch batch = prefetcher.take();
+            assertTrue(batch.getRecords().isEmpty());
+            assertTrue(batch.isShardClosed());
+            assertEquals(Long.valueOf(0L), batch.getMillisBehindLatest());
+        }
+        prefetcher.close();
+    }
+
+    @Test
+    public void testByteBudgetLimitsFetchAhead() throws Exception {
+        List<List<Record>> batches = new ArrayList<List<Record>>();
+        for (int i = 0; i < 5; i++) {
+            batches.add(Arrays.asList(createKinesisRecord(100, String.valueOf(i))));
+        }
+        CountingSupplier supplier = new CountingSupplier(batches);
+        //depth allows 4 batches, but the budget only allows one
+        KinesisRecordPrefetcher prefetcher = new KinesisRecordPrefetcher(
+                "SHARD_ID_1", supplier, 4, 50L);
+        prefetcher.start();
+        Thread.sleep(100);
+        assertEquals(1, supplier.calls.get());
+
+        prefetcher.take();
+        Thread.sleep(100);
+        assertEquals(2, supplier.calls.get());
+        prefetcher.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailureIsRethrownToConsumer() throws IOException {
+        KinesisRecordPrefetcher prefetcher = new KinesisRecordPrefetcher(
+                "SHARD_ID_1",
+                new KinesisRecordPrefetcher.BatchSupplier() {
+                    @Override
+                    public KinesisRecordBatch nextBatch() throws IOException {
+                        throw new IOException("fetch failed");
+                    }
+                }, 1, 1024L);
+        prefetcher.start();
+        prefetcher.take();
+    }
+}
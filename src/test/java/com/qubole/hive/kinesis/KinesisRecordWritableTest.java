@@ -0,0 +1,98 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.io.Text;
+
+import org.junit.Test;
+
+public class KinesisRecordWritableTest {
+
+    @Test
+    public void testSetDataDoesNotCopy() {
+        byte[] bytes = "record1".getBytes();
+        KinesisRecordWritable value = new KinesisRecordWritable();
+        value.setData(ByteBuffer.wrap(bytes));
+        assertSame(bytes, value.getBytes());
+        assertEquals(bytes.length, value.getLength());
+        assertEquals("record1", value.toString());
+        assertEquals(new Text("record1"), value);
+    }
+
+    @Test
+    public void testSetDataWithOffset() {
+        ByteBuffer buffer = ByteBuffer.wrap("xxrecord1yy".getBytes(), 2, 7);
+        KinesisRecordWritable value = new KinesisRecordWritable();
+        value.setData(buffer.slice());
+        assertEquals("record1", value.toString());
+        assertEquals(7, value.getLength());
+
+        value.setData(ByteBuffer.wrap("xxrecord2".getBytes(), 2, 7));
+        assertEquals("record2", value.toString());
+    }
+
+    @Test
+    public void testModifyAfterSetData() {
+        byte[] bytes = "record".getBytes();
+        KinesisRecordWritable value = new KinesisRecordWritable();
+        value.setData(ByteBuffer.wrap(bytes));
+        value.append("1".getBytes(), 0, 1);
+        assertEquals("record1", value.toString());
+        //the record data is not modified
+        assertEquals("record", new String(bytes));
+
+        value.set("other");
+        assertEquals("other", value.toString());
+    }
+
+    @Test
+    public void testWriteAndReadFields() throws IOException {
+        KinesisRecordWritable value = new KinesisRecordWritable();
+        value.setData(ByteBuffer.wrap("record1".getBytes()));
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        value.write(new DataOutputStream(bytesOut));
+
+        KinesisRecordWritable read = new KinesisRecordWritable();
+        read.setData(ByteBuffer.wrap("previous".getBytes()));
+        read.readFields(new DataInputStream(
+                new ByteArrayInputStream(bytesOut.toByteArray())));
+        assertEquals("record1", read.toString());
+    }
+
+    @Test
+    public void testReadWithLengthAfterSetData() throws IOException {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        new Text("record1").write(new DataOutputStream(bytesOut));
+        byte[] serialized = bytesOut.toByteArray();
+
+        //a value wrapping the buffer of an earlier record
+        KinesisRecordWritable read = new KinesisRecordWritable();
+        read.setData(ByteBuffer.wrap("a longer previous record".getBytes()));
+        read.readFields(new DataInputStream(new ByteArrayInputStream(serialized)), 100);
+        assertEquals("record1", read.toString());
+        assertEquals(7, read.getLength());
+
+        read.setData(ByteBuffer.wrap("a longer previous record".getBytes()));
+        //past the length written before the bytes
+        read.readWithKnownLength(new DataInputStream(
+                new ByteArrayInputStream(serialized, 1, serialized.length - 1)), 7);
+        assertEquals("record1", read.toString());
+        assertEquals(new Text("record1"), read);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadLongerThanMaxLength() throws IOException {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        new Text("record1").write(new DataOutputStream(bytesOut));
+        new KinesisRecordWritable().readFields(new DataInputStream(
+                new ByteArrayInputStream(bytesOut.toByteArray())), 6);
+    }
+}
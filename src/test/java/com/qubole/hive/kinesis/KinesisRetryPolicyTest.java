@@ -0,0 +1,91 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.kinesis.leases.exceptions.DependencyException;
+import com.amazonaws.services.kinesis.leases.exceptions.InvalidStateException;
+import com.amazonaws.services.kinesis.leases.exceptions.ProvisionedThroughputException;
+import com.amazonaws.services.kinesis.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.kinesis.model.ResourceNotFoundException;
+
+import com.qubole.hive.kinesis.KinesisRetryPolicy.ErrorKind;
+
+public class KinesisRetryPolicyTest {
+
+    private static AmazonServiceException serviceException(int statusCode, String errorCode) {
+        AmazonServiceException e = new AmazonServiceException("failed");
+        e.setStatusCode(statusCode);
+        e.setErrorCode(errorCode);
+        e.setErrorType(statusCode >= 500
+                ? AmazonServiceException.ErrorType.Service
+                : AmazonServiceException.ErrorType.Client);
+        return e;
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(ErrorKind.THROTTLED, KinesisRetryPolicy.classify(
+                new ProvisionedThroughputExceededException("throttled")));
+        assertEquals(ErrorKind.THROTTLED, KinesisRetryPolicy.classify(
+                new ProvisionedThroughputException(new IOException("throttled"))));
+        assertEquals(ErrorKind.THROTTLED, KinesisRetryPolicy.classify(
+                serviceException(400, "ThrottlingException")));
+        assertEquals(ErrorKind.TRANSIENT, KinesisRetryPolicy.classify(
+                serviceException(503, "ServiceUnavailable")));
+        assertEquals(ErrorKind.TRANSIENT, KinesisRetryPolicy.classify(
+                new AmazonClientException("connection reset", new IOException())));
+        assertEquals(ErrorKind.TRANSIENT, KinesisRetryPolicy.classify(
+                new DependencyException(new IOException())));
+        assertEquals(ErrorKind.FATAL, KinesisRetryPolicy.classify(
+                serviceException(400, "AccessDeniedException")));
+        assertEquals(ErrorKind.FATAL, KinesisRetryPolicy.classify(
+                new ResourceNotFoundException("no such stream")));
+        assertEquals(ErrorKind.FATAL, KinesisRetryPolicy.classify(
+                new InvalidStateException("no table")));
+        assertEquals(ErrorKind.FATAL, KinesisRetryPolicy.classify(
+                new IllegalStateException()));
+    }
+
+    @Test
+    public void testBackoffIsBoundedAndJittered() {
+        KinesisRetryPolicy policy = new KinesisRetryPolicy(100L, 1000L, 10, null,
+                new Random(42L));
+        KinesisRetryPolicy.Backoff backoff = policy.newBackoff();
+        long previous = 100L;
+        boolean varied = false;
+        for (int i = 0; i < 50; i++) {
+            long delay = backoff.nextDelayMs();
+            assertTrue(delay >= 100L);
+            assertTrue(delay <= Math.min(1000L, previous * 3));
+            varied |= delay != previous;
+            previous = delay;
+        }
+        assertTrue(varied);
+
+        //waits between polls start at their own delay
+        KinesisRetryPolicy.Backoff pollBackoff = policy.newBackoff(2000L);
+        assertEquals(2000L, pollBackoff.nextDelayMs());
+    }
+
+    @Test
+    public void testRetryBudget() throws InterruptedException {
+        KinesisRetryPolicy policy = new KinesisRetryPolicy(1L, 2L, 2, null, new Random());
+        KinesisRetryPolicy.Backoff backoff = policy.newBackoff();
+        Exception throttled = new ProvisionedThroughputExceededException("throttled");
+        //fatal failures are not retried, and do not spend the budget
+        assertFalse(policy.retry(new ResourceNotFoundException("no such stream"), backoff));
+        assertTrue(policy.retry(throttled, backoff));
+        assertTrue(policy.retry(throttled, policy.newBackoff()));
+        assertEquals(0, policy.getRetriesLeft());
+        assertFalse(policy.retry(throttled, backoff));
+    }
+}
@@ -0,0 +1,124 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+public class KinesisSegmentCacheTest {
+
+    private static final long TTL_MS = 60000L;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tempFolder.newFolder("segments");
+    }
+
+    private static Record createRecord(String seqNo, String data, Date arrivalTime) {
+        //data starting within its array, as for the buffers of the kinesis client
+        byte[] bytes = ("xx" + data).getBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 2, bytes.length - 2).slice();
+        return new Record()
+                .withSequenceNumber(seqNo)
+                .withPartitionKey("key-" + seqNo)
+                .withData(buffer)
+                .withApproximateArrivalTimestamp(arrivalTime);
+    }
+
+    private static String getData(Record rec) {
+        ByteBuffer data = rec.getData();
+        return new String(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    private File segmentFile(String key) {
+        return new File(new File(new File(new File(dir, "owner"), "stream"), "shard"),
+                key + ".seg");
+    }
+
+    @Test
+    public void testWriteAndRead() {
+        KinesisSegmentCache cache = new KinesisSegmentCache(dir, "owner", "stream", "shard", TTL_MS);
+        String key = KinesisSegmentCache.afterKey("100");
+        assertNull(cache.read(key));
+
+        cache.write(key, Arrays.asList(
+                createRecord("101", "first", new Date(1400000000000L)),
+                createRecord("102", "second", null)));
+        //another cache of the shard, as used by another attempt
+        List<Record> records =
+                new KinesisSegmentCache(dir, "owner", "stream", "shard", TTL_MS).read(key);
+        assertEquals(2, records.size());
+        assertEquals("101", records.get(0).getSequenceNumber());
+        assertEquals("key-101", records.get(0).getPartitionKey());
+        assertEquals("first", getData(records.get(0)));
+        assertEquals(new Date(1400000000000L), records.get(0).getApproximateArrivalTimestamp());
+        assertEquals("second", getData(records.get(1)));
+        assertNull(records.get(1).getApproximateArrivalTimestamp());
+        assertEquals(1L, cache.getSegmentsWritten());
+
+        //empty batches are not cached
+        cache.write(KinesisSegmentCache.afterKey("102"), Collections.<Record>emptyList());
+        assertNull(cache.read(KinesisSegmentCache.afterKey("102")));
+    }
+
+    @Test
+    public void testExpiredAndCorruptSegmentsAreDeleted() throws IOException {
+        KinesisSegmentCache cache = new KinesisSegmentCache(dir, "owner", "stream", "shard", TTL_MS);
+        String expiredKey = KinesisSegmentCache.startKey(null, Long.MIN_VALUE);
+        cache.write(expiredKey, Arrays.asList(createRecord("1", "data", null)));
+        File expired = segmentFile(expiredKey);
+        assertTrue(expired.setLastModified(System.currentTimeMillis() - 2 * TTL_MS));
+        assertNull(cache.read(expiredKey));
+
+        String corruptKey = KinesisSegmentCache.startKey("1", Long.MIN_VALUE);
+        cache.write(corruptKey, Arrays.asList(createRecord("1", "data", null)));
+        File corrupt = segmentFile(corruptKey);
+        //truncate the segment, so that its records cannot be read
+        RandomAccessFile raf = new RandomAccessFile(corrupt, "rw");
+        raf.setLength(20);
+        raf.close();
+        assertNull(cache.read(corruptKey));
+        assertFalse(corrupt.exists());
+
+        //expired segments are deleted when the shard is opened again
+        new KinesisSegmentCache(dir, "owner", "stream", "shard", TTL_MS);
+        assertFalse(expired.exists());
+    }
+
+    @Test
+    public void testStreamsOfOtherOwnersAreKeptApart() {
+        String key = KinesisSegmentCache.afterKey("100");
+        new KinesisSegmentCache(dir, "owner", "stream", "shard", TTL_MS)
+                .write(key, Arrays.asList(createRecord("101", "first", null)));
+        //a same-named stream of another account
+        KinesisSegmentCache other = new KinesisSegmentCache(dir, "other", "stream", "shard",
+                TTL_MS);
+        assertNull(other.read(key));
+
+        other.write(key, Arrays.asList(createRecord("101", "other", null)));
+        assertEquals("first", getData(new KinesisSegmentCache(dir, "owner", "stream", "shard",
+                TTL_MS).read(key).get(0)));
+        assertEquals("other", getData(other.read(key).get(0)));
+    }
+}
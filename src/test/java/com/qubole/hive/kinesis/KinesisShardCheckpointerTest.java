@@ -8,19 +8,37 @@ import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.mapred.JobConf;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.kinesis.clientlibrary.types.ExtendedSequenceNumber;
 import com.amazonaws.services.kinesis.leases.exceptions.DependencyException;
 import com.amazonaws.services.kinesis.leases.exceptions.InvalidStateException;
 import com.amazonaws.services.kinesis.leases.exceptions.ProvisionedThroughputException;
 import com.amazonaws.services.kinesis.leases.impl.KinesisClientLease;
 import com.amazonaws.services.kinesis.leases.impl.KinesisClientLeaseManager;
+import com.amazonaws.services.kinesis.leases.impl.KinesisClientLeaseSerializer;
+import com.qubole.hive.kinesis.util.Constants;
 
 public class KinesisShardCheckpointerTest {
 
     private String STR1 = "STREAM_NAME_1";
     private String SHARD1 = "SHARD_ID_1";
+    private String SHARD2 = "SHARD_ID_2";
     private String LOGICAL1 = "LOGICAL_PROCESS_1";
     private String SEQ1 = "SEQ_NO_1";
     private String SEQ2 = "SEQ_NO_2";
@@ -78,7 +96,7 @@ public class KinesisShardCheckpointerTest {
                 .toString();
         KinesisClientLease expectedLease = new KinesisClientLease();
         expectedLease.setLeaseKey(expectedKey);
-        expectedLease.setCheckpoint(SEQ1);
+        expectedLease.setCheckpoint(new ExtendedSequenceNumber(SEQ1));
         expect(mockLeaseManager.getLease(expectedKey))
                 .andReturn(expectedLease);
         replay(mockLeaseManager);
@@ -126,4 +144,64 @@ public class KinesisShardCheckpointerTest {
 
         verify(mockLeaseManager);
     }
+
+    @Test
+    public void testCheckpointRetriesThrottledWrites() throws DependencyException,
+            InvalidStateException, ProvisionedThroughputException {
+        expectForInitialize();
+        expect(mockLeaseManager.createLeaseIfNotExists(isA(KinesisClientLease.class)))
+                .andReturn(false).times(2);
+        expect(mockLeaseManager.updateLease(isA(KinesisClientLease.class)))
+                .andThrow(new ProvisionedThroughputException(new IOException("throttled")));
+        expect(mockLeaseManager.updateLease(isA(KinesisClientLease.class)))
+                .andReturn(true);
+        replay(mockLeaseManager);
+
+        checkpointer = new KinesisShardCheckpointer(
+                mockLeaseManager,
+                STR1, SHARD1, LOGICAL1, 3,
+                CHECKPOINT_INTERVAL, READ_CAP, WRITE_CAP);
+        checkpointer.setRetryPolicy(new KinesisRetryPolicy(1L, 2L, 5, null, new Random()));
+        checkpointer.checkpoint(SEQ2);
+
+        verify(mockLeaseManager);
+    }
+
+    @Test
+    public void testGetFinishedShardsAsksAgainForUnprocessedKeys() {
+        JobConf conf = new JobConf();
+        conf.setInt(Constants.ITERATION_NUMBER, 3);
+        conf.set(Constants.DYNAMO_TABLE_NAME, "TABLE");
+        conf.set(Constants.CHECKPOINT_LOGICAL_NAME, LOGICAL1);
+        conf.setLong(Constants.RETRY_BACKOFF_BASE_MS, 1L);
+        conf.setLong(Constants.RETRY_BACKOFF_MAX_MS, 2L);
+        KinesisClientLeaseSerializer serializer = new KinesisClientLeaseSerializer();
+        KinesisClientLease finished = new KinesisClientLease();
+        finished.setLeaseKey(LOGICAL1 + "_" + STR1 + "_" + SHARD1 + "_2");
+        finished.setCheckpoint(ExtendedSequenceNumber.SHARD_END);
+        KinesisClientLease reading = new KinesisClientLease();
+        reading.setLeaseKey(LOGICAL1 + "_" + STR1 + "_" + SHARD2 + "_2");
+        reading.setCheckpoint(new ExtendedSequenceNumber(SEQ1));
+
+        Map<String, KeysAndAttributes> unprocessed = new HashMap<String, KeysAndAttributes>();
+        unprocessed.put("TABLE", new KeysAndAttributes().withKeys(
+                serializer.getDynamoHashKey(finished.getLeaseKey())));
+        AmazonDynamoDBClient mockDynamo = createMock(AmazonDynamoDBClient.class);
+        expect(mockDynamo.batchGetItem(isA(BatchGetItemRequest.class))).andReturn(
+                new BatchGetItemResult()
+                        .withResponses(Collections.singletonMap("TABLE",
+                                Arrays.asList(serializer.toDynamoRecord(reading))))
+                        .withUnprocessedKeys(unprocessed));
+        expect(mockDynamo.batchGetItem(new BatchGetItemRequest().withRequestItems(unprocessed)))
+                .andReturn(new BatchGetItemResult()
+                        .withResponses(Collections.singletonMap("TABLE",
+                                Arrays.asList(serializer.toDynamoRecord(finished)))));
+        replay(mockDynamo);
+
+        Set<String> finishedShards = KinesisShardCheckpointer.getFinishedShards(
+                mockDynamo, conf, STR1, Arrays.asList(SHARD1, SHARD2));
+
+        assertEquals(Collections.singleton(SHARD1), finishedShards);
+        verify(mockDynamo);
+    }
 }
@@ -0,0 +1,55 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.model.SequenceNumberRange;
+import com.amazonaws.services.kinesis.model.Shard;
+
+public class KinesisShardLineageTest {
+
+    private static List<String> shardIds(List<Shard> shards) {
+        List<String> ids = new ArrayList<String>();
+        for (Shard shard : shards) {
+            ids.add(shard.getShardId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testShardsInParentOrder() {
+        //shard-0 was split into shard-1 and shard-2, which were merged into
+        //shard-3. The parent of shard-0 has expired.
+        List<Shard> shards = Arrays.asList(
+                new Shard().withShardId("shard-3")
+                        .withParentShardId("shard-1")
+                        .withAdjacentParentShardId("shard-2"),
+                new Shard().withShardId("shard-2").withParentShardId("shard-0"),
+                new Shard().withShardId("shard-1").withParentShardId("shard-0"),
+                new Shard().withShardId("shard-0").withParentShardId("expired"),
+                new Shard().withShardId("shard-4"));
+        KinesisShardLineage lineage = new KinesisShardLineage(shards);
+
+        assertEquals(Arrays.asList("shard-1", "shard-2"), lineage.getParents(shards.get(0)));
+        assertTrue(lineage.getParents(shards.get(3)).isEmpty());
+        assertEquals(Arrays.asList("shard-0", "shard-1", "shard-2", "shard-3", "shard-4"),
+                shardIds(lineage.getShardsInParentOrder()));
+    }
+
+    @Test
+    public void testIsClosed() {
+        SequenceNumberRange range = new SequenceNumberRange().withStartingSequenceNumber("1");
+        assertFalse(KinesisShardLineage.isClosed(new Shard().withShardId("open")));
+        assertFalse(KinesisShardLineage.isClosed(
+                new Shard().withShardId("open").withSequenceNumberRange(range)));
+        assertTrue(KinesisShardLineage.isClosed(new Shard().withShardId("closed")
+                .withSequenceNumberRange(range.clone().withEndingSequenceNumber("9"))));
+    }
+}
@@ -0,0 +1,144 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.model.Record;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+public class KinesisSharedSegmentCacheTest {
+
+    private static final long TTL_MS = 60000L;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File dir;
+    private FileSystem fs;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = tempFolder.newFolder("shared");
+        fs = FileSystem.getLocal(new JobConf());
+    }
+
+    private KinesisSharedSegmentCache openCache(String shardId) {
+        return openCache("owner", shardId);
+    }
+
+    private KinesisSharedSegmentCache openCache(String owner, String shardId) {
+        return new KinesisSharedSegmentCache(fs, new Path(dir.getPath()), owner, "stream",
+                shardId, TTL_MS);
+    }
+
+    private JobConf createConf(long maxBytes) {
+        JobConf conf = new JobConf();
+        conf.set(Constants.SHARED_CACHE_DIR, dir.getPath());
+        conf.setLong(Constants.SHARED_CACHE_TTL_MS, TTL_MS);
+        conf.setLong(Constants.SHARED_CACHE_MAX_BYTES, maxBytes);
+        return conf;
+    }
+
+    private static List<Record> createRecords(int first, int last) {
+        List<Record> records = new ArrayList<Record>();
+        for (int i = first; i <= last; i++) {
+            records.add(new Record()
+                    .withSequenceNumber(String.valueOf(i))
+                    .withPartitionKey("KEY_" + i)
+                    .withData(ByteBuffer.wrap(("DATA_" + i).getBytes())));
+        }
+        return records;
+    }
+
+    private static void assertRecords(int first, int last, List<Record> records) {
+        assertEquals(last - first + 1, records.size());
+        for (int i = first; i <= last; i++) {
+            assertEquals(String.valueOf(i), records.get(i - first).getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void testReadRecordsAfterSequenceNumber() {
+        KinesisSharedSegmentCache cache = openCache("shard");
+        cache.write("100", createRecords(101, 103));
+        //a batch fetched from the start of a split follows its first record
+        cache.write(null, createRecords(5, 7));
+        assertEquals(2L, cache.getSegmentsWritten());
+        //cached records are written once
+        cache.write("101", createRecords(102, 103));
+        assertEquals(2L, cache.getSegmentsWritten());
+
+        //the index is read by the caches of later queries
+        KinesisSharedSegmentCache other = openCache("shard");
+        assertRecords(101, 103, other.read("100"));
+        assertRecords(102, 103, other.read("101"));
+        assertRecords(5, 7, other.read(KinesisSharedSegmentCache.precedingSeqNo("5")));
+        assertEquals(3L, other.getSegmentsRead());
+        //records following the end of a segment, or preceding its start,
+        //may not have been cached
+        assertNull(other.read("103"));
+        assertNull(other.read("99"));
+        assertNull(openCache("other-shard").read("100"));
+    }
+
+    @Test
+    public void testEvict() {
+        openCache("shard1").write("0", createRecords(1, 100));
+        openCache("shard2").write("0", createRecords(1, 100));
+        openCache("shard2").write("100", createRecords(101, 200));
+        File shard1 = new File(new File(new File(new File(dir, "owner"), "stream"), "shard1"), "0_100.seg");
+        File shard2 = new File(new File(new File(new File(dir, "owner"), "stream"), "shard2"), "0_100.seg");
+        File shard2Tail = new File(new File(new File(new File(dir, "owner"), "stream"), "shard2"), "100_200.seg");
+        long now = System.currentTimeMillis();
+        assertTrue(shard1.setLastModified(now - 20000L));
+        assertTrue(shard2.setLastModified(now - 10000L));
+        long shard2Bytes = shard2.length() + shard2Tail.length();
+
+        JobConf conf = createConf(shard1.length() + shard2Bytes);
+        KinesisSharedSegmentCache.evict(conf, "owner", "stream");
+        assertTrue(shard1.exists());
+
+        //the least recently used segment is evicted first
+        conf.setLong(Constants.SHARED_CACHE_MAX_BYTES, shard2Bytes);
+        KinesisSharedSegmentCache.evict(conf, "owner", "stream");
+        assertFalse(shard1.exists());
+        assertTrue(shard2.exists());
+
+        //and segments older than the time to live
+        assertTrue(shard2.setLastModified(now - 2 * TTL_MS));
+        KinesisSharedSegmentCache.evict(conf, "owner", "stream");
+        assertFalse(shard2.exists());
+        assertTrue(shard2Tail.exists());
+    }
+
+    @Test
+    public void testStreamsOfOtherOwnersAreKeptApart() {
+        //same-named streams of two accounts
+        openCache("owner1", "shard").write("0", createRecords(1, 10));
+        assertNull(openCache("owner2", "shard").read("0"));
+        openCache("owner2", "shard").write("0", createRecords(1, 20));
+        assertRecords(1, 10, openCache("owner1", "shard").read("0"));
+
+        //the segments of one account are evicted with the others kept
+        KinesisSharedSegmentCache.evict(createConf(0L), "owner2", "stream");
+        assertNull(openCache("owner2", "shard").read("0"));
+        assertRecords(1, 10, openCache("owner1", "shard").read("0"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.qubole.hive.kinesis;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.kinesis.clientlibrary.proxies.KinesisProxy;
+import com.amazonaws.services.kinesis.model.Shard;
+
+public class KinesisStreamMetadataCacheTest {
+
+    private static final String SOURCE = "us-east-1/ACCESS_KEY_1";
+    private static final String STREAM = "STREAM_NAME_1";
+    private static final long TTL_MS = 60000L;
+
+    private KinesisProxy mockKinesisProxy;
+    private KinesisShardSource shardSource;
+    private KinesisStreamMetadataCache cache;
+    private List<Shard> shards;
+
+    @Before
+    public void setUp() {
+        mockKinesisProxy = createMock(KinesisProxy.class);
+        shardSource = new KinesisProxyShardSource(mockKinesisProxy);
+        cache = new KinesisStreamMetadataCache();
+        shards = Arrays.asList(new Shard().withShardId("SHARD_ID_1"),
+                new Shard().withShardId("SHARD_ID_2"));
+    }
+
+    @Test
+    public void testShardListIsCached() throws IOException {
+        expect(mockKinesisProxy.getShardList()).andReturn(shards).times(3);
+        replay(mockKinesisProxy);
+
+        assertEquals(shards, cache.getShardList(SOURCE, STREAM, shardSource, TTL_MS));
+        assertEquals(shards, cache.getShardList(SOURCE, STREAM, shardSource, TTL_MS));
+        //streams of the same name in other regions, or listed with other
+        //credentials, are listed separately
+        assertEquals(shards, cache.getShardList("eu-west-1/ACCESS_KEY_1", STREAM,
+                shardSource, TTL_MS));
+        assertEquals(shards, cache.getShardList("us-east-1/ACCESS_KEY_2", STREAM,
+                shardSource, TTL_MS));
+        assertEquals(shards, cache.getShardList("us-east-1/ACCESS_KEY_2", STREAM,
+                shardSource, TTL_MS));
+
+        verify(mockKinesisProxy);
+    }
+
+    @Test
+    public void testShardListIsListedAgain() throws IOException, InterruptedException {
+        expect(mockKinesisProxy.getShardList()).andReturn(shards).times(4);
+        replay(mockKinesisProxy);
+
+        //once expired
+        cache.getShardList(SOURCE, STREAM, shardSource, 10L);
+        Thread.sleep(20L);
+        cache.getShardList(SOURCE, STREAM, shardSource, 10L);
+        //once invalidated after resharding
+        cache.invalidate(STREAM);
+        cache.getShardList(SOURCE, STREAM, shardSource, TTL_MS);
+        //and always if caching is disabled
+        cache.getShardList(SOURCE, STREAM, shardSource, 0L);
+
+        verify(mockKinesisProxy);
+    }
+
+    @Test
+    public void testInactiveStreamIsNotCached() throws IOException {
+        expect(mockKinesisProxy.getShardList()).andReturn(null);
+        expect(mockKinesisProxy.getShardList()).andReturn(shards);
+        replay(mockKinesisProxy);
+
+        assertNull(cache.getShardList(SOURCE, STREAM, shardSource, TTL_MS));
+        assertEquals(shards, cache.getShardList(SOURCE, STREAM, shardSource, TTL_MS));
+
+        verify(mockKinesisProxy);
+    }
+}
@@ -0,0 +1,75 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.kinesis.model.GetRecordsResult;
+import com.amazonaws.services.kinesis.model.Record;
+import com.amazonaws.services.kinesis.model.Shard;
+
+import com.qubole.hive.kinesis.util.Constants;
+
+public class LocalFileShardSourceTest {
+
+    //sequence numbers as long as those of kinesis
+    private static final String SEQ_NO_PREFIX =
+            "4955984234185066474926808730476117451838061848301";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static List<Record> createRecords(int first, int last) {
+        List<Record> records = new ArrayList<Record>();
+        for (int i = first; i <= last; i++) {
+            records.add(new Record()
+                    .withSequenceNumber(SEQ_NO_PREFIX + (100 + i))
+                    .withPartitionKey("KEY_" + i)
+                    .withData(ByteBuffer.wrap(("DATA_" + i).getBytes())));
+        }
+        return records;
+    }
+
+    @Test
+    public void testReplaySegments() throws IOException {
+        File dir = tempFolder.newFolder("dump");
+        //overlapping segments, written in any order
+        KinesisSegmentCache shard1 = new KinesisSegmentCache(dir, "owner", "stream",
+                "SHARD_ID_1", Long.MAX_VALUE);
+        shard1.write("segment-b", createRecords(3, 6));
+        shard1.write("segment-a", createRecords(0, 4));
+        new KinesisSegmentCache(dir, "owner", "stream", "SHARD_ID_2", Long.MAX_VALUE)
+                .write("segment-a", createRecords(10, 11));
+
+        JobConf conf = new JobConf();
+        conf.set(Constants.SHARD_SOURCE_DIR,
+                new File(new File(dir, "owner"), "stream").getPath());
+        LocalFileShardSource source = new LocalFileShardSource(conf);
+        List<Shard> shards = source.getShardList();
+        assertEquals(2, shards.size());
+        assertEquals("SHARD_ID_1", shards.get(0).getShardId());
+        assertEquals(SEQ_NO_PREFIX + 106,
+                shards.get(0).getSequenceNumberRange().getEndingSequenceNumber());
+
+        GetRecordsResult result =
+                source.get(source.getIterator("SHARD_ID_1", "TRIM_HORIZON", null), 100);
+        assertEquals(7, result.getRecords().size());
+        for (int i = 0; i <= 6; i++) {
+            assertEquals(SEQ_NO_PREFIX + (100 + i),
+                    result.getRecords().get(i).getSequenceNumber());
+        }
+        assertNull(result.getNextShardIterator());
+        assertEquals(2, source.get(source.getIterator("SHARD_ID_2", "TRIM_HORIZON", null), 100)
+                .getRecords().size());
+    }
+}
@@ -0,0 +1,54 @@
+package com.qubole.hive.kinesis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ShardRateLimiterTest {
+
+    @Test
+    public void testForShard() {
+        ShardRateLimiter limiter = ShardRateLimiter.forShard("STREAM", "SHARD_1", 5, 1024);
+        assertSame(limiter, ShardRateLimiter.forShard("STREAM", "SHARD_1", 5, 1024));
+        assertNotSame(limiter, ShardRateLimiter.forShard("STREAM", "SHARD_2", 5, 1024));
+    }
+
+    @Test
+    public void testAcquireWaitsForCalls() throws InterruptedException {
+        ShardRateLimiter limiter = new ShardRateLimiter(10, 1024 * 1024);
+        long start = System.nanoTime();
+        //a second's worth of calls can be made at once
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+        //the next call waits for a token, which takes 100 ms
+        long waited = limiter.acquire();
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(11, limiter.getCalls());
+    }
+
+    @Test
+    public void testAcquireWaitsForBytes() throws InterruptedException {
+        ShardRateLimiter limiter = new ShardRateLimiter(100, 1000);
+        limiter.acquire();
+        //reading 1.1 seconds worth of bytes delays the next call
+        limiter.onBytesRead(2100);
+        long waited = limiter.acquire();
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(limiter.getWaitTimeMs() >= 50);
+    }
+
+    @Test
+    public void testAcquireAfterThrottled() throws InterruptedException {
+        ShardRateLimiter limiter = new ShardRateLimiter(20, 1024 * 1024);
+        limiter.onThrottled();
+        long waited = limiter.acquire();
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(25));
+    }
+}
@@ -9,7 +9,29 @@ import com.qubole.hive.kinesis.util.HiveKinesisUtilsTest;
 @Suite.SuiteClasses({
         HiveKinesisUtilsTest.class,
         KinesisShardCheckpointerTest.class,
-        HiveKinesisRecordReaderTest.class})
+        HiveKinesisRecordReaderTest.class,
+        HiveKinesisRecordWriterTest.class,
+        KinesisRecordPrefetcherTest.class,
+        KinesisPredicateAnalyzerTest.class,
+        HiveKinesisSerDeTest.class,
+        KinesisRecordWritableTest.class,
+        KinesisRecordDeaggregatorTest.class,
+        KinesisPayloadDecoderTest.class,
+        AdaptiveBatchSizerTest.class,
+        ShardRateLimiterTest.class,
+        KinesisReadProgressTest.class,
+        KinesisShardLineageTest.class,
+        KinesisMultiShardRecordReaderTest.class,
+        HiveKinesisVectorizedRecordReaderTest.class,
+        KinesisSegmentCacheTest.class,
+        KinesisSharedSegmentCacheTest.class,
+        KinesisStreamMetadataCacheTest.class,
+        KinesisClientRegistryTest.class,
+        InMemoryShardSourceTest.class,
+        LocalFileShardSourceTest.class,
+        KinesisLatencyHistogramTest.class,
+        KinesisMetricsTest.class,
+        KinesisRetryPolicyTest.class})
 public class TestSuite {
     //nothing
 }
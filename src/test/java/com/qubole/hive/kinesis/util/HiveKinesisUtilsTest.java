@@ -5,6 +5,9 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -131,4 +134,20 @@ public class HiveKinesisUtilsTest {
         HiveKinesisUtils.validateConf(mockConf);
         verify(mockConf);
     }
+
+    @Test
+    public void testCompareSequenceNumbers() {
+        assertTrue(HiveKinesisUtils.compareSequenceNumbers("99", "100") < 0);
+        assertTrue(HiveKinesisUtils.compareSequenceNumbers("100", "99") > 0);
+        assertTrue(HiveKinesisUtils.compareSequenceNumbers("123", "124") < 0);
+        assertEquals(0, HiveKinesisUtils.compareSequenceNumbers("123", "123"));
+    }
+
+    @Test
+    public void testHashPartitionKey() {
+        //MD5 of the empty string, as an unsigned integer
+        assertEquals(new BigInteger("d41d8cd98f00b204e9800998ecf8427e", 16),
+                HiveKinesisUtils.hashPartitionKey(""));
+        assertTrue(HiveKinesisUtils.hashPartitionKey("key").signum() >= 0);
+    }
 }